@@ -0,0 +1,94 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.bench;
+
+import clojure.java.api.Clojure;
+import clojure.lang.AFn;
+import clojure.lang.IFn;
+import clojure.lang.ILookup;
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FnConsumer#handleDelivery dispatch to a Clojure handler, on an in-JVM fake channel.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConsumerBenchmark {
+  private static final Keyword DELIVERY_TAG = Keyword.intern(null, "delivery-tag");
+
+  /**
+   * lazy: default lazy metadata, eager: :eager-metadata? true,
+   * batch: :handle-batch-fn with batches of 64
+   */
+  @Param({"lazy", "eager", "batch"})
+  public String mode;
+
+  private Consumer consumer;
+  private AMQP.BasicProperties properties;
+  private byte[] body;
+  private long deliveryTag;
+
+  @Setup
+  public void setup(final Blackhole bh) {
+    IFn createDefault = Fakes.fn("langohr.consumers", "create-default");
+    Channel ch = Fakes.channel(new AtomicLong());
+    IFn handler = new AFn() {
+      @Override
+      public Object invoke(Object channel, Object metadata, Object body) {
+        bh.consume(((ILookup) metadata).valAt(DELIVERY_TAG));
+        return null;
+      }
+    };
+    IFn batchHandler = new AFn() {
+      @Override
+      public Object invoke(Object channel, Object batch) {
+        bh.consume(batch);
+        return null;
+      }
+    };
+    IFn hashMap = Clojure.var("clojure.core", "hash-map");
+    IPersistentMap handlers;
+    if (mode.equals("batch")) {
+      handlers = (IPersistentMap) hashMap.invoke(Clojure.read(":handle-batch-fn"), batchHandler,
+                                                 Clojure.read(":batch-size"), 64L);
+    } else {
+      handlers = (IPersistentMap) hashMap.invoke(Clojure.read(":handle-delivery-fn"), handler,
+                                                 Clojure.read(":eager-metadata?"), mode.equals("eager"));
+    }
+    consumer = (Consumer) createDefault.invoke(ch, handlers);
+    properties = Fakes.properties();
+    body = new byte[64];
+  }
+
+  @Benchmark
+  public void handleDelivery() throws Exception {
+    consumer.handleDelivery("amq.ctag-bench", Fakes.envelope(++deliveryTag), properties, body);
+  }
+}
@@ -0,0 +1,81 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.bench;
+
+import clojure.lang.IFn;
+import clojure.lang.Keyword;
+import com.novemberain.langohr.DeliveryMetadata;
+import com.novemberain.langohr.queue.DeclareOk;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Delivery;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.impl.AMQImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Delivery metadata conversion and PersistentMapLike method wrappers.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConversionBenchmark {
+  private static final Keyword ROUTING_KEY = Keyword.intern(null, "routing-key");
+  private static final Keyword QUEUE = Keyword.intern(null, "queue");
+
+  private IFn toMessageMetadata;
+  private Envelope envelope;
+  private AMQP.BasicProperties properties;
+  private Delivery delivery;
+  private AMQP.Queue.DeclareOk declareOk;
+
+  @Setup
+  public void setup() {
+    toMessageMetadata = Fakes.fn("langohr.conversion", "to-message-metadata");
+    envelope = Fakes.envelope(1);
+    properties = Fakes.properties();
+    delivery = new Delivery(envelope, properties, new byte[0]);
+    declareOk = new AMQImpl.Queue.DeclareOk("amq.gen-JzTY20BRgKO-HjmUJj0wLg", 1000, 3);
+  }
+
+  @Benchmark
+  public Object eagerMetadata() {
+    return toMessageMetadata.invoke(delivery);
+  }
+
+  @Benchmark
+  public Object eagerMetadataLookup() {
+    return ((clojure.lang.ILookup) toMessageMetadata.invoke(delivery)).valAt(ROUTING_KEY);
+  }
+
+  @Benchmark
+  public Object lazyMetadataLookup() {
+    return new DeliveryMetadata(envelope, properties).valAt(ROUTING_KEY);
+  }
+
+  @Benchmark
+  public Object lazyMetadataToPersistentMap() {
+    return new DeliveryMetadata(envelope, properties).toPersistentMap();
+  }
+
+  @Benchmark
+  public Object queueDeclareOkLookup() {
+    return new DeclareOk(declareOk).valAt(QUEUE);
+  }
+}
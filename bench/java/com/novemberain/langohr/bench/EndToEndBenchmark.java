@@ -0,0 +1,92 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.bench;
+
+import clojure.java.api.Clojure;
+import clojure.lang.AFn;
+import clojure.lang.IFn;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes batches of messages to a local RabbitMQ node (e.g. started with
+ * docker compose up) and waits for a subscribed consumer to receive them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EndToEndBenchmark {
+  private static final int BATCH = 1000;
+
+  @Param({"16", "4096"})
+  public int payloadSize;
+
+  private Connection connection;
+  private Channel publishingChannel;
+  private String queue;
+  private IFn publish;
+  private byte[] body;
+  private final Semaphore received = new Semaphore(0);
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    connection = (Connection) Fakes.fn("langohr.core", "connect").invoke();
+    IFn open = Fakes.fn("langohr.channel", "open");
+    publishingChannel = (Channel) open.invoke(connection);
+    Channel consumingChannel = (Channel) open.invoke(connection);
+    queue = consumingChannel.queueDeclare("", false, true, true, null).getQueue();
+    publish = Fakes.fn("langohr.basic", "publish");
+    body = new byte[payloadSize];
+
+    IFn handler = new AFn() {
+      @Override
+      public Object invoke(Object ch, Object metadata, Object body) {
+        received.release();
+        return null;
+      }
+    };
+    Fakes.fn("langohr.consumers", "subscribe")
+        .invoke(consumingChannel, queue, handler, Clojure.read("{:auto-ack true}"));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    connection.close();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public void publishAndConsume() throws Exception {
+    for (int i = 0; i < BATCH; i++) {
+      publish.invoke(publishingChannel, "", queue, body);
+    }
+    if (!received.tryAcquire(BATCH, 30, TimeUnit.SECONDS)) {
+      throw new IllegalStateException("timed out waiting for deliveries");
+    }
+  }
+}
@@ -0,0 +1,90 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.bench;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-JVM stand-ins for the objects benchmarks need, so that only Langohr
+ * code is measured.
+ */
+final class Fakes {
+  private Fakes() {
+  }
+
+  static void require(String ns) {
+    Clojure.var("clojure.core", "require").invoke(Clojure.read(ns));
+  }
+
+  static IFn fn(String ns, String name) {
+    require(ns);
+    return Clojure.var(ns, name);
+  }
+
+  /**
+   * @return a channel that counts basic.publish calls in the given counter
+   * and otherwise does nothing
+   */
+  static Channel channel(final AtomicLong published) {
+    return (Channel) Proxy.newProxyInstance(Fakes.class.getClassLoader(), new Class<?>[]{Channel.class},
+        (proxy, method, args) -> {
+          String name = method.getName();
+          if (name.equals("basicPublish")) {
+            published.incrementAndGet();
+            return null;
+          }
+          if (name.equals("toString")) {
+            return "fake channel";
+          }
+          if (name.equals("hashCode")) {
+            return System.identityHashCode(proxy);
+          }
+          if (name.equals("equals")) {
+            return proxy == args[0];
+          }
+          Class<?> t = method.getReturnType();
+          if (t == boolean.class) {
+            return Boolean.TRUE;
+          } else if (t == int.class) {
+            return 0;
+          } else if (t == long.class) {
+            return 0L;
+          }
+          return null;
+        });
+  }
+
+  static Envelope envelope(long deliveryTag) {
+    return new Envelope(deliveryTag, false, "amq.topic", "events.orders.created");
+  }
+
+  static AMQP.BasicProperties properties() {
+    return new AMQP.BasicProperties.Builder()
+        .contentType("application/json")
+        .contentEncoding("utf-8")
+        .deliveryMode(2)
+        .priority(0)
+        .messageId("6f1f4b0e-0a43-4a8e-9ad8-1d5a3e0c9d2f")
+        .correlationId("c-42")
+        .appId("billing")
+        .timestamp(new Date(1700000000000L))
+        .headers(Collections.<String, Object>singletonMap("tenant", "acme"))
+        .build();
+  }
+}
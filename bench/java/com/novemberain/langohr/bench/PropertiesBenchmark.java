@@ -0,0 +1,89 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.bench;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+import clojure.lang.IPersistentMap;
+import com.novemberain.langohr.basic.PropertiesTemplate;
+import com.rabbitmq.client.Channel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Message properties building and langohr.basic/publish overhead.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PropertiesBenchmark {
+  private IFn buildProperties;
+  private IFn publish;
+  private IFn assoc;
+  private Object messageId;
+  private IPersistentMap options;
+  private IPersistentMap overrides;
+  private PropertiesTemplate template;
+  private Channel channel;
+  private byte[] body;
+  private long counter;
+
+  @Setup
+  public void setup() {
+    buildProperties = Fakes.fn("langohr.basic", "build-properties");
+    publish = Fakes.fn("langohr.basic", "publish");
+    assoc = Clojure.var("clojure.core", "assoc");
+    messageId = Clojure.read(":message-id");
+    options = (IPersistentMap) Clojure.read("{:content-type \"application/json\" :persistent true " +
+                                            ":app-id \"billing\" :headers {\"tenant\" \"acme\"}}");
+    overrides = (IPersistentMap) Clojure.read("{:message-id \"6f1f4b0e\" :correlation-id \"c-42\"}");
+    template = (PropertiesTemplate) Fakes.fn("langohr.basic", "properties-template").invoke(options);
+    channel = Fakes.channel(new AtomicLong());
+    body = new byte[64];
+  }
+
+  @Benchmark
+  public Object buildProperties() {
+    return buildProperties.invoke(options);
+  }
+
+  @Benchmark
+  public Object templateWithOverrides() {
+    return template.with(overrides);
+  }
+
+  /**
+   * The same options map on every call, properties come from the identity cache.
+   */
+  @Benchmark
+  public Object publishWithConstantOptions() {
+    return publish.invoke(channel, "amq.topic", "events.orders.created", body, options);
+  }
+
+  /**
+   * A new options map on every call, e.g. with a per-message id.
+   */
+  @Benchmark
+  public Object publishWithPerMessageOptions() {
+    Object opts = assoc.invoke(options, messageId, Long.toString(counter++));
+    return publish.invoke(channel, "amq.topic", "events.orders.created", body, opts);
+  }
+}
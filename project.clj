@@ -16,7 +16,11 @@
                    :plugins [[lein-codox "0.10.8"]]
                    :codox {:source-paths ["src/clojure"]
                            :output-path "./docs"
-                           :source-uri "https://github.com/michaelklishin/langohr/blob/v{version}/{filepath}#L{line}"}}}
+                           :source-uri "https://github.com/michaelklishin/langohr/blob/v{version}/{filepath}#L{line}"}}
+             ;; JMH benchmarks, see CONTRIBUTING.md
+             :bench {:dependencies [[org.openjdk.jmh/jmh-core "1.37"]
+                                    [org.openjdk.jmh/jmh-generator-annprocess "1.37"]]
+                     :java-source-paths ["src/java" "bench/java"]}}
   :source-paths      ["src/clojure"]
   :java-source-paths ["src/java"]
   :javac-options     ["-target" "11" "-source" "11"]
@@ -28,7 +32,8 @@
                                        :snapshots true
                                        :releases {:checksum :fail :update :always}}}
   :deploy-repositories {"releases" {:url "https://repo.clojars.org" :creds :gpg}}
-  :aliases {"all" ["with-profile" "dev:dev,1.9:dev,1.10:dev,master"]}
+  :aliases {"all" ["with-profile" "dev:dev,1.9:dev,1.10:dev,master"]
+            "bench" ["with-profile" "+bench" "run" "-m" "org.openjdk.jmh.Main" "-prof" "gc"]}
   :global-vars {*warn-on-reflection* true}
   :jvm-opts ["-Xmx512m"]
   :test-selectors {:default        (fn [m]
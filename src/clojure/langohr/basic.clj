@@ -41,9 +41,15 @@
    * http://clojurerabbitmq.info/articles/exchanges.html"
   (:refer-clojure :exclude [get])
   (:require [langohr.conversion :refer [to-message-metadata]]
-            [clojurewerkz.support.bytes :refer [to-byte-array]])
+            [langohr.codecs :as codecs]
+            [clojurewerkz.support.bytes :refer [to-byte-array ByteSource]])
   (:import [com.rabbitmq.client AMQP AMQP$BasicProperties AMQP$BasicProperties$Builder Consumer GetResponse ReturnListener]
            [java.util Map Date]
+           [com.novemberain.langohr.basic PropertiesTemplate PropertiesCache Bodies EncodingBuffer
+            PipelinedPublisher OutboundBuffer EncodedHeaders]
+           java.util.concurrent.CompletableFuture
+           java.nio.ByteBuffer
+           clojure.lang.IPersistentMap
            com.rabbitmq.client.Channel))
 
 
@@ -51,6 +57,55 @@
 ;; API
 ;;
 
+(extend-protocol ByteSource
+  ByteBuffer
+  (to-byte-array [input]
+    (Bodies/fromByteBuffer input)))
+
+(defn ^AMQP$BasicProperties build-properties
+  "Instantiates message properties from a map of options.
+   See `publish` for the list of supported keys."
+  [{:keys [^String content-type ^String content-encoding headers
+           ^Boolean persistent ^Integer priority ^String correlation-id ^String reply-to ^String expiration ^String message-id
+           ^Date timestamp ^String type ^String user-id ^String app-id ^String cluster-id]}]
+  (.build (doto (AMQP$BasicProperties$Builder.)
+            (.contentType     content-type)
+            (.contentEncoding content-encoding)
+            (.headers         (EncodedHeaders/encode headers))
+            (.deliveryMode    (Integer/valueOf (if persistent 2 1)))
+            (.priority        (if priority (Integer/valueOf ^Long priority) nil))
+            (.correlationId   correlation-id)
+            (.replyTo         reply-to)
+            (.expiration      expiration)
+            (.messageId       message-id)
+            (.timestamp       timestamp)
+            (.type            type)
+            (.userId          user-id)
+            (.appId           app-id)
+            (.clusterId       cluster-id))))
+
+(def ^{:private true :tag PropertiesCache} properties-cache (PropertiesCache. 64))
+
+(defn- ^AMQP$BasicProperties properties-from
+  "Returns message properties for a map of publish options. Properties
+   built for a given map are cached by identity once the map is passed
+   a second time, so publishers that pass the same (e.g. literal) map on
+   every call only build them twice, while maps built per message are not cached.
+   Mutable (non-Clojure) option maps, and maps with a mutable :headers map,
+   are never cached."
+  [options]
+  (let [headers (clojure.core/get options :headers)]
+    (if (and (instance? IPersistentMap options)
+             (or (nil? headers) (instance? IPersistentMap headers)))
+      (or (.get properties-cache options)
+          (let [props (build-properties options)]
+            (when (.admit properties-cache options)
+              (.put properties-cache options props))
+            props))
+      (build-properties options))))
+
+(declare publish-encoded)
+
 (defn publish
   "Publishes a message using basic.publish AMQP 0.9.1 method.
 
@@ -61,17 +116,23 @@
   ^String :routing-key: the routing key for the message. Used for routing messages depending on exchange configuration.
 
   Payload can be anything the clojurewerkz.support.bytes/ByteSource protocol is extended for, Langohr ships with
-  an implementation for byte arrays and strings.
+  an implementation for byte arrays, strings and java.nio.ByteBuffers (the remaining bytes are published).
+  A heap buffer that wraps a whole array is published without copying. See also `publish-slice`
+  and `publish-encoded`.
 
   Options:
   ^Boolean :mandatory (default false): specifies reaction of server if the message can't be routed to a queue.
+  ^Boolean :encode (default false): encode payload with the langohr.codecs codec registered for
+                                    :content-type and :content-encoding (e.g. application/json and gzip)
 
 
   Basic properties:
 
     ^String :content content-type: MIME Content type
     ^String :content-encoding: MIME Content encoding
-    ^Map :headers: headers that will be passed to subscribers, given in Map format.
+    ^Map :headers: headers that will be passed to subscribers, given in Map format. Keyword keys
+                   and values of Clojure maps are turned into strings, e.g. {:tenant :acme}
+                   is published as {\"tenant\" \"acme\"}
     ^Boolean :persistent: should this message be persisted to disk?
     ^Integer :priority: message priority, number from 0 to 9
     ^String :correlation-id: application correlation identifier. Useful for cases when it's required to match request with the response.
@@ -90,32 +151,197 @@
   ([^Channel ch ^String exchange ^String routing-key payload]
      (publish ch exchange routing-key payload {}))
   ([^Channel channel ^String exchange ^String routing-key payload
-    {:keys [^Boolean mandatory ^String content-type ^String content-encoding ^Map headers
-            ^Boolean persistent ^Integer priority ^String correlation-id ^String reply-to ^String expiration ^String message-id
-            ^Date timestamp ^String type ^String user-id ^String app-id ^String cluster-id]
-     :or {mandatory false}}]
-     (let [bytes (to-byte-array payload)
-           pb    (doto (AMQP$BasicProperties$Builder.)
-                   (.contentType     content-type)
-                   (.contentEncoding content-encoding)
-                   (.headers         headers)
-                   (.deliveryMode    (Integer/valueOf (if persistent 2 1)))
-                   (.priority        (if priority (Integer/valueOf ^Long priority) nil))
-                   (.correlationId   correlation-id)
-                   (.replyTo         reply-to)
-                   (.expiration      expiration)
-                   (.messageId       message-id)
-                   (.timestamp       timestamp)
-                   (.type            type)
-                   (.userId          user-id)
-                   (.appId           app-id)
-                   (.clusterId       cluster-id))]
+    {:keys [^Boolean mandatory encode content-type content-encoding]
+     :or {mandatory false}
+     :as options}]
+     (if encode
+       (publish-encoded channel exchange routing-key payload
+                        (fn [value out]
+                          (codecs/encode-to value content-type content-encoding out))
+                        options)
        (.basicPublish channel
                       exchange
                       routing-key
                       mandatory
-                      (.build pb) bytes))))
+                      (properties-from options)
+                      (to-byte-array payload)))))
+
+(defn publish-slice
+  "Publishes length bytes of a byte array starting at offset using basic.publish AMQP 0.9.1 method.
+   Accepts the same options as `publish`.
+
+   The RabbitMQ Java client only accepts whole arrays, so a region that does not
+   span the entire array is copied once."
+  ([^Channel ch ^String exchange ^String routing-key ^bytes bytes offset length]
+     (publish-slice ch exchange routing-key bytes offset length {}))
+  ([^Channel channel ^String exchange ^String routing-key ^bytes bytes offset length
+    {:keys [^Boolean mandatory]
+     :or {mandatory false}
+     :as options}]
+     (.basicPublish channel
+                    exchange
+                    routing-key
+                    mandatory
+                    (properties-from options)
+                    (Bodies/slice bytes (int offset) (int length)))))
+
+(defn publish-encoded
+  "Encodes value with encoder into a reusable per-thread buffer and publishes the result
+   using basic.publish AMQP 0.9.1 method. Accepts the same options as `publish`.
+
+   encoder is a function of [value ^java.io.OutputStream out] that writes the encoded value
+   to out, which avoids producing an intermediate String and growing a fresh buffer per
+   message. The RabbitMQ Java client only accepts whole arrays, so the encoded bytes are
+   then copied once into a body-sized array, unless they fill the buffer exactly.
+
+   Example:
+
+      (lhb/publish-encoded ch \"\" \"events\" event
+                           (fn [v ^java.io.OutputStream out]
+                             (with-open [w (clojure.java.io/writer out)]
+                               (cheshire.core/generate-stream v w)))
+                           {:content-type \"application/json\"})"
+  ([^Channel ch ^String exchange ^String routing-key value encoder]
+     (publish-encoded ch exchange routing-key value encoder {}))
+  ([^Channel channel ^String exchange ^String routing-key value encoder
+    {:keys [^Boolean mandatory]
+     :or {mandatory false}
+     :as options}]
+     (let [buf (EncodingBuffer/acquire)]
+       (try
+         (encoder value buf)
+         ;; the Java client copies the body into frames, so the buffer
+         ;; can be reused as soon as basic.publish returns
+         (.basicPublish channel
+                        exchange
+                        routing-key
+                        mandatory
+                        (properties-from options)
+                        (.toBody buf))
+         (finally
+           (.release buf))))))
+
+(defn ^PropertiesTemplate properties-template
+  "Precompiles a map of publish options (the same keys `publish` accepts, including
+   :mandatory) into a template to be used with `publish-with-template`.
+
+   Example:
+
+      (let [t (lhb/properties-template {:content-type \"application/json\" :persistent true :app-id \"billing\"})]
+        (lhb/publish-with-template ch \"\" \"invoices\" payload t {:message-id msg-id}))"
+  [{:keys [mandatory] :or {mandatory false} :as options}]
+  (PropertiesTemplate. (build-properties options) (boolean mandatory)))
+
+(defn publish-with-template
+  "Publishes a message using basic.publish AMQP 0.9.1 method with properties from
+   a template created with `properties-template`.
+
+   Per-message overrides use the same keys as `publish` options, e.g. :message-id,
+   :correlation-id or :timestamp. Keys present in the overrides map replace template values."
+  ([^Channel channel ^String exchange ^String routing-key payload ^PropertiesTemplate template]
+     (.basicPublish channel
+                    exchange
+                    routing-key
+                    (.isMandatory template)
+                    (.getProperties template)
+                    (to-byte-array payload)))
+  ([^Channel channel ^String exchange ^String routing-key payload ^PropertiesTemplate template ^IPersistentMap overrides]
+     (.basicPublish channel
+                    exchange
+                    routing-key
+                    (.isMandatory template overrides)
+                    (.with template overrides)
+                    (to-byte-array payload))))
+
+
+(defn ^PipelinedPublisher pipelined-publisher
+  "Creates a publisher that lets many threads publish on the given channel without
+   contending for it: messages are enqueued into a bounded lock-free buffer and
+   published in batches by a dedicated writer thread. The channel must not be used
+   for publishing by anything else. Use `publish-pipelined` to publish and .close
+   (or with-open) to publish outstanding messages and stop the writer.
 
+   Options:
+
+     :capacity (default: 8192): number of messages that can be enqueued, publishers
+                                block when it is reached
+     :batch-size (default: 256): maximum number of messages published per batch
+     :confirms: when true, enables publisher confirms on the channel and waits for
+                them once per batch
+     :confirm-timeout (default: 30000): how long to wait for confirms of a batch,
+                                        in milliseconds
+     :metrics: a registry created with langohr.metrics/registry to record publishes
+               and, with :confirms, confirm latencies to, per exchange
+
+   The RabbitMQ Java client flushes the socket after every message unless NIO
+   is used (:use-nio? true in langohr.core/connect)."
+  ([^Channel channel]
+     (pipelined-publisher channel {}))
+  ([^Channel channel opts]
+     (PipelinedPublisher. channel opts)))
+
+(defn ^CompletableFuture publish-pipelined
+  "Enqueues a message to be published by a pipelined publisher. Accepts the same
+   options as `publish`.
+
+   Returns a CompletableFuture that is completed with true when the message was
+   published (and, with :confirms, acked by RabbitMQ), false when the batch it was
+   published in had a nack, or exceptionally if publishing failed. Throws an
+   InterruptedException if the thread is interrupted while the buffer is full."
+  ([^PipelinedPublisher p ^String exchange ^String routing-key payload]
+     (publish-pipelined p exchange routing-key payload {}))
+  ([^PipelinedPublisher p ^String exchange ^String routing-key payload
+    {:keys [mandatory] :or {mandatory false} :as opts}]
+     (.publish p
+               exchange
+               routing-key
+               (boolean mandatory)
+               (properties-from opts)
+               ^bytes (to-byte-array payload))))
+
+(defn ^OutboundBuffer outbound-buffer
+  "Creates a buffer that publishes on the given channel while the connection is
+   usable and holds messages in memory while it is not: while RabbitMQ blocks
+   the connection (connection.blocked, see langohr.core/add-blocked-listener) or
+   while the channel awaits recovery. Buffered messages are published in order
+   by a dedicated thread once the connection is unblocked or recovered. Use
+   `publish-buffered` to publish and .close (or with-open) to publish outstanding
+   messages and stop the thread.
+
+   Options:
+
+     :capacity (default: 10000): number of messages that can be buffered
+     :overflow (default: :block): what happens when the buffer is full,
+                                  :block (wait for room), :drop-oldest or :fail-fast
+                                  (throw an IllegalStateException)
+     :block-timeout: with :block, milliseconds to wait before throwing a TimeoutException
+     :on-drop: fn of a map of :exchange, :routing-key, :properties, :body, :reason
+               (:overflow, :failed or :closed) and :exception, called for messages that are
+               dropped or fail to publish on an open channel
+
+   Messages that were being published when the connection failed are published
+   again after recovery. A channel that will not be recovered (closed by the
+   application or a channel error, or without automatic recovery) ends buffering:
+   buffered messages are passed to :on-drop with the :closed reason and
+   `publish-buffered` throws an AlreadyClosedException."
+  ([^Channel channel]
+     (outbound-buffer channel {}))
+  ([^Channel channel opts]
+     (OutboundBuffer. channel opts)))
+
+(defn publish-buffered
+  "Publishes a message through an outbound buffer, or buffers it while the connection
+   is blocked or recovering. Accepts the same options as `publish`."
+  ([^OutboundBuffer b ^String exchange ^String routing-key payload]
+     (publish-buffered b exchange routing-key payload {}))
+  ([^OutboundBuffer b ^String exchange ^String routing-key payload
+    {:keys [mandatory] :or {mandatory false} :as opts}]
+     (.publish b
+               exchange
+               routing-key
+               (boolean mandatory)
+               (properties-from opts)
+               ^bytes (to-byte-array payload))))
 
 (defn ^ReturnListener return-listener
   "Creates new return listener. Usually used in order to be notified of failed deliveries when basic-publish is called with :mandatory or :immediate flags set, but
@@ -37,8 +37,9 @@
    Relevant guides:
 
    * http://clojurerabbitmq.info/articles/connecting.html"
+  (:require [langohr.shutdown :as lsh])
   (:import [com.rabbitmq.client Connection Channel]
-           com.novemberain.langohr.channel.FlowOk
+           [com.novemberain.langohr.channel FlowOk ChannelPool]
            com.rabbitmq.client.impl.recovery.AutorecoveringChannel))
 
 (defn ^Channel as-non-recovering-channel
@@ -76,3 +77,58 @@
   [^Channel channel]
   (.isOpen channel))
 (def closed? (complement open?))
+
+
+;;
+;; Pooling
+;;
+
+(defn ^ChannelPool pool
+  "Instantiates a pool of channels on given connection. Channels are opened
+   as needed and reused across borrowers, see `borrow` and `with-pooled-channel`.
+
+   Options:
+
+     :max-size (default: 16): maximum number of channels borrowed at a time
+     :borrow-timeout (default: wait indefinitely): how long, in milliseconds,
+                     to wait for a channel when all are borrowed. A
+                     java.util.concurrent.TimeoutException is thrown when it expires
+     :confirms: when true, publisher confirms are enabled on pooled channels
+     :thread-affinity: when true, threads get the channel they returned last
+                       back if it is still idle
+     :evict-when (default: langohr.shutdown/soft-error?): predicate of the
+                 ShutdownSignalException a channel was closed with that decides
+                 whether it is removed from the pool. Channels closed by connection
+                 errors are recovered together with the connection.
+
+   Close the pool with langohr.core/close or .close."
+  ([^Connection connection]
+     (pool connection {}))
+  ([^Connection connection opts]
+     (ChannelPool. connection (merge {:evict-when lsh/soft-error?} opts))))
+
+(defn ^Channel borrow
+  "Borrows a channel from the pool. It must be returned with `release`."
+  [^ChannelPool pool]
+  (.borrow pool))
+
+(defn release
+  "Returns a borrowed channel to the pool"
+  [^ChannelPool pool ^Channel ch]
+  (.release pool ch))
+
+(defmacro with-pooled-channel
+  "Evaluates body with a channel borrowed from the pool bound to the given name
+   and returns the channel to the pool afterwards:
+
+     (with-pooled-channel [ch pool]
+       (lb/publish ch \"\" \"events\" payload))
+
+   Channels closed by a channel exception in body are evicted from the pool."
+  [[sym pool] & body]
+  `(let [pool# ~pool
+         ~(vary-meta sym assoc :tag `Channel) (borrow pool#)]
+     (try
+       ~@body
+       (finally
+         (release pool# ~sym)))))
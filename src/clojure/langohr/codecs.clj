@@ -0,0 +1,192 @@
+;; This source code is dual-licensed under the Apache License, version
+;; 2.0, and the Eclipse Public License, version 1.0.
+;;
+;; The APL v2.0:
+;;
+;; ----------------------------------------------------------------------------------
+;; Copyright (c) 2011-2025 Michael S. Klishin, Alex Petrov, and the ClojureWerkz Team
+;;
+;; Licensed under the Apache License, Version 2.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;;
+;;     http://www.apache.org/licenses/LICENSE-2.0
+;;
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+;; ----------------------------------------------------------------------------------
+;;
+;; The EPL v1.0:
+;;
+;; ----------------------------------------------------------------------------------
+;; Copyright (c) 2011-2025 Michael S. Klishin, Alex Petrov, and the ClojureWerkz Team.
+;; All rights reserved.
+;;
+;; This program and the accompanying materials are made available under the terms of
+;; the Eclipse Public License Version 1.0,
+;; which accompanies this distribution and is available at
+;; http://www.eclipse.org/legal/epl-v10.html.
+;; ----------------------------------------------------------------------------------
+
+
+(ns langohr.codecs
+  "Message body codecs selected by content type and content encoding.
+
+   Decoders read from an InputStream over the message body and encoders
+   write to an OutputStream, so built-in codecs never produce an intermediate
+   String. Compressed bodies (content encoding gzip or deflate) are decompressed
+   and compressed as part of the same stream.
+
+   Built-in content types: application/json, application/edn, text/plain.
+   Additional content types and encodings (e.g. LZ4) can be registered with
+   `register-content-type!` and `register-content-encoding!`."
+  (:require [cheshire.core :as json]
+            [clojure.edn   :as edn]
+            [clojure.java.io :as io])
+  (:import [java.io InputStream OutputStream ByteArrayInputStream ByteArrayOutputStream
+            PushbackReader Writer]
+           [java.util.zip GZIPInputStream GZIPOutputStream InflaterInputStream DeflaterOutputStream]))
+
+;;
+;; Implementation
+;;
+
+(defn- ^Writer utf8-writer
+  [^OutputStream out]
+  (io/writer out :encoding "UTF-8"))
+
+(defn- decode-json
+  [^InputStream in]
+  ;; strict parsing: top-level arrays must not be read lazily
+  ;; from a stream that is closed right after decoding
+  (json/parse-stream-strict (io/reader in :encoding "UTF-8") true))
+
+(defn- encode-json
+  [value ^OutputStream out]
+  (with-open [w (utf8-writer out)]
+    (json/generate-stream value w)))
+
+(defn- decode-edn
+  [^InputStream in]
+  (with-open [r (PushbackReader. (io/reader in :encoding "UTF-8"))]
+    (edn/read r)))
+
+(defn- encode-edn
+  [value ^OutputStream out]
+  (with-open [w (utf8-writer out)]
+    (binding [*out*         w
+              *print-length* nil
+              *print-level*  nil
+              *print-meta*   false]
+      (pr value))))
+
+(defn- decode-text
+  [^InputStream in]
+  (slurp in :encoding "UTF-8"))
+
+(defn- encode-text
+  [value ^OutputStream out]
+  (with-open [w (utf8-writer out)]
+    (.write w (str value))))
+
+(defonce ^{:private true} content-types
+  (atom {"application/json" {:encode encode-json :decode decode-json}
+         "application/edn"  {:encode encode-edn  :decode decode-edn}
+         "text/plain"       {:encode encode-text :decode decode-text}}))
+
+(defonce ^{:private true} content-encodings
+  (atom {"gzip"    {:input-stream  (fn [^InputStream in] (GZIPInputStream. in))
+                    :output-stream (fn [^OutputStream out] (GZIPOutputStream. out))}
+         "deflate" {:input-stream  (fn [^InputStream in] (InflaterInputStream. in))
+                    :output-stream (fn [^OutputStream out] (DeflaterOutputStream. out))}}))
+
+(defn- codec-for
+  [^String content-type]
+  (when content-type
+    (let [m @content-types]
+      (or (get m content-type)
+          ;; e.g. application/json; charset=utf-8
+          (let [i (.indexOf content-type ";")]
+            (when (pos? i)
+              (get m (.trim (.substring content-type 0 i)))))))))
+
+(defn- encoding-for
+  [^String content-encoding]
+  (when content-encoding
+    (get @content-encodings content-encoding)))
+
+;;
+;; API
+;;
+
+(defn register-content-type!
+  "Registers a codec for a content type.
+
+   :encode => fn [value ^OutputStream out], must write the entire value and flush
+   :decode => fn [^InputStream in], returns the decoded value"
+  [^String content-type {:keys [encode decode] :as codec}]
+  (swap! content-types assoc content-type codec))
+
+(defn register-content-encoding!
+  "Registers a (compression) content encoding.
+
+   :input-stream  => fn [^InputStream in], returns a stream that decodes in
+   :output-stream => fn [^OutputStream out], returns a stream that encodes into out.
+                     Closing it must finish the encoding."
+  [^String content-encoding {:keys [input-stream output-stream] :as encoding}]
+  (swap! content-encodings assoc content-encoding encoding))
+
+(defn decode
+  "Decodes a message body according to :content-type and :content-encoding
+   of its metadata. Bodies of content types without a registered codec are returned
+   as byte arrays, decompressed if their content encoding is known."
+  [metadata ^bytes body]
+  (let [codec    (codec-for (get metadata :content-type))
+        encoding (encoding-for (get metadata :content-encoding))]
+    (if (or (nil? body)
+            (and (nil? codec) (nil? encoding)))
+      body
+      (let [in (ByteArrayInputStream. body)]
+        (with-open [^InputStream in' (if encoding
+                                       ((:input-stream encoding) in)
+                                       in)]
+          (if codec
+            ((:decode codec) in')
+            (let [out (ByteArrayOutputStream. (* 2 (alength body)))]
+              (io/copy in' out)
+              (.toByteArray out))))))))
+
+(defn encode-to
+  "Encodes value according to given content type and content encoding,
+   writing the result to out. Byte arrays and strings of content types without
+   a registered codec are written as is (compressed if content encoding is known).
+
+   out may be closed once the value is written."
+  [value ^String content-type ^String content-encoding ^OutputStream out]
+  (let [codec    (codec-for content-type)
+        encoding (encoding-for content-encoding)
+        out'     (if encoding
+                   ((:output-stream encoding) out)
+                   out)]
+    (if codec
+      ((:encode codec) value out')
+      (cond
+        (bytes? value)  (.write ^OutputStream out' ^bytes value)
+        (string? value) (.write ^OutputStream out' (.getBytes ^String value "UTF-8"))
+        :else           (throw (IllegalArgumentException.
+                                (str "no encoder registered for content type " content-type)))))
+    (when encoding
+      (.close ^OutputStream out'))))
+
+(defn encode
+  "Encodes value according to given content type and content encoding
+   and returns the result as a byte array"
+  ([value ^String content-type]
+     (encode value content-type nil))
+  ([value ^String content-type ^String content-encoding]
+     (let [out (ByteArrayOutputStream.)]
+       (encode-to value content-type content-encoding out)
+       (.toByteArray out))))
@@ -37,8 +37,11 @@
    Relevant guides:
 
    * http://clojurerabbitmq.info/articles/exchanges.html"
+  (:require [langohr.basic :as lhb]
+            [clojurewerkz.support.bytes :refer [to-byte-array]])
   (:import [com.rabbitmq.client ConfirmListener]
-           com.novemberain.langohr.confirm.SelectOk
+           [com.novemberain.langohr.confirm SelectOk ConfirmTracker]
+           java.util.concurrent.CompletableFuture
            com.rabbitmq.client.Channel))
 
 
@@ -95,3 +98,57 @@
      (.waitForConfirmsOrDie channel))
   ([^Channel channel ^long timeout]
      (.waitForConfirmsOrDie channel timeout)))
+
+;;
+;; Asynchronous confirm tracking
+;;
+
+(defn ^ConfirmTracker tracker
+  "Activates publishing confirms on given channel and returns a tracker
+   to be used with `publish-async`.
+
+   Options:
+
+     :max-in-flight (default: 1024): maximum number of messages awaiting a confirm.
+                                     Publishing blocks when this limit is reached.
+     :metrics: a registry created with langohr.metrics/registry to record publishes,
+               confirms and confirm latencies to, per exchange"
+  ([^Channel channel]
+     (tracker channel {}))
+  ([^Channel channel {:keys [max-in-flight metrics]
+                      :or {max-in-flight 1024}}]
+     (.confirmSelect channel)
+     (ConfirmTracker. channel (int max-in-flight) metrics)))
+
+(defn ^CompletableFuture publish-async
+  "Publishes a message on the tracker's channel and returns a CompletableFuture
+   that will be completed with true when the message is acked by RabbitMQ, false
+   when it is nacked, and exceptionally when the channel is closed first.
+
+   Accepts the same options as langohr.basic/publish, plus
+
+     :timeout: how long to wait (in milliseconds) for the in-flight window to have room.
+               A java.util.concurrent.TimeoutException is thrown when it expires.
+               Waits indefinitely by default.
+
+   Futures are completed on the connection's I/O thread, dependent
+   stages must not block."
+  ([^ConfirmTracker tracker ^String exchange ^String routing-key payload]
+     (publish-async tracker exchange routing-key payload {}))
+  ([^ConfirmTracker tracker ^String exchange ^String routing-key payload
+    {:keys [mandatory timeout]
+     :or {mandatory false timeout -1}
+     :as options}]
+     (.publish tracker
+               exchange
+               routing-key
+               (boolean mandatory)
+               (lhb/build-properties options)
+               ^bytes (to-byte-array payload)
+               (long timeout))))
+
+(defn in-flight
+  "Returns the number of messages published via given tracker
+   that are awaiting a confirm"
+  [^ConfirmTracker tracker]
+  (.getInFlight tracker))
@@ -39,16 +39,22 @@
 
    * http://clojurerabbitmq.info/articles/queues.html"
   (:require [langohr.basic :as lhb]
+            [langohr.codecs :as codecs]
             [langohr.conversion :refer :all]
             [langohr.channel :refer [as-non-recovering-channel]])
   (:import [com.rabbitmq.client Channel Consumer Delivery DefaultConsumer
             ShutdownSignalException Envelope AMQP$BasicProperties]
-           [com.novemberain.langohr FnConsumer]))
+           [com.novemberain.langohr FnConsumer DeliveryMetadata PrefetchTuner]))
 
 ;;
 ;; API
 ;;
 
+(def ^{:private true} consumer-option-keys
+  [:batch-size :batch-timeout :batch-executor :auto-ack
+   :worker-threads :worker-queue-size :worker-executor :order-by :on-dispatch
+   :virtual-threads :prefetch :metrics :adaptive-prefetch])
+
 (defn ^Consumer create-default
   "Instantiates and returns a new consumer that handles various consumer life cycle events.
    Various handlers can be provided (per below):
@@ -58,16 +64,72 @@
    :handle-cancel-ok-fn  => fn [consumer-tag]
    :handle-recover-ok-fn => fn [consumer-tag]
    :handle-delivery-fn   => fn [channel delivery-meta ^bytes body]
+   :handle-batch-fn      => fn [channel batch]
    :handle-shutdown-signal-fn => fn [tag, ShutdownSignalException]
 
+   Delivery metadata is passed to the delivery handler as a lazy map
+   (com.novemberain.langohr.DeliveryMetadata) that reads values from the envelope
+   and message properties on demand. Pass :eager-metadata? true to get
+   a regular persistent map produced by langohr.conversion/to-message-metadata instead.
+
+   When :batch-size is provided, deliveries are buffered and passed to :handle-batch-fn
+   as a vector of [delivery-meta body] pairs once :batch-size deliveries were received or
+   :batch-timeout milliseconds (default: 100) passed since the first delivery in the batch.
+   Unless :auto-ack is true, every batch is acknowledged with a single basic.ack with
+   the multiple flag set, or rejected and requeued with basic.nack if the handler throws.
+   :batch-executor is a ScheduledExecutorService used for batch timeouts. Batches are
+   handled one at a time on a thread dedicated to the consumer, never on that executor.
+
+   By default deliveries are handled on the connection's consumer work pool, one at a time
+   per channel. The following options hand them off to a worker pool dedicated to this consumer:
+
+   :worker-threads    => number of worker threads. Deliveries are handled in parallel and unordered
+                         unless :order-by is also provided
+   :order-by          => fn [delivery-meta] that returns an ordering key, e.g. :routing-key
+                         or #(get (:headers %) \"tenant\"). Deliveries with equal keys are handled
+                         in order on one of :worker-threads single-threaded lanes
+   :worker-queue-size => number of deliveries a pool (or lane) can hold before the consumer
+                         dispatch thread blocks (default: 1024)
+   :worker-executor   => an ExecutorService to use instead of a dedicated pool
+   :virtual-threads   => when true, every delivery is handled on a new virtual thread (JDK 21+),
+                         with at most :prefetch (default: 256) deliveries handled at a time
+   :on-dispatch       => fn [delivery-meta] called on the consumer dispatch thread, in delivery
+                         order, before each delivery is handed to a worker
+
+   Worker pools created by the consumer are shut down when it is cancelled or its channel
+   is closed, unless connection recovery will register the consumer again. Channels are safe
+   to acknowledge on from multiple threads.
+
+   :metrics => a registry created with langohr.metrics/registry (or another
+               com.novemberain.langohr.metrics.Metrics implementation) to record
+               delivery counts and handler, worker queue and batch ack latencies to
+
+   :adaptive-prefetch => a tuner created with `adaptive-prefetch` that adjusts the consumer's
+                         prefetch to handler latency, requires registering with `subscribe`
+
    See also langohr.basic/consume."
-  [^Channel channel handlers]
-  (->> (fn [h]
-         (when (some? h)
-           (fn [tag ^Envelope envelope ^AMQP$BasicProperties properties ^bytes body]
-             (h channel (to-message-metadata (Delivery. envelope properties body)) body))))
-       (update handlers :handle-delivery-fn)
-       (FnConsumer. channel)))
+  [^Channel channel {:keys [eager-metadata?] :as handlers}]
+  (let [options   (select-keys handlers consumer-option-keys)
+        delivery  (fn [h]
+                    (when (some? h)
+                      (if eager-metadata?
+                        (fn [tag ^Envelope envelope ^AMQP$BasicProperties properties ^bytes body]
+                          (h channel (to-message-metadata (Delivery. envelope properties body)) body))
+                        (fn [tag ^Envelope envelope ^AMQP$BasicProperties properties ^bytes body]
+                          (h channel (DeliveryMetadata. envelope properties) body)))))
+        batch     (fn [h]
+                    (when (some? h)
+                      (if eager-metadata?
+                        (fn [tag batch]
+                          (h channel (mapv (fn [[metadata body]]
+                                             [(to-message-metadata metadata) body])
+                                           batch)))
+                        (fn [tag batch]
+                          (h channel batch)))))
+        handlers' (-> (apply dissoc handlers :eager-metadata? consumer-option-keys)
+                      (update :handle-delivery-fn delivery)
+                      (update :handle-batch-fn batch))]
+    (FnConsumer. channel handlers' options)))
 
 
 (defn subscribe
@@ -75,27 +137,133 @@
 
    Consumer-related options will be passed to `create-default`. Consumer tag
    must be unique per queue. By default it will be generated by RabbitMQ and thus
-   guaranteed to be unique."
+   guaranteed to be unique.
+
+   Pass :eager-metadata? true to receive delivery metadata as a regular persistent
+   map instead of a lazy view (see `create-default`).
+
+   Pass :decode true to have message bodies decoded with the langohr.codecs codec
+   registered for their content type and content encoding before f is called.
+
+   Worker pool options (:worker-threads, :order-by, :worker-queue-size, :worker-executor,
+   :virtual-threads) are passed to `create-default`. With :virtual-threads, :prefetch also
+   bounds the number of deliveries handled concurrently.
+
+   When :prefetch is provided, basic.qos is issued with that value before the consumer
+   is registered.
+
+   When :adaptive-prefetch is provided (a tuner created with `adaptive-prefetch`), the
+   per-consumer prefetch is set to the tuner's initial value instead and then adjusted
+   periodically to the consumer's service time and round trip time to RabbitMQ. The
+   consumer should have a channel of its own. Use `prefetch-stats` to see current values.
+   Every adjustment re-subscribes the consumer under a new server-generated tag, so the
+   returned tag is only valid until the first one: cancel the consumer with the
+   :consumer-tag from `prefetch-stats`. Exclusive consumers and stream consumers
+   (with x-stream-offset in :arguments) cannot be re-subscribed and are rejected.
+
+   When :batch-size is provided, f is called with a channel and a vector of [metadata body]
+   pairs instead of once per delivery, and batches are acknowledged with a single
+   basic.ack with the multiple flag set (see `create-default` for :batch-timeout and
+   :batch-executor). The batch size is capped at :prefetch so that a batch never waits
+   for deliveries RabbitMQ will not send before the previous ones are acknowledged.
+   Since multiple acknowledgements cover every delivery on the channel up to the given tag,
+   batching consumers should use a dedicated channel."
   ([^Channel ch ^String queue f]
      (subscribe ch queue f {}))
   ([^Channel ch ^String queue f options]
-     (let [keys      [:handle-consume-ok :handle-cancel :handle-cancel-ok :handle-recover-ok :handle-shutdown-signal]
-           keys      (concat keys (map #(keyword (str (name %) "-fn")) keys))
-           cons-opts (select-keys options keys)
-           options'  (dissoc options keys)
-           consumer  (create-default ch
-                                     {:handle-delivery-fn f
-                                      :handle-consume-ok-fn      (or (get cons-opts :handle-consume-ok-fn)
-                                                                     (get cons-opts :handle-consume-ok))
-                                      :handle-cancel-ok-fn       (or (get cons-opts :handle-cancel-ok-fn)
-                                                                     (get cons-opts :handle-cancel-ok))
-                                      :handle-cancel-fn          (or (get cons-opts :handle-cancel-fn)
-                                                                     (get cons-opts :handle-cancel))
-                                      :handle-recover-ok-fn      (or (get cons-opts :handle-recover-ok-fn)
-                                                                     (get cons-opts :handle-recover-ok))
-                                      :handle-shutdown-signal-fn (or (get cons-opts :handle-shutdown-signal-fn)
-                                                                     (get cons-opts :handle-shutdown-signal))})]
-       (lhb/consume ch queue consumer options'))))
+     (let [keys       [:handle-consume-ok :handle-cancel :handle-cancel-ok :handle-recover-ok :handle-shutdown-signal]
+           keys       (concat keys (map #(keyword (str (name %) "-fn")) keys))
+           cons-opts  (select-keys options keys)
+           options'   (dissoc options keys)
+           f          (if (get options :decode)
+                        (if (get options :batch-size)
+                          (fn [ch batch]
+                            (f ch (mapv (fn [[metadata body]]
+                                          [metadata (codecs/decode metadata body)])
+                                        batch)))
+                          (fn [ch metadata body]
+                            (f ch metadata (codecs/decode metadata body))))
+                        f)
+           prefetch   (get options :prefetch)
+           ^PrefetchTuner
+           tuner      (get options :adaptive-prefetch)
+           batch-size (when-let [n (get options :batch-size)]
+                        (if (and prefetch (pos? prefetch))
+                          (min n prefetch)
+                          n))
+           _          (when (and tuner (or (get options :exclusive)
+                                           (contains? (get options :arguments) "x-stream-offset")))
+                        (throw (IllegalArgumentException.
+                                "adaptive prefetch re-subscribes the consumer on every adjustment, which exclusive and stream consumers do not support")))
+           _          (cond
+                        tuner    (.basicQos ch (.getPrefetch tuner) false)
+                        prefetch (lhb/qos ch prefetch))
+           ^FnConsumer
+           consumer   (create-default ch
+                                      (cond-> (merge
+                                               (select-keys options consumer-option-keys)
+                                               {:eager-metadata?           (get options :eager-metadata? false)
+                                                :handle-consume-ok-fn      (or (get cons-opts :handle-consume-ok-fn)
+                                                                               (get cons-opts :handle-consume-ok))
+                                                :handle-cancel-ok-fn       (or (get cons-opts :handle-cancel-ok-fn)
+                                                                               (get cons-opts :handle-cancel-ok))
+                                                :handle-cancel-fn          (or (get cons-opts :handle-cancel-fn)
+                                                                               (get cons-opts :handle-cancel))
+                                                :handle-recover-ok-fn      (or (get cons-opts :handle-recover-ok-fn)
+                                                                               (get cons-opts :handle-recover-ok))
+                                                :handle-shutdown-signal-fn (or (get cons-opts :handle-shutdown-signal-fn)
+                                                                               (get cons-opts :handle-shutdown-signal))})
+                                        (nil? batch-size) (assoc :handle-delivery-fn f)
+                                        batch-size        (assoc :handle-batch-fn f
+                                                                 :batch-size      batch-size)))
+           tag        (lhb/consume ch queue consumer options')]
+       (when tuner
+         (.resubscribeWith tuner tag (fn [old]
+                                       ;; register first so that an auto-delete queue
+                                       ;; never goes without consumers
+                                       (.beginResubscribe consumer)
+                                       (let [t (lhb/consume ch queue consumer (assoc options' :consumer-tag ""))]
+                                         (lhb/cancel ch old)
+                                         t))))
+       tag)))
+
+(defn ^PrefetchTuner adaptive-prefetch
+  "Creates a prefetch tuner to pass as :adaptive-prefetch to `subscribe`
+   (or `create-default`). A tuner can be used by a single consumer.
+
+   Every :interval milliseconds (default: 1000) the tuner sets the channel's
+   prefetch to the number of deliveries that keeps the consumer busy for a round trip
+   to RabbitMQ, i.e. capacity * (1 + round trip / service time) * :headroom (default: 1.5).
+   Capacity is the number of deliveries the consumer handles at a time: 1 by default,
+   :worker-threads with a worker pool, or the batch size of a batching consumer.
+   Service time is measured around the delivery (or batch) handler, round trips
+   with the basic.qos calls the tuner makes.
+
+   Options:
+
+   :min, :max => bounds for the prefetch (default: 1 and 1000)
+   :initial   => prefetch to start with (default: 16)
+   :interval  => milliseconds between adjustments
+   :headroom  => multiplier for the computed value
+   :executor  => a ScheduledExecutorService to run adjustments on
+
+   The prefetch changes by at most a factor of two per interval. The per-consumer
+   limit is used, since quorum queues and streams reject the channel-wide (global) one,
+   and it only applies to consumers registered after it: `subscribe` re-subscribes
+   the consumer on every adjustment, see its docstring."
+  ([]
+     (adaptive-prefetch {}))
+  ([options]
+     (PrefetchTuner. options)))
+
+(defn prefetch-stats
+  "Returns a map of the current :prefetch, the :target it is moving towards,
+   the consumer's :capacity, :service-time and :round-trip (moving averages
+   in milliseconds), :rate (handler invocations per second), :adjustments
+   (number of times prefetch was changed) and the :consumer-tag of the consumer's
+   current registration of a tuner created with `adaptive-prefetch`"
+  [^PrefetchTuner tuner]
+  (.stats tuner))
 
 (defn ack-unless-exception
   "Wrapper for delivery handlers which auto-acks messages.
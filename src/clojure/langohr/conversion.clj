@@ -73,6 +73,10 @@
      :cluster-id       (.getClusterId input)})
 
 
+  com.novemberain.langohr.DeliveryMetadata
+  (to-message-metadata [input]
+    (.toPersistentMap input))
+
   com.rabbitmq.client.Delivery
   (to-message-metadata [input]
     (merge (to-message-metadata (.getProperties input))
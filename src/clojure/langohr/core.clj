@@ -39,12 +39,13 @@
 
     * http://clojurerabbitmq.info/articles/connecting.html
     * http://clojurerabbitmq.info/articles/tls.html"
-  (:import [com.rabbitmq.client Connection Channel Address
+  (:import [com.rabbitmq.client Connection Channel Address AddressResolver
                                 ConnectionFactory ShutdownListener BlockedListener
                                 Consumer TopologyRecoveryException
                                 ExceptionHandler Recoverable RecoveryListener DefaultSaslConfig]
            [com.rabbitmq.client.impl ForgivingExceptionHandler AMQConnection]
            [com.rabbitmq.client.impl.recovery AutorecoveringConnection QueueRecoveryListener RetryHandler]
+           [com.novemberain.langohr VirtualThreads ConnectionGroup PreferredOrderAddressResolver]
            clojure.lang.IFn
            java.util.concurrent.ThreadFactory
            [javax.net SocketFactory])
@@ -73,6 +74,18 @@
   (close [this] (.close this))
 
   com.rabbitmq.client.Channel
+  (close [this] (.close this))
+
+  com.novemberain.langohr.channel.ChannelPool
+  (close [this] (.close this))
+
+  ConnectionGroup
+  (close [this] (.close this))
+
+  com.novemberain.langohr.basic.PipelinedPublisher
+  (close [this] (.close this))
+
+  com.novemberain.langohr.queue.StatusPoller
   (close [this] (.close this)))
 
 
@@ -87,9 +100,13 @@
 
   com.rabbitmq.client.Channel
   (open? [ch] (.isOpen ch))
-  (closed? [ch] (not (.isOpen ch))))
+  (closed? [ch] (not (.isOpen ch)))
+
+  ConnectionGroup
+  (open? [g] (.isOpen g))
+  (closed? [g] (not (.isOpen g))))
 
-(declare create-connection-factory normalize-settings)
+(declare create-connection-factory normalize-settings with-virtual-threads)
 (defn- address-array-from
   [addresses port]
   (into-array Address
@@ -101,7 +118,16 @@
                    (remove nil? addresses))))
 
 (defn ^Connection connect
-  "Creates and returns a new connection to RabbitMQ."
+  "Creates and returns a new connection to RabbitMQ.
+
+   Pass :virtual-threads true to dispatch deliveries to consumers and run connection
+   I/O on virtual threads (JDK 21 or later). Explicitly provided :executor and
+   :thread-factory settings take precedence.
+
+   Pass :topology-recovery-channels n to recover exchanges, queues and bindings on
+   n channels in parallel, with queue.declare and queue.bind pipelined (nowait) in
+   batches of :topology-recovery-batch-size (default: 256), which is considerably
+   faster for large topologies. See on-topology-recovery-progress."
   ;; defaults
   ([]
      (let [^ConnectionFactory cf (create-connection-factory {})]
@@ -109,12 +135,55 @@
          .init)))
   ;; settings
   ([settings]
-     (let [settings'             (normalize-settings settings)
+     (let [settings'             (cond-> (normalize-settings settings)
+                                   (:virtual-threads settings) with-virtual-threads)
            ^ConnectionFactory cf (create-connection-factory settings')
            xs                    (address-array-from (get settings' :hosts #{})
                                                      (get settings' :port))]
-       (doto (com.novemberain.langohr.Connection. cf (dissoc settings' :password :username))
-         (.init xs)))))
+       (let [conn (com.novemberain.langohr.Connection. cf (dissoc settings' :password :username))]
+         (if-let [^AddressResolver resolver (get settings' :address-resolver)]
+           (.init conn resolver)
+           (.init conn ^"[Lcom.rabbitmq.client.Address;" xs))))))
+
+(defn ^ConnectionGroup connect-group
+  "Opens a group of connections (shards) to RabbitMQ that is used as one logical
+   publisher, so that publishing throughput is not limited by a single connection.
+   See langohr.shards for publishing and listener functions.
+
+   Takes the same settings as `connect`, plus
+
+     :shards: number of connections to open (default: number of hosts, at least 2)
+     :spread (default: true): when true, shard i prefers host i (modulo the number of
+             hosts) and falls back to the others. Otherwise all shards prefer the first
+             reachable host
+     :channel-pool: langohr.channel/pool options for the per-shard channel pools
+
+   Connection names get a -<shard> suffix."
+  [settings]
+  (let [settings' (normalize-settings settings)
+        addresses (vec (or (seq (address-array-from (get settings' :hosts #{})
+                                                    (get settings' :port)))
+                           [(Address. ^String (get settings' :host) (int (get settings' :port)))]))
+        n         (get settings :shards (max 2 (count addresses)))
+        spread?   (get settings :spread true)
+        cn        (get settings :connection-name)
+        pool-opts (get settings :channel-pool {})
+        settings  (dissoc settings :shards :spread :channel-pool)
+        shard     (fn [i]
+                    (let [k      (if spread? (mod i (count addresses)) 0)
+                          addrs  (into (subvec addresses k) (subvec addresses 0 k))]
+                      (connect (cond-> (assoc settings :address-resolver (PreferredOrderAddressResolver. addrs))
+                                 cn (assoc :connection-name (str cn "-" i))))))
+        conns     (reduce (fn [acc i]
+                            (try
+                              (conj acc (shard i))
+                              (catch Exception e
+                                (doseq [^Connection c acc]
+                                  (.abort c))
+                                (throw e))))
+                          []
+                          (range n))]
+    (ConnectionGroup. conns pool-opts)))
 
 (defn ^Channel create-channel
   "Delegates to langohr.channel/open, kept for backwards compatibility"
@@ -209,6 +278,16 @@
                                     (^void handleRecovery [this ^Recoverable it]
                                       (recovery-finished-fn it))))))
 
+(defn on-topology-recovery-progress
+  "Registers a callback that is called with a map of :phase (:exchanges, :queues,
+   :bindings and finally :done), :recovered, :failed, :total and :elapsed (milliseconds)
+   as topology is recovered. Requires parallel topology recovery, see
+   :topology-recovery-channels in `connect`. The callback may be called concurrently."
+  [^com.novemberain.langohr.Connection conn ^IFn f]
+  (if-let [ptr (.getParallelTopologyRecovery conn)]
+    (.addProgressListener ptr f)
+    (throw (IllegalStateException. "parallel topology recovery is not enabled on this connection"))))
+
 (defn ^QueueRecoveryListener queue-recovery-listener
   "Reifies a new queue recovery listener that delegates
    to a Clojure function."
@@ -236,6 +315,20 @@
     (^Thread newThread [this ^Runnable r]
       (f r))))
 
+(defn virtual-threads-supported?
+  "Returns true if the JVM supports virtual threads (JDK 21 or later)"
+  []
+  (VirtualThreads/isSupported))
+
+(defn ^ThreadFactory virtual-thread-factory
+  "Instantiates a java.util.concurrent.ThreadFactory that creates virtual
+   threads named with the given prefix. Throws UnsupportedOperationException
+   on JDKs without virtual threads."
+  ([]
+     (virtual-thread-factory "langohr-virtual-"))
+  ([^String prefix]
+     (VirtualThreads/newThreadFactory prefix)))
+
 (defn exception-handler
   [{:keys [handle-connection-exception-fn
            handle-return-listener-exception-fn
@@ -293,6 +386,14 @@
                        ConnectionFactory/DEFAULT_AMQP_PORT)]
     (update settings' :port #(or % default-port))))
 
+(defn- with-virtual-threads
+  [settings]
+  (cond-> settings
+    (nil? (:executor settings))       (assoc :executor (VirtualThreads/newThreadPerTaskExecutor
+                                                        "langohr-consumer-dispatch-"))
+    (nil? (:thread-factory settings)) (assoc :thread-factory (virtual-thread-factory
+                                                              "langohr-connection-"))))
+
 (defn- platform-string
   []
   (format "Clojure %s on %s %s"
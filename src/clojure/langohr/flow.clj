@@ -0,0 +1,156 @@
+;; This source code is dual-licensed under the Apache License, version
+;; 2.0, and the Eclipse Public License, version 1.0.
+;;
+;; The APL v2.0:
+;;
+;; ----------------------------------------------------------------------------------
+;; Copyright (c) 2011-2025 Michael S. Klishin, Alex Petrov, and the ClojureWerkz Team
+;;
+;; Licensed under the Apache License, Version 2.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;;
+;;     http://www.apache.org/licenses/LICENSE-2.0
+;;
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+;; ----------------------------------------------------------------------------------
+;;
+;; The EPL v1.0:
+;;
+;; ----------------------------------------------------------------------------------
+;; Copyright (c) 2011-2025 Michael S. Klishin, Alex Petrov, and the ClojureWerkz Team.
+;; All rights reserved.
+;;
+;; This program and the accompanying materials are made available under the terms of
+;; the Eclipse Public License Version 1.0,
+;; which accompanies this distribution and is available at
+;; http://www.eclipse.org/legal/epl-v10.html.
+;; ----------------------------------------------------------------------------------
+
+
+(ns langohr.flow
+  "Reactive streams (java.util.concurrent.Flow) adapters with end-to-end
+   back-pressure: queue subscriptions as publishers and confirm-tracking
+   publishing as subscribers.
+
+   Relevant guides:
+
+   * http://clojurerabbitmq.info/articles/queues.html
+   * http://clojurerabbitmq.info/articles/exchanges.html"
+  (:require [langohr.confirm :as lcf])
+  (:import [com.novemberain.langohr.flow QueuePublisher ConfirmingSubscriber]
+           com.novemberain.langohr.confirm.ConfirmTracker
+           com.rabbitmq.client.Channel
+           [java.util.concurrent CompletableFuture Executor ForkJoinPool Flow$Publisher
+            Flow$Subscriber Flow$Subscription]))
+
+;;
+;; API
+;;
+
+(defn ^QueuePublisher publisher
+  "Returns a java.util.concurrent.Flow$Publisher of [metadata body] pairs
+   delivered from the given queue. The consumer is registered when a subscriber
+   subscribes, only one subscriber is supported.
+
+   Deliveries are handed to the subscriber as it requests them and acknowledged
+   after its onNext returns. Since RabbitMQ never sends more than :prefetch
+   unacknowledged deliveries, memory use is bounded and a slow subscriber
+   slows down consumption from the queue.
+
+   Options:
+
+     :prefetch (default: 256): basic.qos prefetch used for the consumer
+     :manual-ack: when true, deliveries are not acknowledged automatically
+     :consumer-tag: consumer tag to use, generated by RabbitMQ by default
+
+   The channel should be dedicated to the publisher since basic.qos is issued on it."
+  ([^Channel ch ^String queue]
+     (publisher ch queue {}))
+  ([^Channel ch ^String queue opts]
+     (QueuePublisher. ch queue opts)))
+
+(defn ^ConfirmingSubscriber subscriber
+  "Returns a java.util.concurrent.Flow$Subscriber that publishes every element
+   it receives via the given tracker (see langohr.confirm/tracker) and requests
+   a new element for every confirm that arrives.
+
+   Elements are used as message payloads and published to the given exchange
+   with the given routing key and langohr.basic/publish options. Pass :publish-fn,
+   a function of a tracker and an element that calls langohr.confirm/publish-async,
+   to publish elements in any other way.
+
+   Options:
+
+     :max-outstanding (default: the tracker's maximum): number of elements that
+                      can be awaiting a confirm at a time
+     :executor (default: the common ForkJoinPool): executor demand is signalled on
+
+   Use `completion` to find out when all elements were published and confirmed."
+  ([^ConfirmTracker tracker ^String exchange ^String routing-key]
+     (subscriber tracker exchange routing-key {}))
+  ([^ConfirmTracker tracker ^String exchange ^String routing-key
+    {:keys [publish-fn max-outstanding executor] :as opts}]
+     (let [opts' (dissoc opts :publish-fn :max-outstanding :executor)
+           f     (or publish-fn
+                     (fn [tracker payload]
+                       (lcf/publish-async tracker exchange routing-key payload opts')))]
+       (ConfirmingSubscriber. tracker
+                              f
+                              (int (or max-outstanding (.getMaxInFlight tracker)))
+                              (or executor (ForkJoinPool/commonPool))))))
+
+(defn ^CompletableFuture completion
+  "Returns a CompletableFuture that completes when the subscriber's upstream
+   completes and every element published by it is confirmed, or exceptionally
+   on the first nack or error"
+  [^ConfirmingSubscriber s]
+  (.getCompletion s))
+
+(defn pipe
+  "Subscribes to the given Flow$Publisher and hands elements to put!, a function
+   of an element and a callback that has to be invoked with true once the element
+   was accepted or false if no more elements will be accepted. This is the
+   contract of clojure.core.async/put!, which makes for a bounded bridge into
+   a core.async channel:
+
+     (pipe (publisher ch q) (fn [v cb] (async/put! c v cb))
+           {:on-complete #(async/close! c)})
+
+   No more than :in-flight (default: 1) elements are handed over without having
+   been accepted, so a full core.async buffer stops consumption.
+
+   Options:
+
+     :on-complete: function of no arguments called when the publisher completes
+     :on-error: function of a Throwable called when the publisher fails,
+                defaults to :on-complete
+
+   Returns nil."
+  ([^Flow$Publisher p put!]
+     (pipe p put! {}))
+  ([^Flow$Publisher p put! {:keys [in-flight on-complete on-error]
+                            :or {in-flight 1}}]
+     (let [sub (volatile! nil)]
+       (.subscribe p (reify Flow$Subscriber
+                       (onSubscribe [_ s]
+                         (vreset! sub s)
+                         (.request s (long in-flight)))
+                       (onNext [_ item]
+                         (let [^Flow$Subscription s @sub]
+                           (put! item (fn [accepted?]
+                                        (if accepted?
+                                          (.request s 1)
+                                          (.cancel s))))))
+                       (onError [_ t]
+                         (cond
+                           on-error    (on-error t)
+                           on-complete (on-complete)))
+                       (onComplete [_]
+                         (when on-complete
+                           (on-complete)))))
+       nil)))
@@ -0,0 +1,97 @@
+;; This source code is dual-licensed under the Apache License, version
+;; 2.0, and the Eclipse Public License, version 1.0.
+;;
+;; The APL v2.0:
+;;
+;; ----------------------------------------------------------------------------------
+;; Copyright (c) 2011-2025 Michael S. Klishin, Alex Petrov, and the ClojureWerkz Team
+;;
+;; Licensed under the Apache License, Version 2.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;;
+;;     http://www.apache.org/licenses/LICENSE-2.0
+;;
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+;; ----------------------------------------------------------------------------------
+;;
+;; The EPL v1.0:
+;;
+;; ----------------------------------------------------------------------------------
+;; Copyright (c) 2011-2025 Michael S. Klishin, Alex Petrov, and the ClojureWerkz Team.
+;; All rights reserved.
+;;
+;; This program and the accompanying materials are made available under the terms of
+;; the Eclipse Public License Version 1.0,
+;; which accompanies this distribution and is available at
+;; http://www.eclipse.org/legal/epl-v10.html.
+;; ----------------------------------------------------------------------------------
+
+
+(ns langohr.headers
+  "Functions that work with message headers.
+
+   Consumers get headers as a com.novemberain.langohr.HeadersView, a map
+   with string keys that decodes values only when they are looked up. Long
+   strings are returned as strings, so (get headers \"tenant\") needs no
+   further conversion. The functions below read typed values without
+   decoding or boxing them.
+
+   Publishers can pass headers as a Clojure map with keyword keys,
+   see langohr.basic/publish."
+  (:import [com.novemberain.langohr HeadersView]
+           [com.novemberain.langohr.basic EncodedHeaders]
+           java.util.Map))
+
+;;
+;; API
+;;
+
+(defn ^HeadersView view
+  "Returns a view of a headers table (e.g. from message properties)
+   that decodes values on demand. Returns views as they are, nil for nil."
+  [headers]
+  (if (or (nil? headers) (instance? HeadersView headers))
+    headers
+    (HeadersView. ^Map headers)))
+
+(defn ^String get-string
+  "Returns the value of a header as a string, or nil if it is not set"
+  [headers ^String k]
+  (when-let [v (view headers)]
+    (.getString v k)))
+
+(defn get-long
+  "Returns the value of a numeric header as a long, parsing string values,
+   or not-found if the header is not set"
+  ^long [headers ^String k ^long not-found]
+  (if-let [v (view headers)]
+    (.getLong v k not-found)
+    not-found))
+
+(defn get-boolean
+  "Returns the value of a boolean header, or not-found if the header is not set.
+   String values are true when they are equal to \"true\", ignoring case."
+  [headers ^String k not-found]
+  (if-let [v (view headers)]
+    (.getBoolean v k (boolean not-found))
+    (boolean not-found)))
+
+(defn get-timestamp
+  "Returns the value of a timestamp header in milliseconds since the epoch,
+   or not-found if the header is not set"
+  ^long [headers ^String k ^long not-found]
+  (if-let [v (view headers)]
+    (.getTimestamp v k not-found)
+    not-found))
+
+(defn ^Map encode
+  "Returns a headers table for a Clojure map with keyword (or string) keys.
+   Conversion happens as the table is read, the map is not copied.
+   langohr.basic/publish does this automatically."
+  [headers]
+  (EncodedHeaders/encode headers))
@@ -2,9 +2,11 @@
   (:require [cheshire.core :as json]
             [hato.client :as hato.client]
             [clojure.string :as str])
-  (:import [java.util.concurrent Executors ThreadFactory]
+  (:import [java.util.concurrent Executors ThreadFactory CompletableFuture]
            [java.util.concurrent.atomic AtomicLong]
-           [java.net URLEncoder]))
+           [java.util.function Function]
+           [java.net URLEncoder]
+           [com.novemberain.langohr.http JsonItems ResponseCache]))
 
 (defonce DEFAULT-CLIENT
   (delay
@@ -53,12 +55,25 @@
 (defn- basic-auth*  [user password] {:basic-auth {:user user :pass password}})
 (defn- with-client* [c] (or c @DEFAULT-CLIENT))
 
+(defn- endpoint-of
+  "The first path segment after /api/ as a keyword, e.g. :queues"
+  [uri]
+  (some-> (re-find #"/api/([^/?]+)" uri) second keyword))
+
+(defn- invalidate-cached*
+  "Drops cached responses of the endpoint modified by a request"
+  [uri options]
+  (when-let [^ResponseCache c (:cache options)]
+    (.invalidate c ^clojure.lang.Keyword (endpoint-of uri))))
+
 (defn GET
   ([uri]
    (GET uri {}))
   ([uri options]
    (io!
-    (->> (update options :http-client with-client*)
+    (->> (-> options
+             (dissoc :cache)
+             (update :http-client with-client*))
          (merge default-http-opts)
          (hato.client/get uri)))))
 
@@ -77,10 +92,12 @@
   ([uri options]
    (io!
     (->> (-> options
+             (dissoc :cache)
              (update :body json/generate-string)
              (update :http-client with-client*))
          (merge default-http-opts)
          (hato.client/post uri))
+    (invalidate-cached* uri options)
     true)))
 
 (defn PUT
@@ -89,10 +106,12 @@
   ([uri options]
    (io!
     (->> (-> options
+             (dissoc :cache)
              (update :body json/generate-string)
              (update :http-client with-client*))
          (merge default-http-opts)
          (hato.client/put uri))
+    (invalidate-cached* uri options)
     true)))
 
 (defn DELETE
@@ -101,10 +120,12 @@
   ([uri options]
    (io!
     (->> (-> options
+             (dissoc :cache)
              (update :body json/generate-string)
              (update :http-client with-client*))
          (merge default-http-opts)
          (hato.client/delete uri))
+    (invalidate-cached* uri options)
     true)))
 
 (defn- not-found?
@@ -117,6 +138,10 @@
     "amqps"
     (str/lower-case proto)))
 
+(defn- success?
+  [status]
+  (and status (<= 200 status 299)))
+
 (defn- maybe-parse-json
   "Try to parse json response. If the content-type is not json, just return the body (string)."
   [{body :body {content-type "content-type"} :headers}]
@@ -129,7 +154,16 @@
   ([uri]
    (get-json* uri {}))
   ([uri options]
-   (maybe-parse-json (GET uri options))))
+   (if-let [^ResponseCache c (:cache options)]
+     ;; responses depend on the credentials, error responses are not cached
+     (.get c [uri (:query-params options) (:basic-auth options)]
+           (endpoint-of uri)
+           (fn []
+             (let [{:keys [status] :as response} (GET uri options)]
+               (if (success? status)
+                 (maybe-parse-json response)
+                 (ResponseCache/uncached (maybe-parse-json response))))))
+     (maybe-parse-json (GET uri options)))))
 
 (defn- url-encode
   ^String [^String fragment]
@@ -643,3 +677,226 @@
   ([{:keys [endpoint username password]} vhost opts]
    (-> (str endpoint "/api/aliveness-test/" (url-encode vhost))
        (get-json* (merge opts (basic-auth* username password))))))
+
+;; =====
+;; Caching
+;; =====
+
+(defn ^ResponseCache response-cache
+  "Returns a cache of HTTP API responses. Pass it as :cache in the opts of
+   the functions above to serve their responses from it:
+
+   (def c (response-cache {:ttl 5000 :ttls {:overview 1000} :stale-ttl 10000}))
+   (get-queue server \"/\" \"orders\" {:cache c})
+
+   Responses are cached per URI, query parameters and credentials for :ttl
+   milliseconds (default: 5000), or the TTL of their endpoint in :ttls (keyed
+   by the first path segment after /api/: :queues, :overview and so on).
+   Concurrent requests for a missing or expired response share a single
+   request to the management plugin. For :stale-ttl milliseconds after
+   expiry (default: 0) the previous response is returned while it is
+   refreshed in the background, on :executor. Only successful (2xx) responses
+   are cached, others are returned without being stored.
+
+   At most :max-entries (default: 1024) responses are kept, least recently
+   used ones are evicted first. Requests with :cache that modify an endpoint
+   (PUT, POST, DELETE) drop its cached responses. Only responses fetched with
+   the blocking functions are cached, streaming and async ones are not."
+  ([]
+   (response-cache {}))
+  ([opts]
+   (ResponseCache. opts)))
+
+(defn cache-stats
+  "Returns a map of cache :hits, :misses, :stale (expired responses returned
+   during :stale-ttl), :coalesced (requests that waited for another request
+   to the same URI), :refreshes, :failures, :evictions and :size"
+  [^ResponseCache c]
+  (.stats c))
+
+(defn invalidate-cache!
+  "Drops all cached responses, or those of an endpoint such as :queues"
+  ([^ResponseCache c]
+   (.invalidate c))
+  ([^ResponseCache c endpoint]
+   (.invalidate c ^clojure.lang.Keyword endpoint)))
+
+;; =====
+;; Streaming
+;; =====
+
+(def ^:private stream-option-keys [:columns :page-size :name :use-regex :disable-stats])
+
+(defn- stream-query-params
+  [{:keys [columns page-size name use-regex disable-stats]}]
+  (cond-> {}
+    columns       (assoc :columns (str/join "," (map #(if (keyword? %) (clojure.core/name %) (str %)) columns)))
+    page-size     (assoc :page_size page-size)
+    name          (assoc :name name)
+    use-regex     (assoc :use_regex true)
+    disable-stats (assoc :disable_stats true)))
+
+(defn- stream-json*
+  "Returns a JsonItems that issues GET requests for uri lazily, one per page
+   with :page-size, and decodes the response body incrementally"
+  [uri opts]
+  (let [paginated? (some? (:page-size opts))
+        params     (stream-query-params opts)
+        opts       (apply dissoc opts stream-option-keys)]
+    (JsonItems. (fn [page]
+                  (let [{:keys [status body]} (GET uri (-> opts
+                                                           (assoc :as :stream)
+                                                           (update :query-params merge
+                                                                   (cond-> params
+                                                                     paginated? (assoc :page page)))))]
+                    (when (>= status 300)
+                      (throw (ex-info (str "HTTP API request to " uri " failed with status " status)
+                                      {:status status :body (slurp body)})))
+                    body))
+                paginated?)))
+
+(defn stream-queues
+  "Like list-queues but returns a reducible (and seqable) collection that decodes
+   queues one at a time from the response stream instead of parsing the whole
+   response at once. It can be consumed once and should be consumed entirely or
+   with a reduction, either of which closes the response.
+
+   Options (in addition to HTTP client ones):
+
+   :columns       => fields to return, e.g. [:name :messages :message_stats.publish_details.rate]
+   :page-size     => fetch queues in pages of this size (at most 500), one request per page
+   :name          => only return queues with this name, or matching it with :use-regex true
+   :disable-stats => when true, leave out message rates and other statistics
+
+     (into [] (comp (filter #(pos? (:messages %))) (map :name))
+           (stream-queues server \"/\" {:columns [:name :messages] :page-size 500}))"
+  ([]
+   (stream-queues nil))
+  ([vhost]
+   (stream-queues @GLOBAL-SERVER vhost))
+  ([server vhost]
+   (stream-queues (or server @GLOBAL-SERVER) vhost {}))
+  ([server vhost opts]
+   (let [{:keys [endpoint username password]} (or server @GLOBAL-SERVER)]
+     (-> (str endpoint "/api/queues" (optional-url-fragment vhost))
+         (stream-json* (merge opts (basic-auth* username password)))))))
+
+(defn stream-exchanges
+  "Like list-exchanges but decodes the response incrementally, see stream-queues"
+  ([]
+   (stream-exchanges nil))
+  ([vhost]
+   (stream-exchanges @GLOBAL-SERVER vhost))
+  ([server vhost]
+   (stream-exchanges (or server @GLOBAL-SERVER) vhost {}))
+  ([server vhost opts]
+   (let [{:keys [endpoint username password]} (or server @GLOBAL-SERVER)]
+     (-> (str endpoint "/api/exchanges" (optional-url-fragment vhost))
+         (stream-json* (merge opts (basic-auth* username password)))))))
+
+(defn stream-connections
+  "Like list-connections but decodes the response incrementally, see stream-queues"
+  ([]
+   (stream-connections @GLOBAL-SERVER))
+  ([server]
+   (stream-connections server {}))
+  ([server opts]
+   (let [{:keys [endpoint username password]} (or server @GLOBAL-SERVER)]
+     (-> (str endpoint "/api/connections")
+         (stream-json* (merge opts (basic-auth* username password)))))))
+
+(defn stream-channels
+  "Like list-channels but decodes the response incrementally, see stream-queues"
+  ([]
+   (stream-channels @GLOBAL-SERVER))
+  ([server]
+   (stream-channels server {}))
+  ([server opts]
+   (let [{:keys [endpoint username password]} (or server @GLOBAL-SERVER)]
+     (-> (str endpoint "/api/channels")
+         (stream-json* (merge opts (basic-auth* username password)))))))
+
+;; =====
+;; Async
+;; =====
+
+(defn ^CompletableFuture GET-async
+  "Like GET but returns a CompletableFuture of the response. Requests are
+   executed concurrently by the HTTP client."
+  ([uri]
+   (GET-async uri {}))
+  ([uri options]
+   (io!
+    (->> (-> options
+             (dissoc :cache)
+             (update :http-client with-client*)
+             (assoc :async? true))
+         (merge default-http-opts)
+         (hato.client/get uri)))))
+
+(defn- ^CompletableFuture get-json-async*
+  [uri options]
+  (.thenApply (GET-async uri options)
+              (reify Function
+                (apply [_ response]
+                  (maybe-parse-json response)))))
+
+(defn ^CompletableFuture list-queues-async
+  "Like list-queues but returns a CompletableFuture. Use it to fetch
+   queues of many virtual hosts concurrently:
+
+     (->> vhosts
+          (mapv #(list-queues-async server % {}))
+          (mapcat deref))"
+  ([vhost]
+   (list-queues-async @GLOBAL-SERVER vhost))
+  ([server vhost]
+   (list-queues-async (or server @GLOBAL-SERVER) vhost {}))
+  ([server vhost opts]
+   (let [{:keys [endpoint username password]} (or server @GLOBAL-SERVER)]
+     (-> (str endpoint "/api/queues" (optional-url-fragment vhost))
+         (get-json-async* (merge opts (basic-auth* username password)))))))
+
+(defn ^CompletableFuture get-queue-async
+  "Like get-queue but returns a CompletableFuture"
+  ([vhost queue]
+   (get-queue-async @GLOBAL-SERVER vhost queue))
+  ([server vhost queue]
+   (get-queue-async server vhost queue {}))
+  ([server vhost queue opts]
+   (let [{:keys [endpoint username password]} (or server @GLOBAL-SERVER)]
+     (-> (str endpoint "/api/queues/" (url-encode vhost) \/ (url-encode queue))
+         (get-json-async* (merge opts (basic-auth* username password)))))))
+
+(defn ^CompletableFuture list-exchanges-async
+  "Like list-exchanges but returns a CompletableFuture"
+  ([vhost]
+   (list-exchanges-async @GLOBAL-SERVER vhost))
+  ([server vhost]
+   (list-exchanges-async (or server @GLOBAL-SERVER) vhost {}))
+  ([server vhost opts]
+   (let [{:keys [endpoint username password]} (or server @GLOBAL-SERVER)]
+     (-> (str endpoint "/api/exchanges" (optional-url-fragment vhost))
+         (get-json-async* (merge opts (basic-auth* username password)))))))
+
+(defn ^CompletableFuture list-bindings-async
+  "Like list-bindings but returns a CompletableFuture"
+  ([vhost]
+   (list-bindings-async @GLOBAL-SERVER vhost))
+  ([server vhost]
+   (list-bindings-async (or server @GLOBAL-SERVER) vhost {}))
+  ([server vhost opts]
+   (let [{:keys [endpoint username password]} (or server @GLOBAL-SERVER)]
+     (-> (str endpoint "/api/bindings" (optional-url-fragment vhost))
+         (get-json-async* (merge opts (basic-auth* username password)))))))
+
+(defn ^CompletableFuture list-connections-async
+  "Like list-connections but returns a CompletableFuture"
+  ([]
+   (list-connections-async @GLOBAL-SERVER))
+  ([server]
+   (list-connections-async server {}))
+  ([server opts]
+   (let [{:keys [endpoint username password]} (or server @GLOBAL-SERVER)]
+     (-> (str endpoint "/api/connections")
+         (get-json-async* (merge opts (basic-auth* username password)))))))
@@ -0,0 +1,136 @@
+;; This source code is dual-licensed under the Apache License, version
+;; 2.0, and the Eclipse Public License, version 1.0.
+;;
+;; The APL v2.0:
+;;
+;; ----------------------------------------------------------------------------------
+;; Copyright (c) 2011-2025 Michael S. Klishin, Alex Petrov, and the ClojureWerkz Team
+;;
+;; Licensed under the Apache License, Version 2.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;;
+;;     http://www.apache.org/licenses/LICENSE-2.0
+;;
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+;; ----------------------------------------------------------------------------------
+;;
+;; The EPL v1.0:
+;;
+;; ----------------------------------------------------------------------------------
+;; Copyright (c) 2011-2025 Michael S. Klishin, Alex Petrov, and the ClojureWerkz Team.
+;; All rights reserved.
+;;
+;; This program and the accompanying materials are made available under the terms of
+;; the Eclipse Public License Version 1.0,
+;; which accompanies this distribution and is available at
+;; http://www.eclipse.org/legal/epl-v10.html.
+;; ----------------------------------------------------------------------------------
+
+
+(ns langohr.metrics
+  "Consumer and publisher metrics: throughput counters and latency
+   histograms per consumer tag and per exchange.
+
+   Instrumentation is off by default and costs nothing but a null check.
+   To turn it on, create a registry and pass it as :metrics to
+   langohr.consumers/subscribe (or create-default), langohr.confirm/tracker
+   or langohr.basic/pipelined-publisher:
+
+     (let [reg (metrics/registry)]
+       (lc/subscribe ch \"events\" handler {:metrics reg})
+       (metrics/snapshot reg))
+
+   Latencies are recorded in nanoseconds into lock-free log-linear histograms
+   with a relative error of at most 6.25%. Any implementation of
+   com.novemberain.langohr.metrics.Metrics can be used instead of a registry,
+   e.g. to feed measurements into an existing metrics library."
+  (:import [com.novemberain.langohr.metrics Metrics MetricsRegistry]
+           [java.util.concurrent Executors ScheduledExecutorService ScheduledFuture
+            ThreadFactory TimeUnit]))
+
+;;
+;; API
+;;
+
+(defn ^MetricsRegistry registry
+  "Instantiates a registry that keeps counters and latency histograms
+   per consumer tag and per exchange"
+  []
+  (MetricsRegistry.))
+
+(defn snapshot
+  "Returns a map with the current metrics of a registry:
+
+   {:consumers  {consumer-tag {:delivered :failed :acked
+                               :handler-latency :queue-latency :ack-latency}}
+    :publishers {exchange     {:published :acked :nacked :failed
+                               :confirm-latency}}}
+
+   Latencies are maps of :count, :mean, :max, :p50, :p75, :p90, :p99 and :p999,
+   in nanoseconds. :queue-latency is the time deliveries wait for a worker
+   (see :worker-threads in langohr.consumers/create-default), :ack-latency is the time
+   from receiving the first delivery of a batch to acknowledging it (see :batch-size).
+   :acked for consumers counts deliveries acknowledged in batches.
+
+   Options:
+
+     :reset?: when true, counters and histograms are reset as they are read,
+              so that the next snapshot covers the time since this one"
+  ([^MetricsRegistry reg]
+     (.snapshot reg false))
+  ([^MetricsRegistry reg {:keys [reset?]}]
+     (.snapshot reg (boolean reset?))))
+
+(defn remove-consumer
+  "Removes metrics of a consumer, e.g. after it was cancelled"
+  [^MetricsRegistry reg ^String consumer-tag]
+  (.removeConsumer reg consumer-tag))
+
+(defn remove-publisher
+  "Removes metrics of publishing to an exchange"
+  [^MetricsRegistry reg ^String exchange]
+  (.removePublisher reg exchange))
+
+(defn ^java.io.Closeable reporter
+  "Calls f with a snapshot of the registry every :interval milliseconds
+   (default: 10000) and returns a handle that stops reporting when closed.
+   f is where snapshots are logged or sent to a monitoring system.
+
+   Options:
+
+     :interval (default: 10000): reporting interval, in milliseconds
+     :reset? (default: true): reset the registry on every report, so that counters
+                              are per interval and can be turned into rates
+     :executor: a ScheduledExecutorService to run reports on instead of a dedicated
+                daemon thread
+     :on-error: fn [e] called when f throws, reporting continues afterwards"
+  ([^MetricsRegistry reg f]
+     (reporter reg f {}))
+  ([^MetricsRegistry reg f {:keys [interval reset? executor on-error]
+                            :or {interval 10000 reset? true}}]
+     (let [owned? (nil? executor)
+           ^ScheduledExecutorService es (or executor
+                                            (Executors/newSingleThreadScheduledExecutor
+                                             (reify ThreadFactory
+                                               (newThread [_ r]
+                                                 (doto (Thread. r "langohr-metrics-reporter")
+                                                   (.setDaemon true))))))
+           report (fn []
+                    (try
+                      (f (snapshot reg {:reset? reset?}))
+                      (catch Throwable t
+                        (when on-error
+                          (on-error t)))))
+           ^ScheduledFuture fut (.scheduleAtFixedRate es ^Runnable report
+                                                      (long interval) (long interval)
+                                                      TimeUnit/MILLISECONDS)]
+       (reify java.io.Closeable
+         (close [_]
+           (.cancel fut false)
+           (when owned?
+             (.shutdown es)))))))
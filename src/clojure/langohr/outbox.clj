@@ -0,0 +1,133 @@
+;; This source code is dual-licensed under the Apache License, version
+;; 2.0, and the Eclipse Public License, version 1.0.
+;;
+;; The APL v2.0:
+;;
+;; ----------------------------------------------------------------------------------
+;; Copyright (c) 2011-2025 Michael S. Klishin, Alex Petrov, and the ClojureWerkz Team
+;;
+;; Licensed under the Apache License, Version 2.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;;
+;;     http://www.apache.org/licenses/LICENSE-2.0
+;;
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+;; ----------------------------------------------------------------------------------
+;;
+;; The EPL v1.0:
+;;
+;; ----------------------------------------------------------------------------------
+;; Copyright (c) 2011-2025 Michael S. Klishin, Alex Petrov, and the ClojureWerkz Team.
+;; All rights reserved.
+;;
+;; This program and the accompanying materials are made available under the terms of
+;; the Eclipse Public License Version 1.0,
+;; which accompanies this distribution and is available at
+;; http://www.eclipse.org/legal/epl-v10.html.
+;; ----------------------------------------------------------------------------------
+
+
+(ns langohr.outbox
+  "A local, disk-backed outbox for at-least-once publishing without waiting
+   for publisher confirms: messages are appended to a log of memory-mapped
+   segment files and published in the background on a channel with confirms
+   enabled. The log keeps messages until they are confirmed, messages that
+   were not confirmed when the process stopped are published again when an
+   outbox is opened on the same directory."
+  (:require [langohr.channel :as lch]
+            [langohr.confirm :as lcf]
+            [langohr.basic   :as lhb]
+            [clojurewerkz.support.bytes :refer [to-byte-array]])
+  (:import [com.rabbitmq.client Connection Channel]
+           com.novemberain.langohr.outbox.Outbox
+           [java.nio.file Path Paths]))
+
+;;
+;; Implementation
+;;
+
+(defn- ^Path path-of
+  [dir]
+  (if (instance? Path dir)
+    dir
+    (Paths/get (str dir) (make-array String 0))))
+
+;;
+;; API
+;;
+
+(defn ^Outbox outbox
+  "Opens an outbox on the given directory, with a channel of its own on the
+   connection (opened with langohr.channel/open and put into confirm mode with
+   langohr.confirm/select). Publishing of messages left unconfirmed by a
+   previous outbox on the directory starts right away. The directory is locked
+   until the outbox is closed: opening another outbox on it, in this or another
+   process, throws java.io.IOException.
+
+   Options:
+
+     :sync? (default: true): `publish` returns once the message is forced to disk.
+            Concurrent publishes are forced together. When false, it returns once
+            the message is written to the memory-mapped log, which survives the
+            process but not the machine crashing
+     :segment-size (default: 64 MiB): size of segment files in bytes, must not
+                   change between runs on a directory. Segments are deleted once
+                   all their messages are confirmed
+     :max-in-flight (default: 1024): maximum number of messages awaiting a confirm
+     :retry-interval (default: 1000): how long, in milliseconds, to wait before
+                     publishing nacked messages, or messages that were in flight
+                     when the channel closed, again
+
+   Messages are published again from the first unconfirmed one, so consumers
+   should be prepared to see duplicates."
+  ([^Connection conn dir]
+   (outbox conn dir {}))
+  ([^Connection conn dir {:keys [max-in-flight] :or {max-in-flight 1024} :as opts}]
+   (let [ch (lch/open conn)]
+     (when-not ch
+       (throw (IllegalStateException. "could not open a channel for the outbox: channel_max reached")))
+     (try
+       (Outbox. (path-of dir) (lcf/tracker ch {:max-in-flight max-in-flight}) opts)
+       (catch Exception e
+         (lch/close ch)
+         (throw e))))))
+
+(defn publish
+  "Appends a message to the outbox, to be published in the background.
+   Accepts the same options as langohr.basic/publish, except for :mandatory."
+  ([^Outbox outbox ^String exchange ^String routing-key payload]
+   (publish outbox exchange routing-key payload {}))
+  ([^Outbox outbox ^String exchange ^String routing-key payload options]
+   (.publish outbox exchange routing-key (lhb/build-properties options) ^bytes (to-byte-array payload))))
+
+(defn drained?
+  "Returns true when every message appended to the outbox was confirmed"
+  [^Outbox outbox]
+  (.isDrained outbox))
+
+(defn await-drained
+  "Waits for messages appended so far to be confirmed, for up to timeout
+   milliseconds. Returns false if they were not."
+  [^Outbox outbox timeout]
+  (.awaitDrained outbox (long timeout)))
+
+(defn stats
+  "Returns a map of :appended, :published, :confirmed and :republished
+   messages and :forces since the outbox was opened, the number of
+   :segments on disk and :drained?"
+  [^Outbox outbox]
+  (.stats outbox))
+
+(defn close
+  "Stops publishing, unlocks the outbox's directory and closes its channel.
+   Unconfirmed messages stay in the log."
+  [^Outbox outbox]
+  (.close outbox)
+  (let [ch (.getChannel (.getConfirmTracker outbox))]
+    (when (.isOpen ch)
+      (lch/close ch))))
@@ -40,7 +40,9 @@
   (:refer-clojure :exclude [declare empty?])
   (:import [com.rabbitmq.client AMQP$Queue$DeclareOk AMQP$Queue$BindOk AMQP$Queue$UnbindOk AMQP$Queue$DeleteOk AMQP$Queue$PurgeOk]
            java.util.Map
-           [com.novemberain.langohr.queue DeclareOk BindOk UnbindOk DeleteOk PurgeOk]
+           [com.novemberain.langohr.queue DeclareOk BindOk UnbindOk DeleteOk PurgeOk
+            StatusChecker StatusPoller Statuses]
+           com.novemberain.langohr.channel.ChannelPool
            com.rabbitmq.client.Channel))
 
 ;;
@@ -134,14 +136,68 @@
   "Returns a number of messages that are ready for delivery (e.g. not pending acknowledgements)
    in the queue"
   [^Channel ch ^String queue]
-  (:message-count (status ch queue)))
+  (.getMessageCount ^AMQP$Queue$DeclareOk (.queueDeclarePassive ch queue)))
 
 (defn consumer-count
   "Returns a number of active consumers on the queue"
   [^Channel ch ^String queue]
-  (:consumer-count (status ch queue)))
+  (.getConsumerCount ^AMQP$Queue$DeclareOk (.queueDeclarePassive ch queue)))
 
 (defn ^boolean empty?
   "Returns true if queue is empty (has no messages ready), false otherwise"
   [^Channel ch ^String queue]
   (zero? (message-count ch queue)))
+
+
+;;
+;; Statuses of many queues
+;;
+
+(defn statuses
+  "Checks message and consumer counts of many queues with passive queue.declare,
+   in parallel on channels borrowed from a pool (see langohr.channel/pool).
+   Returns a map of queue names to [message-count consumer-count] pairs,
+   queues that do not exist are mapped to nil.
+
+   A missing queue closes the channel it was checked on. The pool evicts
+   such channels and checking continues on a new one, so use a pool
+   dedicated to status checks.
+
+   Options:
+
+     :parallelism (default: maximum size of the pool): how many channels
+                  to check queues on at a time
+     :executor: java.util.concurrent.Executor to check queues on, the calling
+                thread checks a share of them too
+     :arrays? (default: false): when true, a com.novemberain.langohr.queue.Statuses
+              is returned instead of a map. Its message and consumer counts are
+              int arrays parallel to the array of queue names, with -1 for queues
+              that do not exist"
+  ([^ChannelPool pool queues]
+     (statuses pool queues {}))
+  ([^ChannelPool pool queues {:keys [arrays?] :as opts}]
+     (let [s (.check (StatusChecker. pool opts) ^"[Ljava.lang.String;" (into-array String queues))]
+       (if arrays?
+         s
+         (.toMap s)))))
+
+(defn ^StatusPoller poll-statuses
+  "Checks statuses of the given queues every :interval milliseconds (default: 1000),
+   like `statuses`, and calls f with the result, starting immediately.
+   Returns a com.novemberain.langohr.queue.StatusPoller, stop it with
+   langohr.core/close. Its .getLatest method returns the statuses of the last
+   check (as com.novemberain.langohr.queue.Statuses).
+
+   Accepts the options of `statuses` and:
+
+     :on-error: function called with exceptions of failed checks, polling continues
+                regardless
+     :scheduler: java.util.concurrent.ScheduledExecutorService to poll on. By default
+                 a single thread is shared by all pollers"
+  ([^ChannelPool pool queues f]
+     (poll-statuses pool queues f {}))
+  ([^ChannelPool pool queues f {:keys [arrays?] :as opts}]
+     (let [f (if arrays?
+               f
+               (fn [^Statuses s] (f (.toMap s))))]
+       (.start (StatusPoller. (StatusChecker. pool opts) (into-array String queues) f opts)))))
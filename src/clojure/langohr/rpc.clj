@@ -0,0 +1,145 @@
+;; This source code is dual-licensed under the Apache License, version
+;; 2.0, and the Eclipse Public License, version 1.0.
+;;
+;; The APL v2.0:
+;;
+;; ----------------------------------------------------------------------------------
+;; Copyright (c) 2011-2025 Michael S. Klishin, Alex Petrov, and the ClojureWerkz Team
+;;
+;; Licensed under the Apache License, Version 2.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;;
+;;     http://www.apache.org/licenses/LICENSE-2.0
+;;
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+;; ----------------------------------------------------------------------------------
+;;
+;; The EPL v1.0:
+;;
+;; ----------------------------------------------------------------------------------
+;; Copyright (c) 2011-2025 Michael S. Klishin, Alex Petrov, and the ClojureWerkz Team.
+;; All rights reserved.
+;;
+;; This program and the accompanying materials are made available under the terms of
+;; the Eclipse Public License Version 1.0,
+;; which accompanies this distribution and is available at
+;; http://www.eclipse.org/legal/epl-v10.html.
+;; ----------------------------------------------------------------------------------
+
+
+(ns langohr.rpc
+  "Request/reply over RabbitMQ.
+
+   Clients receive replies with direct reply-to (amq.rabbitmq.reply-to), so
+   no reply queue is declared per caller or per request, and any number of
+   concurrent requests share a channel:
+
+     (let [client (rpc/client ch {:timeout 5000})]
+       @(rpc/call client \"\" \"search.requests\" \"query\"))
+     ;; => [metadata body]
+
+   Servers consume requests from a queue and publish what the handler returns
+   to the request's reply-to address:
+
+     (rpc/serve ch \"search.requests\" (fn [metadata ^bytes body] (search body)))
+
+   Relevant guides:
+
+   http://www.rabbitmq.com/direct-reply-to.html"
+  (:require [langohr.basic     :as lhb]
+            [langohr.consumers :as lhcons]
+            [clojurewerkz.support.bytes :refer [to-byte-array]])
+  (:import com.rabbitmq.client.Channel
+           com.novemberain.langohr.rpc.RpcClient
+           java.util.concurrent.CompletableFuture))
+
+;;
+;; Client
+;;
+
+(defn ^RpcClient client
+  "Starts a request/reply client on the given channel, which should not be used
+   for anything else. Replies to all requests are received by a single direct
+   reply-to consumer.
+
+   Options:
+
+   :timeout       => milliseconds to wait for a reply (default: 30000)
+   :max-in-flight => number of requests that can await a reply at a time (default: 65536).
+                     Further calls block until one completes
+   :mandatory     => publish requests as mandatory, so that unroutable ones fail
+                     immediately instead of timing out (default: true)"
+  ([^Channel ch]
+     (client ch {}))
+  ([^Channel ch options]
+     (RpcClient. ch options)))
+
+(defn ^CompletableFuture call
+  "Publishes a request and returns a CompletableFuture of a [metadata body] pair
+   for the reply. Accepts the same options as langohr.basic/publish, except
+   for :reply-to and :correlation-id which are set by the client.
+
+   The future fails with a TimeoutException if no reply arrives in time, with an
+   IOException when RabbitMQ returns the request as unroutable and with a
+   ShutdownSignalException when the channel is closed. Cancelling it
+   frees the request's slot; a reply that arrives later is discarded.
+
+   The future can be dereferenced, also with a timeout:
+
+     (let [[metadata body] (deref (rpc/call client \"\" \"search.requests\" query) 1000 nil)]
+       ...)"
+  ([^RpcClient client ^String exchange ^String routing-key payload]
+     (call client exchange routing-key payload {}))
+  ([^RpcClient client ^String exchange ^String routing-key payload options]
+     (.call client exchange routing-key (lhb/build-properties options) ^bytes (to-byte-array payload))))
+
+(defn pending
+  "Returns the number of requests awaiting a reply"
+  [^RpcClient client]
+  (.getPending client))
+
+(defn close
+  "Cancels the client's reply consumer. Pending requests fail."
+  [^RpcClient client]
+  (.close client))
+
+;;
+;; Server
+;;
+
+(defn serve
+  "Consumes requests from the given queue and handles them with f on a worker
+   pool of :worker-threads (default: 4) threads, with at most :prefetch (default:
+   twice the number of threads) requests outstanding. f is called with request metadata
+   and body. Unless it returns nil, its return value is published as the reply to the request's
+   :reply-to address with the request's :correlation-id.
+
+   Requests are acknowledged once the reply is published. When f throws, the
+   request is rejected without requeueing, and the client times out.
+
+   :reply-options is a map of langohr.basic/publish options for replies, e.g.
+   {:content-type \"application/json\" :encode true}. Other options are passed on to
+   langohr.consumers/subscribe. Returns the consumer tag."
+  ([^Channel ch ^String queue f]
+     (serve ch queue f {}))
+  ([^Channel ch ^String queue f {:keys [worker-threads reply-options]
+                                 :or {worker-threads 4}
+                                 :as options}]
+     (let [handler (fn [^Channel ch {:keys [reply-to correlation-id delivery-tag] :as metadata} body]
+                     (try
+                       (let [reply (f metadata body)]
+                         (when (and reply-to (some? reply))
+                           (lhb/publish ch "" reply-to reply (assoc reply-options :correlation-id correlation-id)))
+                         (lhb/ack ch delivery-tag))
+                       (catch Throwable t
+                         (lhb/reject ch delivery-tag false)
+                         (throw t))))]
+       (lhcons/subscribe ch queue handler
+                         (merge {:prefetch (* 2 worker-threads)}
+                                (dissoc options :reply-options)
+                                {:worker-threads worker-threads :auto-ack false})))))
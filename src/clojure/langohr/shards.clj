@@ -0,0 +1,121 @@
+;; This source code is dual-licensed under the Apache License, version
+;; 2.0, and the Eclipse Public License, version 1.0.
+;;
+;; The APL v2.0:
+;;
+;; ----------------------------------------------------------------------------------
+;; Copyright (c) 2011-2025 Michael S. Klishin, Alex Petrov, and the ClojureWerkz Team
+;;
+;; Licensed under the Apache License, Version 2.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;;
+;;     http://www.apache.org/licenses/LICENSE-2.0
+;;
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+;; ----------------------------------------------------------------------------------
+;;
+;; The EPL v1.0:
+;;
+;; ----------------------------------------------------------------------------------
+;; Copyright (c) 2011-2025 Michael S. Klishin, Alex Petrov, and the ClojureWerkz Team.
+;; All rights reserved.
+;;
+;; This program and the accompanying materials are made available under the terms of
+;; the Eclipse Public License Version 1.0,
+;; which accompanies this distribution and is available at
+;; http://www.eclipse.org/legal/epl-v10.html.
+;; ----------------------------------------------------------------------------------
+
+
+(ns langohr.shards
+  "Operations on connection groups (see langohr.core/connect-group): groups of
+   connections used as one logical publisher.
+
+   Relevant guides:
+
+   * http://clojurerabbitmq.info/articles/connecting.html"
+  (:require [langohr.core  :as lc]
+            [langohr.basic :as lhb]
+            [clojurewerkz.support.bytes :refer [to-byte-array]])
+  (:import [com.rabbitmq.client Connection Channel ShutdownListener BlockedListener]
+           com.novemberain.langohr.ConnectionGroup
+           com.novemberain.langohr.channel.ChannelPool))
+
+;;
+;; API
+;;
+
+(defn shard-count
+  "Returns the number of connections in the group"
+  [^ConnectionGroup group]
+  (.getShardCount group))
+
+(defn shard-for
+  "Returns the index of the shard given key is routed to. A nil key means
+   round-robin (skipping blocked shards while possible)."
+  [^ConnectionGroup group key]
+  (.shardFor group key))
+
+(defn ^Connection connection-of
+  "Returns the connection of the given shard"
+  [^ConnectionGroup group shard]
+  (.getConnection group (int shard)))
+
+(defn ^ChannelPool pool-of
+  "Returns the channel pool of the given shard"
+  [^ConnectionGroup group shard]
+  (.getPool group (int shard)))
+
+(defn publish
+  "Publishes a message on a pooled channel of one of the group's connections.
+   Accepts the same options as langohr.basic/publish, plus
+
+     :shard-key: messages with equal keys go through the same connection and thus
+                 keep their relative order. Without a key, publishes are spread
+                 round-robin."
+  ([^ConnectionGroup group ^String exchange ^String routing-key payload]
+     (publish group exchange routing-key payload {}))
+  ([^ConnectionGroup group ^String exchange ^String routing-key payload
+    {:keys [shard-key mandatory] :or {mandatory false} :as opts}]
+     (.publish group
+               shard-key
+               exchange
+               routing-key
+               (boolean mandatory)
+               (lhb/build-properties opts)
+               ^bytes (to-byte-array payload))))
+
+(defmacro with-shard-channel
+  "Evaluates body with a channel borrowed from the pool of the shard the key is
+   routed to (round-robin for a nil key) and returns it afterwards:
+
+     (with-shard-channel [ch group tenant-id]
+       (lb/publish ch \"events\" \"created\" payload))"
+  [[sym group key] & body]
+  `(let [^ChannelPool pool# (pool-of ~group (shard-for ~group ~key))
+         ~(vary-meta sym assoc :tag `Channel) (.borrow pool#)]
+     (try
+       ~@body
+       (finally
+         (.release pool# ~sym)))))
+
+(defn ^ShutdownListener add-shutdown-listener
+  "Adds a shutdown listener on every connection of the group and returns it"
+  [^ConnectionGroup group f]
+  (let [lnr (lc/shutdown-listener f)]
+    (.addShutdownListener group lnr)
+    lnr))
+
+(defn ^BlockedListener add-blocked-listener
+  "Adds a listener that is notified when the first connection of the group is
+   blocked by RabbitMQ (connection.blocked) and when the last one is unblocked.
+   Returns the listener."
+  [^ConnectionGroup group on-blocked on-unblocked]
+  (let [lnr (lc/blocked-listener on-blocked on-unblocked)]
+    (.addBlockedListener group lnr)
+    lnr))
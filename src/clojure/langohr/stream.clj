@@ -0,0 +1,208 @@
+;; This source code is dual-licensed under the Apache License, version
+;; 2.0, and the Eclipse Public License, version 1.0.
+;;
+;; The APL v2.0:
+;;
+;; ----------------------------------------------------------------------------------
+;; Copyright (c) 2011-2025 Michael S. Klishin, Alex Petrov, and the ClojureWerkz Team
+;;
+;; Licensed under the Apache License, Version 2.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;;
+;;     http://www.apache.org/licenses/LICENSE-2.0
+;;
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+;; ----------------------------------------------------------------------------------
+;;
+;; The EPL v1.0:
+;;
+;; ----------------------------------------------------------------------------------
+;; Copyright (c) 2011-2025 Michael S. Klishin, Alex Petrov, and the ClojureWerkz Team.
+;; All rights reserved.
+;;
+;; This program and the accompanying materials are made available under the terms of
+;; the Eclipse Public License Version 1.0,
+;; which accompanies this distribution and is available at
+;; http://www.eclipse.org/legal/epl-v10.html.
+;; ----------------------------------------------------------------------------------
+
+
+(ns langohr.stream
+  "Functions for consuming RabbitMQ streams (queues of type stream) over AMQP 0.9.1:
+   declaring them, subscribing from an offset and tracking the offsets of
+   processed messages so that consumers can resume where they left off.
+
+   Relevant guides:
+
+   https://www.rabbitmq.com/docs/streams"
+  (:refer-clojure :exclude [declare])
+  (:require [langohr.queue     :as lhq]
+            [langohr.consumers :as lhcons])
+  (:import [com.rabbitmq.client Channel]
+           [com.novemberain.langohr.stream OffsetStore OffsetTracker MemoryOffsetStore FileOffsetStore]
+           [java.nio.file Path Paths]
+           [java.time Instant]
+           [java.util Date Map]))
+
+;;
+;; Implementation
+;;
+
+(def ^:private offset-specs {:first "first" :last "last" :next "next"})
+
+(defn- offset-spec
+  [x]
+  (cond
+    (keyword? x)          (or (offset-specs x)
+                              (throw (IllegalArgumentException. (str "unknown stream offset: " x))))
+    (instance? Instant x) (Date/from x)
+    (integer? x)          (long x)
+    :else                 x))
+
+(defn- ^Path path-of
+  [dir]
+  (if (instance? Path dir)
+    dir
+    (Paths/get (str dir) (make-array String 0))))
+
+;;
+;; API
+;;
+
+(defn ^com.novemberain.langohr.queue.DeclareOk declare
+  "Declares a stream: a durable, non-exclusive, non-auto-deleted queue
+   with the x-queue-type argument set to stream.
+
+   Options:
+
+     :max-length-bytes: maximum size of the stream on disk
+     :max-age: maximum age of messages, e.g. \"7D\" or \"12h\"
+     :max-segment-size-bytes: size of segment files on disk
+     :initial-cluster-size: number of replicas
+     :arguments: other queue arguments"
+  ([^Channel ch ^String queue]
+   (declare ch queue {}))
+  ([^Channel ch ^String queue {:keys [max-length-bytes max-age max-segment-size-bytes
+                                      initial-cluster-size arguments]}]
+   (lhq/declare ch queue {:durable     true
+                          :exclusive   false
+                          :auto-delete false
+                          :arguments   (cond-> (merge {"x-queue-type" "stream"} arguments)
+                                         max-length-bytes       (assoc "x-max-length-bytes" (long max-length-bytes))
+                                         max-age                (assoc "x-max-age" max-age)
+                                         max-segment-size-bytes (assoc "x-stream-max-segment-size-bytes"
+                                                                       (long max-segment-size-bytes))
+                                         initial-cluster-size   (assoc "x-initial-cluster-size"
+                                                                       (long initial-cluster-size)))})))
+
+(defn ^OffsetStore memory-store
+  "Returns an offset store that keeps offsets in memory"
+  []
+  (MemoryOffsetStore.))
+
+(defn ^FileOffsetStore file-store
+  "Returns an offset store that keeps offsets in memory-mapped files in
+   the given directory, one per consumer name.
+
+   Options:
+
+     :sync? (default: false): when true, files are forced to disk every time
+            an offset is stored. Otherwise the operating system writes them
+            eventually, which survives the process but not the machine crashing"
+  ([dir]
+   (file-store dir {}))
+  ([dir {:keys [sync?]}]
+   (FileOffsetStore. (path-of dir) (boolean sync?))))
+
+(defn ^OffsetTracker tracker
+  "Returns an offset tracker for a stream consumer, to pass as :tracker
+   to `subscribe`. Offsets are stored under the given name, which must be
+   unique per consumer (and stream), and loaded from the store when the
+   tracker is created.
+
+   Options:
+
+     :checkpoint-every (default: 1): store the offset every n processed messages.
+                       Use `checkpoint!` or .close to store the latest one"
+  ([^OffsetStore store ^String name]
+   (tracker store name {}))
+  ([^OffsetStore store ^String name opts]
+   (OffsetTracker. store name opts)))
+
+(defn checkpoint!
+  "Stores the offset of the last message processed with the tracker"
+  [^OffsetTracker tracker]
+  (.checkpoint tracker))
+
+(defn last-offset
+  "Returns the offset of the last message processed with the tracker, or nil"
+  [^OffsetTracker tracker]
+  (let [o (.getLastOffset tracker)]
+    (when-not (= o OffsetStore/NONE)
+      o)))
+
+(defn offset
+  "Returns the stream offset of a delivery from its metadata"
+  [metadata]
+  (get (:headers metadata) OffsetTracker/STREAM_OFFSET))
+
+(defn subscribe
+  "Subscribes f to a stream, like langohr.consumers/subscribe. Deliveries are
+   acknowledged after f returns (or throws), streams require manual
+   acknowledgements and a prefetch.
+
+   Options:
+
+     :offset (default: :next): where to start consuming: :first, :last, :next,
+             an offset (a long), a point in time (java.util.Date or java.time.Instant)
+             or an interval string such as \"1h\"
+     :tracker: an offset tracker (see `tracker`). When the tracker has an offset,
+               consuming resumes after it and :offset is ignored. This also applies
+               to consumers re-registered by connection recovery. Offsets of messages
+               f returned for are recorded, messages at or before the last recorded
+               offset are acknowledged without calling f
+     :prefetch (default: 1000)
+
+   Other options are passed to langohr.consumers/subscribe, except for :auto-ack and
+   :batch-size. Messages are handled in order unless a worker pool is used (e.g. with
+   :worker-threads), in which case the tracked offset is the last one before which every
+   message was processed, so resuming never skips a message but may repeat some.
+
+   Returns the consumer tag."
+  ([^Channel ch ^String queue f]
+   (subscribe ch queue f {}))
+  ([^Channel ch ^String queue f {:keys [^OffsetTracker tracker arguments]
+                                 :as opts}]
+   (when (:batch-size opts)
+     (throw (IllegalArgumentException. "stream consumers do not support :batch-size")))
+   (let [spec    (offset-spec (get opts :offset :next))
+         args    (if tracker
+                   (.consumerArguments tracker ^Map (or arguments {}) spec)
+                   (assoc arguments OffsetTracker/STREAM_OFFSET spec))
+         handler (fn [^Channel ch metadata payload]
+                   (let [o (offset metadata)]
+                     (try
+                       (when-not (and tracker o (.isProcessed tracker (long o)))
+                         (f ch metadata payload))
+                       (finally
+                         ;; acknowledged either way, so it counts as processed
+                         (when (and tracker o)
+                           (.processed tracker (long o)))
+                         (.basicAck ch (long (:delivery-tag metadata)) false)))))]
+     (lhcons/subscribe ch queue handler (cond-> (-> opts
+                                                    (dissoc :offset :tracker)
+                                                    (assoc :auto-ack  false
+                                                           :prefetch  (get opts :prefetch 1000)
+                                                           :arguments args))
+                                          tracker (assoc :on-dispatch
+                                                         (let [g (get opts :on-dispatch)]
+                                                           (fn [metadata]
+                                                             (when-let [o (offset metadata)]
+                                                               (.started tracker (long o)))
+                                                             (when g
+                                                               (g metadata))))))))))
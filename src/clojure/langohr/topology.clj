@@ -0,0 +1,229 @@
+;; This source code is dual-licensed under the Apache License, version
+;; 2.0, and the Eclipse Public License, version 1.0.
+;;
+;; The APL v2.0:
+;;
+;; ----------------------------------------------------------------------------------
+;; Copyright (c) 2011-2025 Michael S. Klishin, Alex Petrov, and the ClojureWerkz Team
+;;
+;; Licensed under the Apache License, Version 2.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;;
+;;     http://www.apache.org/licenses/LICENSE-2.0
+;;
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+;; ----------------------------------------------------------------------------------
+;;
+;; The EPL v1.0:
+;;
+;; ----------------------------------------------------------------------------------
+;; Copyright (c) 2011-2025 Michael S. Klishin, Alex Petrov, and the ClojureWerkz Team.
+;; All rights reserved.
+;;
+;; This program and the accompanying materials are made available under the terms of
+;; the Eclipse Public License Version 1.0,
+;; which accompanies this distribution and is available at
+;; http://www.eclipse.org/legal/epl-v10.html.
+;; ----------------------------------------------------------------------------------
+
+
+(ns langohr.topology
+  "Bulk declaration of exchanges, queues and bindings from a data description.
+
+   Where langohr.queue/declare and friends wait for a reply to every method,
+   declare-all sends nowait declarations in batches and performs a single
+   synchronous round trip per batch to find out whether all of them succeeded.
+   This makes declaring thousands of entities, e.g. per tenant queues
+   at deployment time, a matter of a few round trips:
+
+     (topology/declare-all conn
+       {:exchanges [{:name \"events\" :type \"topic\" :durable true}]
+        :queues    (for [t tenants]
+                     {:name (str \"events.\" t) :durable true :auto-delete false})
+        :bindings  (for [t tenants]
+                     {:source \"events\" :destination (str \"events.\" t) :routing-key (str t \".#\")})}
+       {:channels 4})
+
+   Relevant guides:
+
+   http://clojurerabbitmq.info/articles/queues.html"
+  (:require [langohr.channel :as lch])
+  (:import [com.rabbitmq.client Connection Channel]
+           java.util.Map))
+
+;;
+;; Implementation
+;;
+
+(def ^:private ^:const default-batch-size 1000)
+
+(defn- declare-exchange!
+  [^Channel ch nowait? {:keys [^String name ^String type durable auto-delete internal ^Map arguments]
+                        :or {type "direct" durable false auto-delete false internal false}}]
+  (if nowait?
+    (.exchangeDeclareNoWait ch name type (boolean durable) (boolean auto-delete) (boolean internal) arguments)
+    (.exchangeDeclare ch name type (boolean durable) (boolean auto-delete) (boolean internal) arguments)))
+
+(defn- declare-queue!
+  [^Channel ch nowait? {:keys [^String name durable exclusive auto-delete ^Map arguments]
+                        :or {durable false exclusive false auto-delete true}}]
+  (if nowait?
+    (.queueDeclareNoWait ch name (boolean durable) (boolean exclusive) (boolean auto-delete) arguments)
+    (.queueDeclare ch name (boolean durable) (boolean exclusive) (boolean auto-delete) arguments)))
+
+(defn- declare-binding!
+  [^Channel ch nowait? {:keys [^String source ^String destination destination-type ^String routing-key ^Map arguments]
+                        :or {destination-type :queue routing-key ""}}]
+  (if (= :exchange destination-type)
+    (if nowait?
+      (.exchangeBindNoWait ch destination source routing-key arguments)
+      (.exchangeBind ch destination source routing-key arguments))
+    (if nowait?
+      (.queueBindNoWait ch destination source routing-key arguments)
+      (.queueBind ch destination source routing-key arguments))))
+
+(defn- ^Channel ensure-open
+  [^Connection conn ^Channel ch]
+  (if (and ch (.isOpen ch))
+    ch
+    (or (lch/open conn)
+        (throw (java.io.IOException. "could not open a channel: channel_max reached")))))
+
+(defn- close-quietly
+  [^Channel ch]
+  (when (and ch (.isOpen ch))
+    (try
+      (.close ch)
+      (catch Exception _))))
+
+(defn- declare-partition
+  "Declares entities in batches on a channel of its own. A batch that fails
+   is declared once more, one entity at a time, to find out which ones failed.
+   Declarations bypass connection recovery: a nowait declaration would be
+   recorded for recovery whether it succeeded or not.
+   Returns a vector of [declared failures]."
+  [conn kind declare! entities batch-size]
+  (loop [batches  (partition-all batch-size entities)
+         ch       nil
+         declared 0
+         failures []]
+    (if-let [batch (first batches)]
+      (let [ch' (ensure-open conn ch)
+            nr  (lch/as-non-recovering-channel ch')
+            ok? (try
+                  (doseq [e batch]
+                    (declare! nr true e))
+                  ;; a synchronous no-op, its reply arrives after
+                  ;; all of the above were processed
+                  (.basicQos nr 0)
+                  true
+                  (catch Exception _
+                    false))]
+        (if ok?
+          (recur (rest batches) ch' (+ declared (count batch)) failures)
+          (let [[ch'' n fs] (reduce (fn [[ch n fs] e]
+                                      (let [ch (ensure-open conn ch)]
+                                        (try
+                                          (declare! (lch/as-non-recovering-channel ch) false e)
+                                          [ch (inc n) fs]
+                                          (catch Exception ex
+                                            [ch n (conj fs {:kind kind :entity e :exception ex})]))))
+                                    [ch' 0 []]
+                                    batch)]
+            (recur (rest batches) ch'' (+ declared (long n)) (into failures fs)))))
+      (do
+        (close-quietly ch)
+        [declared failures]))))
+
+(defn- declare-phase
+  [conn kind declare! entities {:keys [channels batch-size]}]
+  (let [entities (vec entities)
+        total    (count entities)]
+    (if (zero? total)
+      [{:declared 0 :failed 0} []]
+      (let [n       (min channels (quot (+ total (dec batch-size)) batch-size))
+            ;; round-robin, so that every channel gets a similar share
+            parts   (for [i (range n)]
+                      (take-nth n (drop i entities)))
+            results (if (= 1 n)
+                      [(declare-partition conn kind declare! entities batch-size)]
+                      (mapv deref (doall (for [p parts]
+                                           (future (declare-partition conn kind declare! p batch-size))))))
+            failures (into [] (mapcat second) results)]
+        [{:declared (reduce + (map first results))
+          :failed   (count failures)}
+         failures]))))
+
+(defn- validate!
+  [{:keys [queues bindings]}]
+  (doseq [q queues]
+    (when (empty? (:name q))
+      (throw (IllegalArgumentException.
+              "server-named queues cannot be declared in bulk, use langohr.queue/declare"))))
+  (doseq [b bindings]
+    (when-not (and (:source b) (:destination b))
+      (throw (IllegalArgumentException.
+              (str "binding must have a :source and a :destination, given: " b))))))
+
+;;
+;; API
+;;
+
+(defn declare-all
+  "Declares exchanges, queues and bindings described by a map of
+
+     :exchanges: maps of :name, :type (default: \"direct\"), :durable, :auto-delete,
+                 :internal and :arguments, as in langohr.exchange/declare
+     :queues: maps of :name, :durable, :exclusive, :auto-delete and :arguments,
+              as in langohr.queue/declare. Queues must be named.
+     :bindings: maps of :source, :destination, :routing-key (default: \"\") and
+                :arguments. :destination-type is :queue (default) or :exchange.
+
+   Exchanges are declared first, then queues, then bindings. Each kind is
+   split round-robin between up to :channels (default: 1) channels opened
+   on the connection for that purpose and declared in parallel.
+   Declarations are sent with nowait, :batch-size (default: 1000) at a time,
+   followed by a single round trip that confirms the entire batch.
+   When a batch fails, its declarations are repeated synchronously one by one
+   so that failures are reported per entity.
+
+   Exclusive queues belong to the connection they are declared on, as
+   usual. Declared entities are not recorded for automatic recovery:
+   nowait declarations would be recorded even when they fail, and the
+   channels they are declared on are closed afterwards. To have them
+   declared again after recovery, which takes the same few round trips,
+   call declare-all from a recovery listener:
+
+     (langohr.core/on-recovery conn (fn [_] (topology/declare-all conn topology)))
+
+   Returns a summary instead of individual declare-ok replies:
+
+     {:exchanges {:declared 1 :failed 0}
+      :queues    {:declared 998 :failed 2}
+      :bindings  {:declared 1000 :failed 0}
+      :failures  [{:kind :queue :entity {:name ...} :exception ...} ...]
+      :elapsed   812}
+
+   where :elapsed is in milliseconds."
+  ([^Connection conn topology]
+     (declare-all conn topology {}))
+  ([^Connection conn {:keys [exchanges queues bindings] :as topology}
+    {:keys [channels batch-size] :or {channels 1 batch-size default-batch-size}}]
+     (when-not (and (pos? channels) (pos? batch-size))
+       (throw (IllegalArgumentException. "channels and batch size must be positive")))
+     (validate! topology)
+     (let [started (System/nanoTime)
+           opts    {:channels channels :batch-size batch-size}
+           [xs xfs] (declare-phase conn :exchange declare-exchange! exchanges opts)
+           [qs qfs] (declare-phase conn :queue declare-queue! queues opts)
+           [bs bfs] (declare-phase conn :binding declare-binding! bindings opts)]
+       {:exchanges xs
+        :queues    qs
+        :bindings  bs
+        :failures  (into [] (concat xfs qfs bfs))
+        :elapsed   (quot (- (System/nanoTime) started) 1000000)})))
@@ -14,7 +14,9 @@ import clojure.lang.IPersistentMap;
 import clojure.lang.Keyword;
 import clojure.lang.PersistentHashMap;
 import com.rabbitmq.client.*;
+import com.novemberain.langohr.recovery.ParallelTopologyRecovery;
 import com.rabbitmq.client.impl.recovery.AutorecoveringConnection;
+import com.rabbitmq.client.impl.recovery.TopologyRecoveryFilter;
 
 import java.io.IOException;
 import java.net.InetAddress;
@@ -42,6 +44,7 @@ public class Connection implements com.rabbitmq.client.Connection, Recoverable {
   private static final long DEFAULT_NETWORK_RECOVERY_DELAY = 5000;
   private static final Keyword EXECUTOR_KEYWORD = Keyword.intern(null, "executor");
   private static final Keyword CONNECTION_NAME_KEYWORD = Keyword.intern(null, "connection-name");
+  private static final Keyword TOPOLOGY_RECOVERY_FILTER_KEYWORD = Keyword.intern(null, "topology-recovery-filter");
   private final IPersistentMap options;
 
   private com.rabbitmq.client.Connection delegate;
@@ -52,6 +55,8 @@ public class Connection implements com.rabbitmq.client.Connection, Recoverable {
 
   private boolean automaticallyRecover;
   private boolean automaticallyRecoverTopology;
+  // null unless :topology-recovery-channels is provided
+  private ParallelTopologyRecovery parallelTopologyRecovery;
 
   private static IPersistentMap buildDefaultOptions() {
     Map<Keyword, Boolean> m = new HashMap<Keyword, Boolean>();
@@ -77,6 +82,12 @@ public class Connection implements com.rabbitmq.client.Connection, Recoverable {
 
     cf.setAutomaticRecoveryEnabled(this.automaticallyRecover);
     cf.setTopologyRecoveryEnabled(this.automaticallyRecoverTopology);
+
+    if (this.automaticallyRecover && this.automaticallyRecoverTopology && ParallelTopologyRecovery.isEnabled(options)) {
+      TopologyRecoveryFilter filter = (TopologyRecoveryFilter) options.valAt(TOPOLOGY_RECOVERY_FILTER_KEYWORD);
+      this.parallelTopologyRecovery = new ParallelTopologyRecovery(filter, options);
+      cf.setTopologyRecoveryFilter(this.parallelTopologyRecovery);
+    }
   }
 
   @SuppressWarnings("unused")
@@ -103,6 +114,28 @@ public class Connection implements com.rabbitmq.client.Connection, Recoverable {
         this.delegate = cf.newConnection(es);
       }
     }
+    registerTopologyRecovery();
+
+    return this;
+  }
+
+  /**
+   * Connects to one of the addresses the resolver returns, see
+   * {@link com.rabbitmq.client.AddressResolver#maybeShuffle(java.util.List)}
+   * for the order they are tried in.
+   */
+  @SuppressWarnings("unused")
+  public Connection init(AddressResolver resolver) throws IOException, TimeoutException {
+    ExecutorService es = (ExecutorService) this.options.valAt(EXECUTOR_KEYWORD);
+
+    String cn = (String) this.options.valAt(CONNECTION_NAME_KEYWORD);
+
+    if(cn != null) {
+      this.delegate = cf.newConnection(es, resolver, cn);
+    } else {
+      this.delegate = cf.newConnection(es, resolver);
+    }
+    registerTopologyRecovery();
 
     return this;
   }
@@ -115,6 +148,19 @@ public class Connection implements com.rabbitmq.client.Connection, Recoverable {
     return automaticallyRecoverTopology;
   }
 
+  /**
+   * @return parallel topology recovery used by this connection, or null
+   */
+  public ParallelTopologyRecovery getParallelTopologyRecovery() {
+    return parallelTopologyRecovery;
+  }
+
+  private void registerTopologyRecovery() {
+    if (parallelTopologyRecovery != null && this.delegate instanceof AutorecoveringConnection) {
+      ((AutorecoveringConnection) this.delegate).addRecoveryListener(parallelTopologyRecovery);
+    }
+  }
+
   /**
    * Abort this connection and all its channels
    * with the {@link com.rabbitmq.client.AMQP#REPLY_SUCCESS} close code
@@ -0,0 +1,221 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr;
+
+import clojure.lang.IPersistentMap;
+import com.novemberain.langohr.channel.ChannelPool;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.BlockedListener;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
+import com.rabbitmq.client.ShutdownListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A group of connections (shards) used as one logical publisher, so that
+ * publishing is not limited by a single socket and its writer thread.
+ * <p/>
+ * Publishes are routed to a shard by key, which keeps messages with the
+ * same key in order, or round-robin when no key is given. Round-robin
+ * publishing skips shards that are blocked by the broker (connection.blocked)
+ * as long as at least one shard is not. Every shard publishes on channels
+ * from its own {@link ChannelPool}.
+ * <p/>
+ * Shutdown and recovery listeners are registered on every shard. Blocked
+ * listeners are notified once when the first shard becomes blocked and once
+ * when the last one is unblocked.
+ */
+public class ConnectionGroup implements Recoverable, AutoCloseable {
+  private final com.rabbitmq.client.Connection[] shards;
+  private final ChannelPool[] pools;
+  private final AtomicLong counter = new AtomicLong();
+
+  private final AtomicIntegerArray blocked;
+  private final AtomicInteger blockedCount = new AtomicInteger();
+  private final List<BlockedListener> blockedListeners = new CopyOnWriteArrayList<BlockedListener>();
+
+  public ConnectionGroup(List<? extends com.rabbitmq.client.Connection> connections, IPersistentMap poolOptions) {
+    if (connections.isEmpty()) {
+      throw new IllegalArgumentException("connection group needs at least one connection");
+    }
+    int n = connections.size();
+    this.shards = connections.toArray(new com.rabbitmq.client.Connection[n]);
+    this.pools = new ChannelPool[n];
+    this.blocked = new AtomicIntegerArray(n);
+    for (int i = 0; i < n; i++) {
+      pools[i] = new ChannelPool(shards[i], poolOptions);
+      final int shard = i;
+      shards[i].addBlockedListener(new BlockedListener() {
+        public void handleBlocked(String reason) throws IOException {
+          shardBlocked(shard, reason);
+        }
+
+        public void handleUnblocked() throws IOException {
+          shardUnblocked(shard);
+        }
+      });
+    }
+  }
+
+  public int getShardCount() {
+    return shards.length;
+  }
+
+  public com.rabbitmq.client.Connection getConnection(int shard) {
+    return shards[shard];
+  }
+
+  public ChannelPool getPool(int shard) {
+    return pools[shard];
+  }
+
+  public boolean isBlocked(int shard) {
+    return blocked.get(shard) == 1;
+  }
+
+  /**
+   * @return true when all shards are open
+   */
+  public boolean isOpen() {
+    for (com.rabbitmq.client.Connection c : shards) {
+      if (!c.isOpen()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param key routing key, e.g. a tenant id, or null for round-robin
+   * @return shard index
+   */
+  public int shardFor(Object key) {
+    int n = shards.length;
+    if (key != null) {
+      int h = key.hashCode();
+      return Math.floorMod(h ^ (h >>> 16), n);
+    }
+    int start = (int) Math.floorMod(counter.getAndIncrement(), (long) n);
+    if (blockedCount.get() == 0 || blockedCount.get() == n) {
+      return start;
+    }
+    for (int i = 0; i < n; i++) {
+      int shard = (start + i) % n;
+      if (blocked.get(shard) == 0) {
+        return shard;
+      }
+    }
+    return start;
+  }
+
+  /**
+   * Publishes a message on a pooled channel of the shard the key maps to.
+   */
+  public void publish(Object key, String exchange, String routingKey, boolean mandatory,
+                      AMQP.BasicProperties props, byte[] body)
+      throws IOException, InterruptedException, TimeoutException {
+    ChannelPool pool = pools[shardFor(key)];
+    Channel ch = pool.borrow();
+    try {
+      ch.basicPublish(exchange, routingKey, mandatory, props, body);
+    } finally {
+      pool.release(ch);
+    }
+  }
+
+  public void addShutdownListener(ShutdownListener listener) {
+    for (com.rabbitmq.client.Connection c : shards) {
+      c.addShutdownListener(listener);
+    }
+  }
+
+  public void removeShutdownListener(ShutdownListener listener) {
+    for (com.rabbitmq.client.Connection c : shards) {
+      c.removeShutdownListener(listener);
+    }
+  }
+
+  public void addRecoveryListener(RecoveryListener listener) {
+    for (com.rabbitmq.client.Connection c : shards) {
+      if (c instanceof Recoverable) {
+        ((Recoverable) c).addRecoveryListener(listener);
+      }
+    }
+  }
+
+  public void removeRecoveryListener(RecoveryListener listener) {
+    for (com.rabbitmq.client.Connection c : shards) {
+      if (c instanceof Recoverable) {
+        ((Recoverable) c).removeRecoveryListener(listener);
+      }
+    }
+  }
+
+  public void addBlockedListener(BlockedListener listener) {
+    blockedListeners.add(listener);
+  }
+
+  public boolean removeBlockedListener(BlockedListener listener) {
+    return blockedListeners.remove(listener);
+  }
+
+  /**
+   * Closes channel pools and connections of all shards.
+   */
+  public void close() throws IOException {
+    List<IOException> failures = new ArrayList<IOException>();
+    for (int i = 0; i < shards.length; i++) {
+      pools[i].close();
+      try {
+        if (shards[i].isOpen()) {
+          shards[i].close();
+        }
+      } catch (IOException e) {
+        failures.add(e);
+      }
+    }
+    if (!failures.isEmpty()) {
+      IOException e = failures.get(0);
+      for (int i = 1; i < failures.size(); i++) {
+        e.addSuppressed(failures.get(i));
+      }
+      throw e;
+    }
+  }
+
+  //
+  // Implementation
+  //
+
+  private void shardBlocked(int shard, String reason) throws IOException {
+    if (blocked.compareAndSet(shard, 0, 1) && blockedCount.incrementAndGet() == 1) {
+      for (BlockedListener l : blockedListeners) {
+        l.handleBlocked(reason);
+      }
+    }
+  }
+
+  private void shardUnblocked(int shard) throws IOException {
+    if (blocked.compareAndSet(shard, 1, 0) && blockedCount.decrementAndGet() == 0) {
+      for (BlockedListener l : blockedListeners) {
+        l.handleUnblocked();
+      }
+    }
+  }
+}
@@ -0,0 +1,228 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr;
+
+import clojure.lang.APersistentMap;
+import clojure.lang.IMapEntry;
+import clojure.lang.IObj;
+import clojure.lang.IPersistentCollection;
+import clojure.lang.IPersistentMap;
+import clojure.lang.ISeq;
+import clojure.lang.Keyword;
+import clojure.lang.MapEntry;
+import clojure.lang.PersistentHashMap;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Envelope;
+
+import java.util.Iterator;
+
+/**
+ * Delivery metadata map that reads its values straight from the
+ * {@link Envelope} and {@link BasicProperties} of a delivery.
+ * <p/>
+ * Lookups do not allocate a map. A regular persistent map with the same
+ * keys as {@code langohr.conversion/to-message-metadata} is only built
+ * when this map is iterated, modified or given metadata.
+ */
+public final class DeliveryMetadata extends APersistentMap implements IObj {
+  public static final int PERSISTENT_MODE = 2;
+
+  private static final Keyword DELIVERY_TAG_KEYWORD = Keyword.intern(null, "delivery-tag");
+  private static final Keyword REDELIVERY_KEYWORD = Keyword.intern(null, "redelivery?");
+  private static final Keyword EXCHANGE_KEYWORD = Keyword.intern(null, "exchange");
+  private static final Keyword ROUTING_KEY_KEYWORD = Keyword.intern(null, "routing-key");
+  private static final Keyword CONTENT_TYPE_KEYWORD = Keyword.intern(null, "content-type");
+  private static final Keyword CONTENT_ENCODING_KEYWORD = Keyword.intern(null, "content-encoding");
+  private static final Keyword HEADERS_KEYWORD = Keyword.intern(null, "headers");
+  private static final Keyword DELIVERY_MODE_KEYWORD = Keyword.intern(null, "delivery-mode");
+  private static final Keyword PERSISTENT_KEYWORD = Keyword.intern(null, "persistent?");
+  private static final Keyword PRIORITY_KEYWORD = Keyword.intern(null, "priority");
+  private static final Keyword CORRELATION_ID_KEYWORD = Keyword.intern(null, "correlation-id");
+  private static final Keyword REPLY_TO_KEYWORD = Keyword.intern(null, "reply-to");
+  private static final Keyword EXPIRATION_KEYWORD = Keyword.intern(null, "expiration");
+  private static final Keyword MESSAGE_ID_KEYWORD = Keyword.intern(null, "message-id");
+  private static final Keyword TIMESTAMP_KEYWORD = Keyword.intern(null, "timestamp");
+  private static final Keyword TYPE_KEYWORD = Keyword.intern(null, "type");
+  private static final Keyword USER_ID_KEYWORD = Keyword.intern(null, "user-id");
+  private static final Keyword APP_ID_KEYWORD = Keyword.intern(null, "app-id");
+  private static final Keyword CLUSTER_ID_KEYWORD = Keyword.intern(null, "cluster-id");
+
+  private static final Keyword[] KEYS = new Keyword[]{
+      DELIVERY_TAG_KEYWORD, REDELIVERY_KEYWORD, EXCHANGE_KEYWORD, ROUTING_KEY_KEYWORD,
+      CONTENT_TYPE_KEYWORD, CONTENT_ENCODING_KEYWORD, HEADERS_KEYWORD, DELIVERY_MODE_KEYWORD,
+      PERSISTENT_KEYWORD, PRIORITY_KEYWORD, CORRELATION_ID_KEYWORD, REPLY_TO_KEYWORD,
+      EXPIRATION_KEYWORD, MESSAGE_ID_KEYWORD, TIMESTAMP_KEYWORD, TYPE_KEYWORD,
+      USER_ID_KEYWORD, APP_ID_KEYWORD, CLUSTER_ID_KEYWORD
+  };
+
+  private static final Object NOT_FOUND = new Object();
+
+  private final Envelope envelope;
+  private final BasicProperties properties;
+  // built on first iteration or modification
+  private IPersistentMap map;
+  private HeadersView headers;
+
+  public DeliveryMetadata(Envelope envelope, BasicProperties properties) {
+    this.envelope = envelope;
+    this.properties = properties;
+  }
+
+  public Envelope getEnvelope() {
+    return envelope;
+  }
+
+  public BasicProperties getProperties() {
+    return properties;
+  }
+
+  public long getDeliveryTag() {
+    return envelope.getDeliveryTag();
+  }
+
+  /**
+   * @return a view of the message headers that decodes values on demand
+   */
+  public HeadersView getHeaders() {
+    HeadersView h = this.headers;
+    if (h == null && properties.getHeaders() != null) {
+      h = new HeadersView(properties.getHeaders());
+      this.headers = h;
+    }
+    return h;
+  }
+
+  public Object valAt(Object key) {
+    return valAt(key, null);
+  }
+
+  public Object valAt(Object key, Object notFound) {
+    if (!(key instanceof Keyword)) {
+      return notFound;
+    }
+    Keyword k = (Keyword) key;
+    if (k.getNamespace() != null) {
+      return notFound;
+    }
+
+    switch (k.getName()) {
+      case "delivery-tag":
+        return envelope.getDeliveryTag();
+      case "redelivery?":
+        return envelope.isRedeliver();
+      case "exchange":
+        return envelope.getExchange();
+      case "routing-key":
+        return envelope.getRoutingKey();
+      case "content-type":
+        return properties.getContentType();
+      case "content-encoding":
+        return properties.getContentEncoding();
+      case "headers":
+        return getHeaders();
+      case "delivery-mode":
+        return properties.getDeliveryMode();
+      case "persistent?":
+        return isPersistent();
+      case "priority":
+        return properties.getPriority();
+      case "correlation-id":
+        return properties.getCorrelationId();
+      case "reply-to":
+        return properties.getReplyTo();
+      case "expiration":
+        return properties.getExpiration();
+      case "message-id":
+        return properties.getMessageId();
+      case "timestamp":
+        return properties.getTimestamp();
+      case "type":
+        return properties.getType();
+      case "user-id":
+        return properties.getUserId();
+      case "app-id":
+        return properties.getAppId();
+      case "cluster-id":
+        return properties.getClusterId();
+      default:
+        return notFound;
+    }
+  }
+
+  public boolean isPersistent() {
+    Integer mode = properties.getDeliveryMode();
+    return mode != null && mode == PERSISTENT_MODE;
+  }
+
+  public boolean containsKey(Object key) {
+    return valAt(key, NOT_FOUND) != NOT_FOUND;
+  }
+
+  public IMapEntry entryAt(Object key) {
+    Object v = valAt(key, NOT_FOUND);
+    if (v == NOT_FOUND) {
+      return null;
+    }
+    return MapEntry.create(key, v);
+  }
+
+  public int count() {
+    return KEYS.length;
+  }
+
+  public IPersistentMap assoc(Object key, Object val) {
+    return toPersistentMap().assoc(key, val);
+  }
+
+  public IPersistentMap assocEx(Object key, Object val) {
+    return toPersistentMap().assocEx(key, val);
+  }
+
+  public IPersistentMap without(Object key) {
+    return toPersistentMap().without(key);
+  }
+
+  public Iterator iterator() {
+    return toPersistentMap().iterator();
+  }
+
+  public ISeq seq() {
+    return toPersistentMap().seq();
+  }
+
+  public IPersistentCollection empty() {
+    return PersistentHashMap.EMPTY;
+  }
+
+  public IPersistentMap meta() {
+    return null;
+  }
+
+  public IObj withMeta(IPersistentMap meta) {
+    return ((IObj) toPersistentMap()).withMeta(meta);
+  }
+
+  /**
+   * @return a regular persistent map with the same keys and values
+   */
+  public IPersistentMap toPersistentMap() {
+    IPersistentMap m = this.map;
+    if (m == null) {
+      Object[] kvs = new Object[KEYS.length * 2];
+      for (int i = 0; i < KEYS.length; i++) {
+        kvs[i * 2] = KEYS[i];
+        kvs[i * 2 + 1] = valAt(KEYS[i]);
+      }
+      m = PersistentHashMap.create(kvs);
+      this.map = m;
+    }
+    return m;
+  }
+}
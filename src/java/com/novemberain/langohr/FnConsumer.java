@@ -1,22 +1,145 @@
 package com.novemberain.langohr;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.novemberain.langohr.metrics.Metrics;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.impl.recovery.AutorecoveringChannel;
 import com.rabbitmq.client.Consumer;
 import com.rabbitmq.client.Delivery;
 import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Recoverable;
 import com.rabbitmq.client.ShutdownSignalException;
 import com.rabbitmq.client.Envelope;
 import com.rabbitmq.client.AMQP.BasicProperties;
+import clojure.lang.IPersistentMap;
+import clojure.lang.LazilyPersistentVector;
+import clojure.lang.PersistentArrayMap;
 import clojure.lang.RT;
 import clojure.lang.Keyword;
 import clojure.lang.IFn;
 
 public final class FnConsumer extends DefaultConsumer {
+    // :batch-size
+    private static final Keyword BATCH_SIZE_KEYWORD = Keyword.intern(null, "batch-size");
+    // :batch-timeout, in milliseconds
+    private static final Keyword BATCH_TIMEOUT_KEYWORD = Keyword.intern(null, "batch-timeout");
+    private static final long DEFAULT_BATCH_TIMEOUT = 100;
+    // :batch-executor
+    private static final Keyword BATCH_EXECUTOR_KEYWORD = Keyword.intern(null, "batch-executor");
+    // :auto-ack
+    private static final Keyword AUTO_ACK_KEYWORD = Keyword.intern(null, "auto-ack");
+    // :worker-threads
+    private static final Keyword WORKER_THREADS_KEYWORD = Keyword.intern(null, "worker-threads");
+    // :worker-queue-size, per worker lane
+    private static final Keyword WORKER_QUEUE_SIZE_KEYWORD = Keyword.intern(null, "worker-queue-size");
+    private static final int DEFAULT_WORKER_QUEUE_SIZE = 1024;
+    // :worker-executor
+    private static final Keyword WORKER_EXECUTOR_KEYWORD = Keyword.intern(null, "worker-executor");
+    // :order-by
+    private static final Keyword ORDER_BY_KEYWORD = Keyword.intern(null, "order-by");
+    // :on-dispatch
+    private static final Keyword ON_DISPATCH_KEYWORD = Keyword.intern(null, "on-dispatch");
+    // :virtual-threads
+    private static final Keyword VIRTUAL_THREADS_KEYWORD = Keyword.intern(null, "virtual-threads");
+    // :prefetch, bounds the number of deliveries handled concurrently on virtual threads
+    private static final Keyword PREFETCH_KEYWORD = Keyword.intern(null, "prefetch");
+    private static final int DEFAULT_VIRTUAL_THREAD_CONCURRENCY = 256;
+    // :metrics
+    private static final Keyword METRICS_KEYWORD = Keyword.intern(null, "metrics");
+    // :adaptive-prefetch
+    private static final Keyword ADAPTIVE_PREFETCH_KEYWORD = Keyword.intern(null, "adaptive-prefetch");
 
-    private final IFn handleConsumeOK, handleCancel, handleCancelOK, handleShutdownSignal, handleRecoverOK, handleDelivery;
+    private static final AtomicInteger WORKER_POOL_COUNTER = new AtomicInteger();
+    private static final AtomicInteger BATCH_CONSUMER_COUNTER = new AtomicInteger();
+
+    // makes the consumer dispatch thread wait for room in a full worker queue
+    // instead of running deliveries out of order or dropping them
+    private static final RejectedExecutionHandler BLOCK_WHEN_FULL = (r, executor) -> {
+        if (executor.isShutdown())
+            throw new RejectedExecutionException("consumer worker pool is shut down");
+        try {
+            executor.getQueue().put(r);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(e);
+        }
+    };
+
+    private static ScheduledExecutorService defaultBatchExecutor;
+
+    private final IFn handleConsumeOK, handleCancel, handleCancelOK, handleShutdownSignal, handleRecoverOK, handleDelivery, handleBatch;
+
+    //
+    // batching
+    //
+
+    // the channel passed in by the caller, acknowledgements go through it
+    // so that delivery tags stay valid after recovery
+    private final Channel ackChannel;
+    private final int batchSize;
+    private final long batchTimeout;
+    private final boolean autoAck;
+    private final ScheduledExecutorService batchExecutor;
+    // runs batch handlers and acknowledgements one batch at a time, in order,
+    // so that neither the shared timer nor batchLock is held while they run
+    private final ExecutorService batchLane;
+
+    private final Object batchLock = new Object();
+    private final List<Object> pending;
+    private long lastDeliveryTag;
+    // when the first delivery of the pending batch was received, only set with metrics
+    private long batchStartedAt;
+    // incremented on every flush so that stale timeouts can be told apart
+    private long batchGeneration;
+    // incremented when pending deliveries are discarded, batches handed off
+    // before that are skipped: their deliveries will be redelivered
+    private volatile long batchEpoch;
+
+    //
+    // worker pools
+    //
+
+    // null when deliveries are handled on the connection's consumer work pool
+    private final ExecutorService[] workers;
+    private final boolean ownsWorkers;
+    private final IFn orderBy;
+    // called in delivery order before a delivery is handed to a worker
+    private final IFn onDispatch;
+    // null unless deliveries are handled on virtual threads
+    private final Semaphore inFlight;
+
+    //
+    // metrics
+    //
+
+    // null unless instrumentation is enabled
+    private final Metrics metrics;
+    // looked up again when the consumer tag changes, e.g. after the prefetch tuner
+    // registered the consumer again
+    private volatile TaggedMetrics consumerMetrics;
+    // null unless prefetch is adjusted to handler latency
+    private final PrefetchTuner prefetchTuner;
+    // true when handler invocations are timed, either for metrics or the prefetch tuner
+    private final boolean timed;
+    // set while the prefetch tuner registers the consumer again
+    private volatile boolean resubscribing;
 
     public static Channel asNonRecovering(Channel c) {
         if (c instanceof AutorecoveringChannel) {
@@ -26,7 +149,40 @@ public final class FnConsumer extends DefaultConsumer {
             return c;
     }
 
+    private static synchronized ScheduledExecutorService getDefaultBatchExecutor() {
+        if (defaultBatchExecutor == null) {
+            defaultBatchExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "langohr-batch-consumer-timer");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return defaultBatchExecutor;
+    }
+
     public FnConsumer(Channel c, Map<Keyword, IFn> handlers) {
+        this(c, handlers, PersistentArrayMap.EMPTY);
+    }
+
+    /**
+     * @param c        channel to consume on
+     * @param handlers consumer life cycle handlers
+     * @param options  when :batch-size is greater than zero, deliveries are buffered
+     *                 and passed to :handle-batch-fn once :batch-size deliveries
+     *                 were received or :batch-timeout milliseconds passed since
+     *                 the first delivery in the batch. Unless :auto-ack is true,
+     *                 batches are acknowledged with a single basic.ack (or basic.nack
+     *                 with requeueing if the handler throws) that has the multiple flag set.
+     *                 Batches are handled one at a time on a thread of the consumer's own,
+     *                 :batch-executor only schedules timeouts.
+     *                 :on-dispatch is called with the metadata of every delivery handed
+     *                 to a worker, on the dispatch thread and in delivery order.
+     *                 When :metrics is provided, deliveries, handler latencies and
+     *                 worker queue waits are recorded to it. When :adaptive-prefetch
+     *                 is a {@link PrefetchTuner}, it is fed handler latencies and
+     *                 started once the consumer is registered.
+     */
+    public FnConsumer(Channel c, Map<Keyword, IFn> handlers, IPersistentMap options) {
 
         super(asNonRecovering(c));
 
@@ -36,23 +192,173 @@ public final class FnConsumer extends DefaultConsumer {
         handleShutdownSignal = handlers.get(RT.keyword(null, "handle-shutdown-signal-fn"));
         handleRecoverOK = handlers.get(RT.keyword(null, "handle-recover-ok-fn"));
         handleDelivery  = handlers.get(RT.keyword(null, "handle-delivery-fn"));
+        handleBatch     = handlers.get(RT.keyword(null, "handle-batch-fn"));
+
+        this.ackChannel = c;
+        Number n = (Number) options.valAt(BATCH_SIZE_KEYWORD, 0);
+        this.batchSize = (handleBatch == null) ? 0 : n.intValue();
+        this.batchTimeout = ((Number) options.valAt(BATCH_TIMEOUT_KEYWORD, DEFAULT_BATCH_TIMEOUT)).longValue();
+        this.autoAck = Util.isTruthy(options.valAt(AUTO_ACK_KEYWORD, false));
+        if (batchSize > 0) {
+            ScheduledExecutorService es = (ScheduledExecutorService) options.valAt(BATCH_EXECUTOR_KEYWORD);
+            this.batchExecutor = (es != null) ? es : getDefaultBatchExecutor();
+            this.batchLane = newBatchLane("langohr-batch-consumer-" + BATCH_CONSUMER_COUNTER.incrementAndGet());
+            this.pending = new ArrayList<Object>(batchSize);
+        } else {
+            this.batchExecutor = null;
+            this.batchLane = null;
+            this.pending = null;
+        }
+
+        this.orderBy = (IFn) options.valAt(ORDER_BY_KEYWORD);
+        this.onDispatch = (IFn) options.valAt(ON_DISPATCH_KEYWORD);
+        ExecutorService es = (ExecutorService) options.valAt(WORKER_EXECUTOR_KEYWORD);
+        int threads = ((Number) options.valAt(WORKER_THREADS_KEYWORD, 0)).intValue();
+        int queueSize = ((Number) options.valAt(WORKER_QUEUE_SIZE_KEYWORD, DEFAULT_WORKER_QUEUE_SIZE)).intValue();
+        Semaphore limit = null;
+        if (es != null) {
+            this.workers = new ExecutorService[]{es};
+            this.ownsWorkers = false;
+        } else if (Util.isTruthy(options.valAt(VIRTUAL_THREADS_KEYWORD, false))) {
+            // a virtual thread per delivery, no more than prefetch of them at a time
+            String name = "langohr-consumer-worker-" + WORKER_POOL_COUNTER.incrementAndGet() + "-";
+            this.workers = new ExecutorService[]{VirtualThreads.newThreadPerTaskExecutor(name)};
+            this.ownsWorkers = true;
+            int prefetch = ((Number) options.valAt(PREFETCH_KEYWORD, 0)).intValue();
+            limit = new Semaphore(prefetch > 0 ? prefetch : DEFAULT_VIRTUAL_THREAD_CONCURRENCY);
+        } else if (threads > 0 && orderBy != null) {
+            // key-ordered: every key is always handled by the same single-threaded lane
+            String name = "langohr-consumer-worker-" + WORKER_POOL_COUNTER.incrementAndGet();
+            this.workers = new ExecutorService[threads];
+            for (int i = 0; i < threads; i++)
+                this.workers[i] = newWorkerPool(1, queueSize, name + "-lane-" + i);
+            this.ownsWorkers = true;
+        } else if (threads > 0) {
+            String name = "langohr-consumer-worker-" + WORKER_POOL_COUNTER.incrementAndGet();
+            this.workers = new ExecutorService[]{newWorkerPool(threads, queueSize, name)};
+            this.ownsWorkers = true;
+        } else {
+            this.workers = null;
+            this.ownsWorkers = false;
+        }
+        this.inFlight = limit;
+        this.metrics = (Metrics) options.valAt(METRICS_KEYWORD);
+        this.prefetchTuner = (PrefetchTuner) options.valAt(ADAPTIVE_PREFETCH_KEYWORD);
+        if (prefetchTuner != null)
+            prefetchTuner.attach(c, capacity(es, threads));
+        this.timed = metrics != null || prefetchTuner != null;
+    }
+
+    // number of deliveries handled at a time
+    private int capacity(ExecutorService es, int threads) {
+        if (batchSize > 0)
+            return batchSize;
+        if (inFlight != null)
+            return inFlight.availablePermits();
+        if (es instanceof ThreadPoolExecutor)
+            return ((ThreadPoolExecutor) es).getMaximumPoolSize();
+        if (es == null && threads > 0)
+            return threads;
+        return 1;
+    }
 
+    private static ExecutorService newWorkerPool(int threads, int queueSize, final String name) {
+        final AtomicInteger counter = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                                      new ArrayBlockingQueue<Runnable>(queueSize),
+                                      r -> {
+                                          Thread t = new Thread(r, name + "-" + counter.incrementAndGet());
+                                          t.setDaemon(true);
+                                          return t;
+                                      },
+                                      BLOCK_WHEN_FULL);
+    }
+
+    private static ExecutorService newBatchLane(final String name) {
+        return new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                                      new LinkedBlockingQueue<Runnable>(),
+                                      r -> {
+                                          Thread t = new Thread(r, name);
+                                          t.setDaemon(true);
+                                          return t;
+                                      });
+    }
+
+    public boolean isBatching() {
+        return batchSize > 0;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public boolean usesWorkerPool() {
+        return workers != null;
+    }
+
+    public boolean usesVirtualThreads() {
+        return inFlight != null;
+    }
+
+    public PrefetchTuner getPrefetchTuner() {
+        return prefetchTuner;
+    }
+
+    /**
+     * Marks the next registration of this consumer as a re-subscription
+     * done to apply a new prefetch: it is not reported to :handle-consume-ok-fn,
+     * and cancelling the previous registration is not reported or treated
+     * as the end of the consumer.
+     */
+    public void beginResubscribe() {
+        resubscribing = true;
+    }
+
+    /**
+     * Shuts down worker pools created by this consumer. Called automatically
+     * when the consumer is cancelled or its channel is closed for good, i.e.
+     * unless connection recovery will register the consumer again.
+     */
+    public void shutdownWorkers() {
+        if (batchLane != null)
+            batchLane.shutdown();
+        if (ownsWorkers) {
+            for (ExecutorService es : workers)
+                es.shutdown();
+        }
+        if (prefetchTuner != null)
+            prefetchTuner.close();
     }
 
     @Override
     public void handleConsumeOk(String consumerTag) {
+        super.handleConsumeOk(consumerTag);
+        if (resubscribing) {
+            resubscribing = false;
+            return;
+        }
+        if (prefetchTuner != null)
+            prefetchTuner.start();
         if (handleConsumeOK != null)
             handleConsumeOK.invoke(consumerTag);
     }
 
     @Override
     public void handleCancelOk(String consumerTag) {
+        if (isReplaced(consumerTag))
+            return;
+        flushPending(consumerTag);
+        shutdownWorkers();
         if (handleCancelOK != null)
             handleCancelOK.invoke(consumerTag);
     }
 
     @Override
     public void handleCancel(String consumerTag) {
+        if (isReplaced(consumerTag))
+            return;
+        flushPending(consumerTag);
+        shutdownWorkers();
         if (handleCancel != null)
             handleCancel.invoke(consumerTag);
     }
@@ -65,13 +371,257 @@ public final class FnConsumer extends DefaultConsumer {
 
     @Override
     public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+        discardPending();
+        // with automatic recovery the same consumer instance is registered again
+        // on the recovered channel, so workers are kept unless the channel will not
+        // be recovered: it was closed by the application or a channel error, or it
+        // does not recover at all
+        if (sig.isInitiatedByApplication() || !sig.isHardError() || !(ackChannel instanceof Recoverable))
+            shutdownWorkers();
         if (handleShutdownSignal != null)
             handleShutdownSignal.invoke(consumerTag, sig);
     }
 
     @Override
     public void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties, byte[] body) {
-        if (handleDelivery != null)
+        if (metrics != null)
+            consumerMetrics(consumerTag).delivered();
+        if (batchSize > 0)
+            bufferDelivery(consumerTag, envelope, properties, body);
+        else if (handleDelivery != null) {
+            if (workers != null)
+                dispatch(consumerTag, envelope, properties, body);
+            else if (!timed)
+                handleDelivery.invoke(consumerTag, envelope, properties, body);
+            else
+                invokeTimed(System.nanoTime(), consumerTag, envelope, properties, body);
+        }
+    }
+
+    //
+    // Implementation
+    //
+
+    // true for a registration replaced by a re-subscription
+    private boolean isReplaced(String consumerTag) {
+        return prefetchTuner != null && !consumerTag.equals(getConsumerTag());
+    }
+
+    // batches are handled on batchLane. Full batches are waited for, so the
+    // dispatch thread is held back by a slow handler as if it ran the handler
+    // itself; the timer only hands a timed out batch off.
+    private void bufferDelivery(final String consumerTag, Envelope envelope, BasicProperties properties, byte[] body) {
+        Future<?> flushed = null;
+        synchronized (batchLock) {
+            pending.add(LazilyPersistentVector.createOwning(new DeliveryMetadata(envelope, properties), body));
+            lastDeliveryTag = envelope.getDeliveryTag();
+            if (metrics != null && pending.size() == 1)
+                batchStartedAt = System.nanoTime();
+
+            if (pending.size() >= batchSize) {
+                flushed = handOff(consumerTag);
+            } else if (pending.size() == 1 && batchTimeout > 0) {
+                final long generation = batchGeneration;
+                batchExecutor.schedule(() -> {
+                    synchronized (batchLock) {
+                        if (generation == batchGeneration && !pending.isEmpty())
+                            handOff(consumerTag);
+                    }
+                }, batchTimeout, TimeUnit.MILLISECONDS);
+            }
+        }
+        awaitBatch(flushed, consumerTag);
+    }
+
+    private void dispatch(final String consumerTag, final Envelope envelope, final BasicProperties properties, final byte[] body) {
+        if (onDispatch != null)
+            onDispatch.invoke(new DeliveryMetadata(envelope, properties));
+        ExecutorService es = workers[laneFor(envelope, properties)];
+        if (inFlight != null) {
+            dispatchBounded(es, consumerTag, envelope, properties, body);
+            return;
+        }
+        final long queuedAt = (metrics == null) ? 0 : System.nanoTime();
+        es.execute(() -> {
+            try {
+                handleOnWorker(consumerTag, envelope, properties, body, queuedAt);
+            } catch (Throwable t) {
+                reportException(t, consumerTag);
+            }
+        });
+    }
+
+    // a thread per delivery: the semaphore is what keeps the number of
+    // concurrently handled deliveries (and threads) bounded
+    private void dispatchBounded(ExecutorService es, final String consumerTag, final Envelope envelope,
+                                 final BasicProperties properties, final byte[] body) {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(e);
+        }
+        final long queuedAt = (metrics == null) ? 0 : System.nanoTime();
+        try {
+            es.execute(() -> {
+                try {
+                    handleOnWorker(consumerTag, envelope, properties, body, queuedAt);
+                } catch (Throwable t) {
+                    reportException(t, consumerTag);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    private void handleOnWorker(String consumerTag, Envelope envelope, BasicProperties properties, byte[] body, long queuedAt) {
+        if (!timed) {
             handleDelivery.invoke(consumerTag, envelope, properties, body);
+            return;
+        }
+        long start = System.nanoTime();
+        if (metrics != null)
+            consumerMetrics(consumerTag).queued(start - queuedAt);
+        invokeTimed(start, consumerTag, envelope, properties, body);
+    }
+
+    private void invokeTimed(long start, String consumerTag,
+                             Envelope envelope, BasicProperties properties, byte[] body) {
+        boolean failed = true;
+        try {
+            handleDelivery.invoke(consumerTag, envelope, properties, body);
+            failed = false;
+        } finally {
+            handled(consumerTag, System.nanoTime() - start, failed);
+        }
+    }
+
+    private void handled(String consumerTag, long nanos, boolean failed) {
+        if (metrics != null)
+            consumerMetrics(consumerTag).handled(nanos, failed);
+        if (prefetchTuner != null)
+            prefetchTuner.handled(nanos);
+    }
+
+    private Metrics.ConsumerMetrics consumerMetrics(String consumerTag) {
+        TaggedMetrics m = consumerMetrics;
+        if (m == null || !m.consumerTag.equals(consumerTag)) {
+            m = new TaggedMetrics(consumerTag, metrics.consumer(consumerTag));
+            consumerMetrics = m;
+        }
+        return m.recorder;
+    }
+
+    private int laneFor(Envelope envelope, BasicProperties properties) {
+        if (workers.length == 1)
+            return 0;
+        Object key = orderBy.invoke(new DeliveryMetadata(envelope, properties));
+        int h = (key == null) ? 0 : key.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), workers.length);
+    }
+
+    private void flushPending(String consumerTag) {
+        if (batchSize > 0) {
+            Future<?> flushed = null;
+            synchronized (batchLock) {
+                if (!pending.isEmpty())
+                    flushed = handOff(consumerTag);
+            }
+            awaitBatch(flushed, consumerTag);
+        }
+    }
+
+    private void discardPending() {
+        if (batchSize > 0) {
+            synchronized (batchLock) {
+                batchGeneration++;
+                batchEpoch++;
+                pending.clear();
+            }
+        }
+    }
+
+    // must be called with batchLock held, so that batches are queued on
+    // the lane in the order they were taken
+    private Future<?> handOff(final String consumerTag) {
+        batchGeneration++;
+        final Object batch = LazilyPersistentVector.create(pending);
+        final long tag = lastDeliveryTag;
+        final int count = pending.size();
+        final long startedAt = batchStartedAt;
+        final long epoch = batchEpoch;
+        pending.clear();
+        try {
+            return batchLane.submit(() -> {
+                if (epoch == batchEpoch)
+                    flush(consumerTag, batch, tag, count, startedAt);
+            });
+        } catch (RejectedExecutionException e) {
+            // the consumer is cancelled or its channel closed
+            return null;
+        }
+    }
+
+    private void awaitBatch(Future<?> flushed, String consumerTag) {
+        if (flushed == null)
+            return;
+        try {
+            flushed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            reportException(e.getCause(), consumerTag);
+        }
+    }
+
+    private void flush(String consumerTag, Object batch, long tag, int count, long startedAt) {
+        long start = timed ? System.nanoTime() : 0;
+
+        try {
+            handleBatch.invoke(consumerTag, batch);
+            if (timed)
+                handled(consumerTag, System.nanoTime() - start, false);
+        } catch (Throwable t) {
+            if (timed)
+                handled(consumerTag, System.nanoTime() - start, true);
+            if (!autoAck) {
+                try {
+                    ackChannel.basicNack(tag, true, true);
+                } catch (IOException ioe) {
+                    reportException(ioe, consumerTag);
+                }
+            }
+            reportException(t, consumerTag);
+            return;
+        }
+
+        if (!autoAck) {
+            try {
+                ackChannel.basicAck(tag, true);
+                if (metrics != null)
+                    consumerMetrics(consumerTag).acked(count, System.nanoTime() - startedAt);
+            } catch (IOException ioe) {
+                reportException(ioe, consumerTag);
+            }
+        }
+    }
+
+    private void reportException(Throwable t, String consumerTag) {
+        ackChannel.getConnection().getExceptionHandler()
+            .handleConsumerException(ackChannel, t, this, consumerTag, "handleDelivery");
+    }
+
+    private static final class TaggedMetrics {
+        private final String consumerTag;
+        private final Metrics.ConsumerMetrics recorder;
+
+        private TaggedMetrics(String consumerTag, Metrics.ConsumerMetrics recorder) {
+            this.consumerTag = consumerTag;
+            this.recorder = recorder;
+        }
     }
-}
\ No newline at end of file
+}
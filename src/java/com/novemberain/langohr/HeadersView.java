@@ -0,0 +1,298 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr;
+
+import clojure.lang.APersistentMap;
+import clojure.lang.IMapEntry;
+import clojure.lang.IObj;
+import clojure.lang.IPersistentCollection;
+import clojure.lang.IPersistentMap;
+import clojure.lang.ISeq;
+import clojure.lang.LazilyPersistentVector;
+import clojure.lang.MapEntry;
+import clojure.lang.PersistentHashMap;
+import com.rabbitmq.client.LongString;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Message headers map that decodes values only when they are looked up.
+ * <p/>
+ * Keys are strings, as in the headers table. {@link LongString} values are
+ * returned as strings, which for values up to 64 bytes long come from a
+ * small cache of recently seen ones, so that repeated values (tenant ids,
+ * event types and so on) are not decoded over and over. Nested tables are
+ * returned as views, arrays as vectors.
+ * <p/>
+ * Typed accessors such as {@link #getLong(String, long)} read numbers and
+ * booleans straight from the headers table, parsing string values
+ * without decoding them. A regular persistent map is only built when
+ * this map is iterated, modified or given metadata.
+ */
+public final class HeadersView extends APersistentMap implements IObj {
+  private static final int MAX_INTERNED_LENGTH = 64;
+  private static final int INTERN_CACHE_SIZE = 1024;
+
+  private static final class Interned {
+    private final byte[] bytes;
+    private final String value;
+
+    private Interned(byte[] bytes, String value) {
+      this.bytes = bytes;
+      this.value = value;
+    }
+  }
+
+  // entries are immutable, racy reads and writes at worst cause misses
+  private static final Interned[] INTERNED = new Interned[INTERN_CACHE_SIZE];
+
+  private static final Object NOT_FOUND = new Object();
+
+  private final Map<String, Object> headers;
+  // built on first iteration or modification
+  private IPersistentMap map;
+
+  public HeadersView(Map<String, Object> headers) {
+    this.headers = headers;
+  }
+
+  /**
+   * @return the headers table this view reads from
+   */
+  public Map<String, Object> getHeaders() {
+    return headers;
+  }
+
+  public Object valAt(Object key) {
+    return valAt(key, null);
+  }
+
+  public Object valAt(Object key, Object notFound) {
+    Object v = headers.get(key);
+    if (v == null && !headers.containsKey(key)) {
+      return notFound;
+    }
+    return decode(v);
+  }
+
+  /**
+   * @return the value of a header as a string, or null if there is no such header
+   */
+  public String getString(String key) {
+    Object v = headers.get(key);
+    if (v == null || v instanceof String) {
+      return (String) v;
+    }
+    if (v instanceof LongString) {
+      return intern(((LongString) v).getBytes());
+    }
+    if (v instanceof byte[]) {
+      return new String((byte[]) v, StandardCharsets.UTF_8);
+    }
+    return v.toString();
+  }
+
+  /**
+   * @return the value of a numeric header, or of a string header parsed as
+   * a number, or notFound if there is no such header
+   */
+  public long getLong(String key, long notFound) {
+    Object v = headers.get(key);
+    if (v == null) {
+      return notFound;
+    }
+    if (v instanceof Number) {
+      return ((Number) v).longValue();
+    }
+    if (v instanceof LongString) {
+      return parseLong(((LongString) v).getBytes());
+    }
+    if (v instanceof String) {
+      return Long.parseLong((String) v);
+    }
+    if (v instanceof Date) {
+      return ((Date) v).getTime();
+    }
+    throw new IllegalArgumentException("header " + key + " is not a number: " + v.getClass().getName());
+  }
+
+  /**
+   * @return the value of a boolean header, or of a string header compared to "true"
+   * ignoring case, or notFound if there is no such header
+   */
+  public boolean getBoolean(String key, boolean notFound) {
+    Object v = headers.get(key);
+    if (v == null) {
+      return notFound;
+    }
+    if (v instanceof Boolean) {
+      return (Boolean) v;
+    }
+    if (v instanceof LongString) {
+      byte[] bs = ((LongString) v).getBytes();
+      return bs.length == 4 && (bs[0] | 0x20) == 't' && (bs[1] | 0x20) == 'r'
+          && (bs[2] | 0x20) == 'u' && (bs[3] | 0x20) == 'e';
+    }
+    if (v instanceof String) {
+      return Boolean.parseBoolean((String) v);
+    }
+    if (v instanceof Number) {
+      return ((Number) v).longValue() != 0;
+    }
+    throw new IllegalArgumentException("header " + key + " is not a boolean: " + v.getClass().getName());
+  }
+
+  /**
+   * @return the value of a timestamp header in milliseconds since the epoch,
+   * numeric headers are taken to be such values, or notFound if there
+   * is no such header
+   */
+  public long getTimestamp(String key, long notFound) {
+    Object v = headers.get(key);
+    if (v == null) {
+      return notFound;
+    }
+    if (v instanceof Date) {
+      return ((Date) v).getTime();
+    }
+    if (v instanceof Number) {
+      return ((Number) v).longValue();
+    }
+    throw new IllegalArgumentException("header " + key + " is not a timestamp: " + v.getClass().getName());
+  }
+
+  public boolean containsKey(Object key) {
+    return headers.containsKey(key);
+  }
+
+  public IMapEntry entryAt(Object key) {
+    Object v = valAt(key, NOT_FOUND);
+    if (v == NOT_FOUND) {
+      return null;
+    }
+    return MapEntry.create(key, v);
+  }
+
+  public int count() {
+    return headers.size();
+  }
+
+  public IPersistentMap assoc(Object key, Object val) {
+    return toPersistentMap().assoc(key, val);
+  }
+
+  public IPersistentMap assocEx(Object key, Object val) {
+    return toPersistentMap().assocEx(key, val);
+  }
+
+  public IPersistentMap without(Object key) {
+    return toPersistentMap().without(key);
+  }
+
+  public Iterator iterator() {
+    return toPersistentMap().iterator();
+  }
+
+  public ISeq seq() {
+    return toPersistentMap().seq();
+  }
+
+  public IPersistentCollection empty() {
+    return PersistentHashMap.EMPTY;
+  }
+
+  public IPersistentMap meta() {
+    return null;
+  }
+
+  public IObj withMeta(IPersistentMap meta) {
+    return ((IObj) toPersistentMap()).withMeta(meta);
+  }
+
+  /**
+   * @return a regular persistent map with all values decoded
+   */
+  public IPersistentMap toPersistentMap() {
+    IPersistentMap m = this.map;
+    if (m == null) {
+      Object[] kvs = new Object[headers.size() * 2];
+      int i = 0;
+      for (Map.Entry<String, Object> e : headers.entrySet()) {
+        kvs[i++] = e.getKey();
+        kvs[i++] = decode(e.getValue());
+      }
+      m = PersistentHashMap.create(kvs);
+      this.map = m;
+    }
+    return m;
+  }
+
+  //
+  // Implementation
+  //
+
+  @SuppressWarnings("unchecked")
+  static Object decode(Object v) {
+    if (v instanceof LongString) {
+      return intern(((LongString) v).getBytes());
+    }
+    if (v instanceof Map) {
+      return new HeadersView((Map<String, Object>) v);
+    }
+    if (v instanceof List) {
+      List<Object> xs = (List<Object>) v;
+      Object[] decoded = new Object[xs.size()];
+      for (int i = 0; i < decoded.length; i++) {
+        decoded[i] = decode(xs.get(i));
+      }
+      return LazilyPersistentVector.createOwning(decoded);
+    }
+    return v;
+  }
+
+  static String intern(byte[] bytes) {
+    if (bytes.length > MAX_INTERNED_LENGTH) {
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+    int h = Arrays.hashCode(bytes);
+    int i = (h ^ (h >>> 16)) & (INTERN_CACHE_SIZE - 1);
+    Interned e = INTERNED[i];
+    if (e != null && Arrays.equals(e.bytes, bytes)) {
+      return e.value;
+    }
+    String s = new String(bytes, StandardCharsets.UTF_8);
+    INTERNED[i] = new Interned(bytes, s);
+    return s;
+  }
+
+  // parses ASCII digits without decoding them into a string first
+  private static long parseLong(byte[] bs) {
+    int n = bs.length;
+    int i = (n > 0 && (bs[0] == '-' || bs[0] == '+')) ? 1 : 0;
+    // up to 18 digits cannot overflow
+    if (n == i || n - i > 18) {
+      return Long.parseLong(new String(bs, StandardCharsets.US_ASCII));
+    }
+    long acc = 0;
+    for (int j = i; j < n; j++) {
+      int d = bs[j] - '0';
+      if (d < 0 || d > 9) {
+        throw new NumberFormatException("For input string: \"" + new String(bs, StandardCharsets.UTF_8) + "\"");
+      }
+      acc = acc * 10 + d;
+    }
+    return (bs[0] == '-') ? -acc : acc;
+  }
+}
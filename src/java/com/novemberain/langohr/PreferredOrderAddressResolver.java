@@ -0,0 +1,31 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.ListAddressResolver;
+
+import java.util.List;
+
+/**
+ * Address resolver that tries addresses in the order given instead of
+ * shuffling them, so that a connection prefers the first address and only
+ * falls back to the others (also when recovering).
+ */
+public class PreferredOrderAddressResolver extends ListAddressResolver {
+  public PreferredOrderAddressResolver(List<Address> addresses) {
+    super(addresses);
+  }
+
+  @Override
+  public List<Address> maybeShuffle(List<Address> input) {
+    return input;
+  }
+}
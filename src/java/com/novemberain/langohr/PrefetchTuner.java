@@ -0,0 +1,295 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr;
+
+import clojure.lang.IFn;
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+import com.rabbitmq.client.Channel;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adjusts the prefetch of a consumer's channel to the consumer's observed
+ * service time and the round trip time to RabbitMQ.
+ * <p/>
+ * Every :interval milliseconds the prefetch is set, with basic.qos, to the
+ * number of deliveries that keeps the consumer busy over a round trip:
+ * capacity * (1 + round trip / service time) * :headroom, where capacity is
+ * the number of deliveries the consumer handles at a time (worker threads,
+ * or the batch size of a batching consumer) and service time is how long
+ * handling takes. The result is bounded by :min and :max and changes by at
+ * most a factor of two per interval. Round trips are measured with the
+ * basic.qos calls themselves.
+ * <p/>
+ * The per-consumer limit (basic.qos with global set to false) is used:
+ * quorum queues and streams do not support the channel-wide one. It only
+ * applies to consumers registered after it, so every adjustment re-subscribes
+ * the consumer with the function passed to {@link #resubscribeWith(String, IFn)}:
+ * it is registered again under a new consumer tag and the previous
+ * registration is cancelled, see {@link #getConsumerTag()}. Consumers using
+ * a tuner should have a channel of their own.
+ */
+public class PrefetchTuner implements AutoCloseable {
+  private static final Keyword MIN_KEYWORD = Keyword.intern(null, "min");
+  private static final Keyword MAX_KEYWORD = Keyword.intern(null, "max");
+  private static final Keyword INITIAL_KEYWORD = Keyword.intern(null, "initial");
+  private static final Keyword INTERVAL_KEYWORD = Keyword.intern(null, "interval");
+  private static final Keyword HEADROOM_KEYWORD = Keyword.intern(null, "headroom");
+  private static final Keyword EXECUTOR_KEYWORD = Keyword.intern(null, "executor");
+  private static final Keyword PREFETCH_KEYWORD = Keyword.intern(null, "prefetch");
+  private static final Keyword TARGET_KEYWORD = Keyword.intern(null, "target");
+  private static final Keyword CAPACITY_KEYWORD = Keyword.intern(null, "capacity");
+  private static final Keyword SERVICE_TIME_KEYWORD = Keyword.intern(null, "service-time");
+  private static final Keyword ROUND_TRIP_KEYWORD = Keyword.intern(null, "round-trip");
+  private static final Keyword RATE_KEYWORD = Keyword.intern(null, "rate");
+  private static final Keyword ADJUSTMENTS_KEYWORD = Keyword.intern(null, "adjustments");
+  private static final Keyword CONSUMER_TAG_KEYWORD = Keyword.intern(null, "consumer-tag");
+  private static final int DEFAULT_MIN = 1;
+  private static final int DEFAULT_MAX = 1000;
+  private static final int DEFAULT_INITIAL = 16;
+  private static final long DEFAULT_INTERVAL = 1000;
+  private static final double DEFAULT_HEADROOM = 1.5;
+  // weight of the latest interval in moving averages
+  private static final double ALPHA = 0.3;
+
+  private static ScheduledExecutorService defaultExecutor;
+
+  private final int min;
+  private final int max;
+  private final long interval;
+  private final double headroom;
+  private final ScheduledExecutorService executor;
+
+  private final LongAdder handled = new LongAdder();
+  private final LongAdder handledNanos = new LongAdder();
+  private final AtomicLong adjustments = new AtomicLong();
+
+  private Channel channel;
+  private int capacity = 1;
+  // registers the consumer again and cancels the registration with the given tag
+  private IFn resubscribe;
+  private volatile String consumerTag;
+  private ScheduledFuture<?> task;
+  // only written on the executor, moving averages in nanoseconds
+  private long lastTickAt;
+  private volatile double serviceTime;
+  private volatile double roundTrip;
+  private volatile double rate;
+  private volatile int prefetch;
+  private volatile int target;
+
+  public PrefetchTuner(IPersistentMap options) {
+    this.min = ((Number) options.valAt(MIN_KEYWORD, DEFAULT_MIN)).intValue();
+    this.max = ((Number) options.valAt(MAX_KEYWORD, DEFAULT_MAX)).intValue();
+    if (min <= 0 || max < min) {
+      throw new IllegalArgumentException("prefetch bounds must be positive and min must not exceed max");
+    }
+    this.interval = ((Number) options.valAt(INTERVAL_KEYWORD, DEFAULT_INTERVAL)).longValue();
+    this.headroom = ((Number) options.valAt(HEADROOM_KEYWORD, DEFAULT_HEADROOM)).doubleValue();
+    if (interval <= 0 || headroom <= 0) {
+      throw new IllegalArgumentException("interval and headroom must be positive");
+    }
+    ScheduledExecutorService es = (ScheduledExecutorService) options.valAt(EXECUTOR_KEYWORD);
+    this.executor = (es != null) ? es : getDefaultExecutor();
+    this.prefetch = clamp(((Number) options.valAt(INITIAL_KEYWORD, DEFAULT_INITIAL)).intValue());
+    this.target = prefetch;
+  }
+
+  private static synchronized ScheduledExecutorService getDefaultExecutor() {
+    if (defaultExecutor == null) {
+      defaultExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "langohr-prefetch-tuner");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    return defaultExecutor;
+  }
+
+  /**
+   * @return the prefetch that was last set, or is to be set initially
+   */
+  public int getPrefetch() {
+    return prefetch;
+  }
+
+  /**
+   * Associates the tuner with a consumer, done by {@link FnConsumer}.
+   *
+   * @param capacity number of deliveries the consumer handles at a time
+   */
+  public synchronized void attach(Channel ch, int capacity) {
+    if (channel != null && channel != ch) {
+      throw new IllegalStateException("prefetch tuner is already used by a consumer on another channel");
+    }
+    this.channel = ch;
+    this.capacity = Math.max(1, capacity);
+  }
+
+  /**
+   * Sets the function that applies a new prefetch to the consumer, done
+   * by langohr.consumers/subscribe once the consumer is registered.
+   *
+   * @param consumerTag tag of the consumer's current registration
+   * @param resubscribe function of the current consumer tag that registers
+   *                    the consumer again and cancels the current registration,
+   *                    returns the new consumer tag
+   */
+  public synchronized void resubscribeWith(String consumerTag, IFn resubscribe) {
+    this.consumerTag = consumerTag;
+    this.resubscribe = resubscribe;
+  }
+
+  /**
+   * @return tag of the consumer's current registration, it changes with
+   *         every adjustment
+   */
+  public String getConsumerTag() {
+    return consumerTag;
+  }
+
+  /**
+   * Starts periodic adjustments, done by {@link FnConsumer} once
+   * the consumer is registered. Does nothing when already started.
+   */
+  public synchronized void start() {
+    if (channel == null) {
+      throw new IllegalStateException("prefetch tuner is not attached to a consumer");
+    }
+    if (task == null) {
+      lastTickAt = System.nanoTime();
+      task = executor.scheduleWithFixedDelay(this::tick, interval, interval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Stops periodic adjustments, the prefetch stays at its last value.
+   */
+  public synchronized void close() {
+    if (task != null) {
+      task.cancel(false);
+      task = null;
+    }
+  }
+
+  /**
+   * Records a handler invocation.
+   */
+  public void handled(long nanos) {
+    handled.increment();
+    handledNanos.add(nanos);
+  }
+
+  /**
+   * @return a map of :prefetch, :target, :capacity, :service-time and :round-trip
+   *         (moving averages in milliseconds), :rate (handler invocations per second),
+   *         :adjustments (number of prefetch changes) and the current :consumer-tag
+   */
+  public IPersistentMap stats() {
+    return PersistentArrayMap.EMPTY
+        .assoc(CONSUMER_TAG_KEYWORD, consumerTag)
+        .assoc(PREFETCH_KEYWORD, prefetch)
+        .assoc(TARGET_KEYWORD, target)
+        .assoc(CAPACITY_KEYWORD, capacity)
+        .assoc(SERVICE_TIME_KEYWORD, serviceTime / 1e6)
+        .assoc(ROUND_TRIP_KEYWORD, roundTrip / 1e6)
+        .assoc(RATE_KEYWORD, rate)
+        .assoc(ADJUSTMENTS_KEYWORD, adjustments.get());
+  }
+
+  //
+  // Implementation
+  //
+
+  private void tick() {
+    long now = System.nanoTime();
+    long n = handled.sumThenReset();
+    long nanos = handledNanos.sumThenReset();
+    rate = average(rate, n * 1e9 / Math.max(1, now - lastTickAt));
+    lastTickAt = now;
+    if (n > 0) {
+      serviceTime = average(serviceTime, (double) nanos / n);
+    }
+
+    Channel ch;
+    IFn f;
+    synchronized (this) {
+      ch = channel;
+      f = resubscribe;
+    }
+    if (f == null || !ch.isOpen()) {
+      // awaiting registration or recovery
+      return;
+    }
+    int current = prefetch;
+    if (roundTrip == 0) {
+      // no round trip measured yet
+      qos(ch, current);
+      return;
+    }
+    if (serviceTime == 0) {
+      return;
+    }
+    double desired = Math.ceil(capacity * (1 + roundTrip / serviceTime) * headroom);
+    int next = clamp((int) Math.max(current / 2, Math.min(2.0 * current, desired)));
+    target = clamp((int) Math.min(Integer.MAX_VALUE, desired));
+    // ignore changes of less than 10%
+    if (Math.abs(next - current) > current / 10 && next != current) {
+      if (qos(ch, next)) {
+        if (resubscribe(f)) {
+          prefetch = next;
+          adjustments.incrementAndGet();
+        } else {
+          // later registrations, e.g. by recovery, must not use a prefetch
+          // that was never applied
+          qos(ch, current);
+        }
+      }
+    }
+  }
+
+  private boolean resubscribe(IFn f) {
+    try {
+      consumerTag = (String) f.invoke(consumerTag);
+      return true;
+    } catch (Exception e) {
+      // the channel is closed or closing, retried on the next tick
+      return false;
+    }
+  }
+
+  private boolean qos(Channel ch, int n) {
+    long start = System.nanoTime();
+    try {
+      ch.basicQos(n, false);
+    } catch (IOException | RuntimeException e) {
+      // the channel is closed or closing, retried on the next tick
+      return false;
+    }
+    roundTrip = average(roundTrip, System.nanoTime() - start);
+    return true;
+  }
+
+  private static double average(double avg, double sample) {
+    return (avg == 0) ? sample : avg + ALPHA * (sample - avg);
+  }
+
+  private int clamp(int n) {
+    return Math.max(min, Math.min(max, n));
+  }
+}
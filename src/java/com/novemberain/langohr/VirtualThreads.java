@@ -0,0 +1,96 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to virtual threads (JDK 21+) via reflection, so that Langohr
+ * can still be compiled for and run on earlier JDKs.
+ */
+public final class VirtualThreads {
+  private static final Method OF_VIRTUAL;
+  private static final Method BUILDER_NAME;
+  private static final Method BUILDER_FACTORY;
+  private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+  private static final boolean SUPPORTED;
+
+  static {
+    Method ofVirtual = null;
+    Method name = null;
+    Method factory = null;
+    Method newThreadPerTaskExecutor = null;
+    boolean supported = false;
+    try {
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+      Class<?> builder = Class.forName("java.lang.Thread$Builder");
+      name = builder.getMethod("name", String.class, long.class);
+      factory = builder.getMethod("factory");
+      newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+      // virtual threads are a preview feature on JDK 19 and 20
+      factory.invoke(ofVirtual.invoke(null));
+      supported = true;
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // not available on this JDK
+    }
+    OF_VIRTUAL = ofVirtual;
+    BUILDER_NAME = name;
+    BUILDER_FACTORY = factory;
+    NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+    SUPPORTED = supported;
+  }
+
+  private VirtualThreads() {
+  }
+
+  public static boolean isSupported() {
+    return SUPPORTED;
+  }
+
+  /**
+   * @param prefix thread name prefix, threads are numbered starting at 0
+   * @return a factory of virtual threads
+   * @throws UnsupportedOperationException when running on a JDK without virtual threads
+   */
+  public static ThreadFactory newThreadFactory(String prefix) {
+    ensureSupported();
+    try {
+      Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 0L);
+      return (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+    } catch (IllegalAccessException | InvocationTargetException e) {
+      throw new UnsupportedOperationException("could not create a virtual thread factory", e);
+    }
+  }
+
+  /**
+   * @param prefix thread name prefix
+   * @return an executor that starts a new virtual thread for each task
+   * @throws UnsupportedOperationException when running on a JDK without virtual threads
+   */
+  public static ExecutorService newThreadPerTaskExecutor(String prefix) {
+    ThreadFactory tf = newThreadFactory(prefix);
+    try {
+      return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, tf);
+    } catch (IllegalAccessException | InvocationTargetException e) {
+      throw new UnsupportedOperationException("could not create a virtual thread executor", e);
+    }
+  }
+
+  private static void ensureSupported() {
+    if (!SUPPORTED) {
+      throw new UnsupportedOperationException("virtual threads require JDK 21 or later, running on " +
+                                                  System.getProperty("java.version"));
+    }
+  }
+}
@@ -0,0 +1,52 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.basic;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Turns buffers and array regions into message bodies.
+ * <p/>
+ * The Java client only accepts whole arrays and copies them into frames
+ * during basic.publish, so the backing array is passed through whenever it
+ * is exactly the body and a single copy is made otherwise.
+ */
+public final class Bodies {
+  private Bodies() {
+  }
+
+  /**
+   * @return the remaining bytes of given buffer, its position is not modified
+   */
+  public static byte[] fromByteBuffer(ByteBuffer bb) {
+    if (bb.hasArray() && bb.arrayOffset() == 0 && bb.position() == 0 &&
+        bb.remaining() == bb.array().length) {
+      return bb.array();
+    }
+    byte[] body = new byte[bb.remaining()];
+    bb.duplicate().get(body);
+    return body;
+  }
+
+  /**
+   * @return length bytes of given array starting at offset
+   */
+  public static byte[] slice(byte[] bytes, int offset, int length) {
+    if (offset < 0 || length < 0 || offset + length > bytes.length) {
+      throw new IndexOutOfBoundsException("offset: " + offset + ", length: " + length +
+                                              ", array length: " + bytes.length);
+    }
+    if (offset == 0 && length == bytes.length) {
+      return bytes;
+    }
+    return Arrays.copyOfRange(bytes, offset, offset + length);
+  }
+}
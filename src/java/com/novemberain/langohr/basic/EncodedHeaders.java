@@ -0,0 +1,153 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.basic;
+
+import clojure.lang.BigInt;
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.Named;
+import com.novemberain.langohr.HeadersView;
+
+import java.math.BigDecimal;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A headers table view of a Clojure map, for message properties.
+ * <p/>
+ * Keyword and symbol keys become strings (":tenant" becomes "tenant",
+ * ":acme/tenant" becomes "acme/tenant"), as do keyword, symbol and UUID values.
+ * Nested maps and lists are converted the same way. Conversion happens
+ * as the table is read, without building an intermediate map.
+ */
+public final class EncodedHeaders extends AbstractMap<String, Object> {
+  private final IPersistentMap map;
+
+  public EncodedHeaders(IPersistentMap map) {
+    this.map = map;
+  }
+
+  /**
+   * @return a headers table for the given value: Clojure maps are wrapped,
+   * header views are unwrapped, other maps are returned as they are
+   */
+  @SuppressWarnings("unchecked")
+  public static Map<String, Object> encode(Object headers) {
+    if (headers == null) {
+      return null;
+    }
+    if (headers instanceof HeadersView) {
+      return ((HeadersView) headers).getHeaders();
+    }
+    if (headers instanceof IPersistentMap) {
+      return new EncodedHeaders((IPersistentMap) headers);
+    }
+    return (Map<String, Object>) headers;
+  }
+
+  public int size() {
+    return map.count();
+  }
+
+  public Object get(Object key) {
+    Object v = map.valAt(key, null);
+    if (v == null && key instanceof String) {
+      v = map.valAt(Keyword.intern((String) key));
+    }
+    return encodeValue(v);
+  }
+
+  public Set<Map.Entry<String, Object>> entrySet() {
+    return new AbstractSet<Map.Entry<String, Object>>() {
+      public int size() {
+        return map.count();
+      }
+
+      public Iterator<Map.Entry<String, Object>> iterator() {
+        @SuppressWarnings("unchecked")
+        final Iterator<Map.Entry<Object, Object>> it = map.iterator();
+        return new Iterator<Map.Entry<String, Object>>() {
+          public boolean hasNext() {
+            return it.hasNext();
+          }
+
+          public Map.Entry<String, Object> next() {
+            Map.Entry<Object, Object> e = it.next();
+            return new SimpleImmutableEntry<String, Object>(encodeKey(e.getKey()), encodeValue(e.getValue()));
+          }
+        };
+      }
+    };
+  }
+
+  //
+  // Implementation
+  //
+
+  static String encodeKey(Object k) {
+    if (k instanceof String) {
+      return (String) k;
+    }
+    if (k instanceof Named) {
+      return name((Named) k);
+    }
+    return String.valueOf(k);
+  }
+
+  @SuppressWarnings("unchecked")
+  static Object encodeValue(Object v) {
+    if (v instanceof Named) {
+      return name((Named) v);
+    }
+    if (v instanceof IPersistentMap) {
+      return encode(v);
+    }
+    if (v instanceof List) {
+      final List<Object> xs = (List<Object>) v;
+      return new AbstractList<Object>() {
+        public Object get(int i) {
+          return encodeValue(xs.get(i));
+        }
+
+        public int size() {
+          return xs.size();
+        }
+      };
+    }
+    if (v instanceof Set) {
+      List<Object> xs = new ArrayList<Object>(((Collection<Object>) v).size());
+      for (Object x : (Collection<Object>) v) {
+        xs.add(encodeValue(x));
+      }
+      return xs;
+    }
+    if (v instanceof BigInt) {
+      BigInt n = (BigInt) v;
+      return (n.bipart == null) ? (Object) n.lpart : new BigDecimal(n.bipart);
+    }
+    if (v instanceof UUID) {
+      return v.toString();
+    }
+    return v;
+  }
+
+  private static String name(Named n) {
+    String ns = n.getNamespace();
+    return (ns == null) ? n.getName() : ns + "/" + n.getName();
+  }
+}
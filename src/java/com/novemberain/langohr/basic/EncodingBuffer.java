@@ -0,0 +1,62 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.basic;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Per-thread reusable buffer message encoders write into.
+ * <p/>
+ * Buffers that grew larger than {@link #MAX_RETAINED_SIZE} are
+ * not kept around after use.
+ */
+public final class EncodingBuffer extends ByteArrayOutputStream {
+  public static final int INITIAL_SIZE = 4096;
+  public static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+  private static final ThreadLocal<EncodingBuffer> BUFFERS = new ThreadLocal<EncodingBuffer>();
+
+  private EncodingBuffer() {
+    super(INITIAL_SIZE);
+  }
+
+  /**
+   * @return an empty buffer for the current thread, must be returned
+   *         with {@link #release()} once the encoded body has been published
+   */
+  public static EncodingBuffer acquire() {
+    EncodingBuffer b = BUFFERS.get();
+    if (b == null) {
+      return new EncodingBuffer();
+    }
+    BUFFERS.set(null);
+    b.reset();
+    return b;
+  }
+
+  public void release() {
+    if (buf.length <= MAX_RETAINED_SIZE) {
+      BUFFERS.set(this);
+    }
+  }
+
+  /**
+   * @return buffer contents as a message body: a copy of the written bytes,
+   *         or the buffer's own array when they fill it exactly, which is only
+   *         valid until this buffer is released
+   */
+  public byte[] toBody() {
+    if (count == buf.length) {
+      return buf;
+    }
+    return Arrays.copyOf(buf, count);
+  }
+}
@@ -0,0 +1,413 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.basic;
+
+import clojure.lang.IFn;
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.BlockedListener;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Publishes on a channel while the connection is usable and buffers messages
+ * in memory while it is not: while RabbitMQ has blocked the connection
+ * (connection.blocked, e.g. because of a resource alarm), or the channel is
+ * closed and awaiting recovery. Buffered messages are published in order by
+ * a dedicated thread as soon as the connection is unblocked or the channel
+ * is recovered. Once something is buffered, later messages are buffered too
+ * until the buffer is drained, so the relative order of messages is kept.
+ * <p/>
+ * No more than :capacity (default: 10000) messages are buffered. When the
+ * buffer is full, :overflow decides what happens to another message:
+ * <ul>
+ *   <li>:block (the default): the publisher waits for room, for up to
+ *       :block-timeout milliseconds if given</li>
+ *   <li>:drop-oldest: the oldest buffered message is dropped</li>
+ *   <li>:fail-fast: publishing throws an {@link IllegalStateException}</li>
+ * </ul>
+ * Dropped messages, ones that fail to publish on an open channel and ones
+ * still buffered when the buffer is closed are passed to :on-drop, a function
+ * of a map with :exchange, :routing-key, :properties, :body and :reason
+ * (:overflow, :failed or :closed) and, for failures, :exception.
+ * <p/>
+ * A message that was being published when the connection failed is published
+ * again after recovery, so delivery is at least once.
+ * <p/>
+ * A channel that will not be recovered, because it was closed by the
+ * application or by a channel error, or because it does not recover at all,
+ * ends buffering: buffered messages are passed to :on-drop as :closed and
+ * publishing throws an {@link AlreadyClosedException}.
+ */
+public class OutboundBuffer implements AutoCloseable {
+  private static final Keyword CAPACITY_KEYWORD = Keyword.intern(null, "capacity");
+  private static final Keyword OVERFLOW_KEYWORD = Keyword.intern(null, "overflow");
+  private static final Keyword BLOCK_TIMEOUT_KEYWORD = Keyword.intern(null, "block-timeout");
+  private static final Keyword ON_DROP_KEYWORD = Keyword.intern(null, "on-drop");
+  private static final Keyword BLOCK_KEYWORD = Keyword.intern(null, "block");
+  private static final Keyword DROP_OLDEST_KEYWORD = Keyword.intern(null, "drop-oldest");
+  private static final Keyword FAIL_FAST_KEYWORD = Keyword.intern(null, "fail-fast");
+  private static final Keyword EXCHANGE_KEYWORD = Keyword.intern(null, "exchange");
+  private static final Keyword ROUTING_KEY_KEYWORD = Keyword.intern(null, "routing-key");
+  private static final Keyword PROPERTIES_KEYWORD = Keyword.intern(null, "properties");
+  private static final Keyword BODY_KEYWORD = Keyword.intern(null, "body");
+  private static final Keyword REASON_KEYWORD = Keyword.intern(null, "reason");
+  private static final Keyword EXCEPTION_KEYWORD = Keyword.intern(null, "exception");
+  private static final Keyword OVERFLOW_REASON = Keyword.intern(null, "overflow");
+  private static final Keyword FAILED_REASON = Keyword.intern(null, "failed");
+  private static final Keyword CLOSED_REASON = Keyword.intern(null, "closed");
+  private static final int DEFAULT_CAPACITY = 10000;
+
+  private static final AtomicInteger COUNTER = new AtomicInteger();
+
+  private static final class Message {
+    private final String exchange;
+    private final String routingKey;
+    private final boolean mandatory;
+    private final AMQP.BasicProperties properties;
+    private final byte[] body;
+
+    private Message(String exchange, String routingKey, boolean mandatory,
+                    AMQP.BasicProperties properties, byte[] body) {
+      this.exchange = exchange;
+      this.routingKey = routingKey;
+      this.mandatory = mandatory;
+      this.properties = properties;
+      this.body = body;
+    }
+  }
+
+  private final Channel channel;
+  private final int capacity;
+  private final Keyword overflow;
+  private final long blockTimeout;
+  private final IFn onDrop;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  // signalled when the drainer may be able to make progress
+  private final Condition resumed = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+  private final ArrayDeque<Message> buffer = new ArrayDeque<Message>();
+  // guarded by lock: the drainer is publishing a message it took from the buffer
+  private boolean draining;
+  private volatile boolean blocked;
+  private volatile boolean disconnected;
+  private volatile boolean closed;
+  // set, with the lock held, when the channel is closed for good
+  private volatile ShutdownSignalException terminated;
+
+  private final BlockedListener blockedListener;
+  private final RecoveryListener recoveryListener;
+  private final ShutdownListener shutdownListener;
+  private final Thread drainer;
+
+  public OutboundBuffer(Channel channel, IPersistentMap options) {
+    this.channel = channel;
+    this.capacity = ((Number) options.valAt(CAPACITY_KEYWORD, DEFAULT_CAPACITY)).intValue();
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    this.overflow = (Keyword) options.valAt(OVERFLOW_KEYWORD, BLOCK_KEYWORD);
+    if (overflow != BLOCK_KEYWORD && overflow != DROP_OLDEST_KEYWORD && overflow != FAIL_FAST_KEYWORD) {
+      throw new IllegalArgumentException("overflow must be one of :block, :drop-oldest or :fail-fast, given: " + overflow);
+    }
+    this.blockTimeout = ((Number) options.valAt(BLOCK_TIMEOUT_KEYWORD, -1L)).longValue();
+    this.onDrop = (IFn) options.valAt(ON_DROP_KEYWORD);
+    this.disconnected = !channel.isOpen();
+    if (disconnected && !willRecover(channel.getCloseReason())) {
+      this.terminated = channel.getCloseReason();
+    }
+
+    this.blockedListener = new BlockedListener() {
+      public void handleBlocked(String reason) {
+        blocked = true;
+      }
+
+      public void handleUnblocked() {
+        blocked = false;
+        resume();
+      }
+    };
+    this.recoveryListener = new RecoveryListener() {
+      public void handleRecovery(Recoverable recoverable) {
+        // a new connection starts out unblocked
+        blocked = false;
+        disconnected = false;
+        resume();
+      }
+
+      public void handleRecoveryStarted(Recoverable recoverable) {
+        // nothing to do
+      }
+    };
+    this.shutdownListener = this::shutdown;
+    channel.getConnection().addBlockedListener(blockedListener);
+    channel.addShutdownListener(shutdownListener);
+    if (channel instanceof Recoverable) {
+      ((Recoverable) channel).addRecoveryListener(recoveryListener);
+    }
+
+    this.drainer = new Thread(this::drain, "langohr-outbound-buffer-" + COUNTER.incrementAndGet());
+    this.drainer.setDaemon(true);
+    this.drainer.start();
+  }
+
+  public Channel getChannel() {
+    return channel;
+  }
+
+  /**
+   * @return number of buffered messages
+   */
+  public int getBuffered() {
+    lock.lock();
+    try {
+      return buffer.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return true while messages are buffered rather than published
+   */
+  public boolean isPaused() {
+    return blocked || disconnected;
+  }
+
+  /**
+   * @return true once the channel is closed and will not be recovered
+   */
+  public boolean isTerminated() {
+    return terminated != null;
+  }
+
+  /**
+   * Publishes a message right away if the connection is usable and nothing
+   * is buffered, buffers it otherwise.
+   *
+   * @throws TimeoutException       when the buffer stays full for :block-timeout milliseconds
+   * @throws IllegalStateException  when the buffer is full and :overflow is :fail-fast
+   * @throws AlreadyClosedException when the channel is closed and will not be recovered
+   */
+  public void publish(String exchange, String routingKey, boolean mandatory,
+                      AMQP.BasicProperties props, byte[] body)
+      throws IOException, InterruptedException, TimeoutException {
+    Message m = new Message(exchange, routingKey, mandatory, props, body);
+    boolean direct;
+    lock.lock();
+    try {
+      if (closed) {
+        throw new IllegalStateException("outbound buffer is closed");
+      }
+      checkTerminated();
+      direct = !blocked && !disconnected && !draining && buffer.isEmpty();
+      if (!direct) {
+        enqueue(m);
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (direct) {
+      try {
+        channel.basicPublish(exchange, routingKey, mandatory, props, body);
+      } catch (IOException | RuntimeException e) {
+        if (channel.isOpen()) {
+          throw e;
+        }
+        // the connection failed, publish it after recovery
+        lock.lock();
+        try {
+          if (terminated != null || !willRecover(channel.getCloseReason())) {
+            throw e;
+          }
+          // unless it has been recovered in the meantime
+          disconnected = !channel.isOpen();
+          buffer.addFirst(m);
+          resumed.signal();
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+  }
+
+  /**
+   * Stops accepting messages and waits for buffered ones to be published.
+   * If the connection is blocked or awaiting recovery, buffered messages are
+   * passed to :on-drop instead.
+   */
+  public void close() throws InterruptedException {
+    lock.lock();
+    try {
+      closed = true;
+      resumed.signalAll();
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    drainer.join();
+    channel.getConnection().removeBlockedListener(blockedListener);
+    channel.removeShutdownListener(shutdownListener);
+    if (channel instanceof Recoverable) {
+      ((Recoverable) channel).removeRecoveryListener(recoveryListener);
+    }
+  }
+
+  //
+  // Implementation
+  //
+
+  // automatic recovery registers a channel again after connection failures only
+  private boolean willRecover(ShutdownSignalException cause) {
+    return channel instanceof Recoverable
+        && cause != null && cause.isHardError() && !cause.isInitiatedByApplication();
+  }
+
+  private void shutdown(ShutdownSignalException cause) {
+    lock.lock();
+    try {
+      disconnected = true;
+      if (!willRecover(cause)) {
+        terminated = cause;
+        notFull.signalAll();
+      }
+      resumed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // must be called with the lock held
+  private void checkTerminated() {
+    if (terminated != null) {
+      throw new AlreadyClosedException(terminated);
+    }
+  }
+
+  // must be called with the lock held
+  private void enqueue(Message m) throws InterruptedException, TimeoutException {
+    if (buffer.size() >= capacity) {
+      if (overflow == FAIL_FAST_KEYWORD) {
+        throw new IllegalStateException("outbound buffer is full (" + capacity + " messages)");
+      } else if (overflow == DROP_OLDEST_KEYWORD) {
+        dropped(buffer.pollFirst(), OVERFLOW_REASON, null);
+      } else {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+        while (buffer.size() >= capacity) {
+          if (closed) {
+            throw new IllegalStateException("outbound buffer is closed");
+          }
+          checkTerminated();
+          if (blockTimeout < 0) {
+            notFull.await();
+          } else if (nanos <= 0) {
+            throw new TimeoutException("timed out waiting for room in the outbound buffer");
+          } else {
+            nanos = notFull.awaitNanos(nanos);
+          }
+        }
+      }
+    }
+    buffer.addLast(m);
+    resumed.signal();
+  }
+
+  private void resume() {
+    lock.lock();
+    try {
+      resumed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void drain() {
+    for (; ; ) {
+      Message m;
+      lock.lock();
+      try {
+        while (!closed && terminated == null && (blocked || disconnected || buffer.isEmpty())) {
+          resumed.awaitUninterruptibly();
+        }
+        if (terminated != null || (closed && (blocked || disconnected || buffer.isEmpty()))) {
+          Message left;
+          while ((left = buffer.pollFirst()) != null) {
+            dropped(left, CLOSED_REASON, null);
+          }
+          return;
+        }
+        m = buffer.pollFirst();
+        draining = true;
+        notFull.signal();
+      } finally {
+        lock.unlock();
+      }
+
+      boolean retry = false;
+      try {
+        channel.basicPublish(m.exchange, m.routingKey, m.mandatory, m.properties, m.body);
+      } catch (IOException | RuntimeException e) {
+        if (channel.isOpen()) {
+          dropped(m, FAILED_REASON, e);
+        } else if (willRecover(channel.getCloseReason())) {
+          retry = true;
+        } else {
+          dropped(m, CLOSED_REASON, e);
+        }
+      }
+
+      lock.lock();
+      try {
+        if (retry) {
+          disconnected = !channel.isOpen();
+          buffer.addFirst(m);
+        }
+        draining = false;
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private void dropped(Message m, Keyword reason, Exception e) {
+    if (onDrop == null) {
+      return;
+    }
+    IPersistentMap info = PersistentArrayMap.EMPTY
+        .assoc(EXCHANGE_KEYWORD, m.exchange)
+        .assoc(ROUTING_KEY_KEYWORD, m.routingKey)
+        .assoc(PROPERTIES_KEYWORD, m.properties)
+        .assoc(BODY_KEYWORD, m.body)
+        .assoc(REASON_KEYWORD, reason);
+    if (e != null) {
+      info = info.assoc(EXCEPTION_KEYWORD, e);
+    }
+    try {
+      onDrop.invoke(info);
+    } catch (RuntimeException ignored) {
+      // a failing callback must not stop publishing
+    }
+  }
+}
@@ -0,0 +1,334 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.basic;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import com.novemberain.langohr.Util;
+import com.novemberain.langohr.metrics.Metrics;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lets any number of threads publish on a single channel without contending
+ * for it: messages are enqueued into a bounded lock-free ring buffer and
+ * published, in batches of up to :batch-size, by a single writer thread that
+ * owns the channel.
+ * <p/>
+ * Every publish returns a {@link CompletableFuture}. Without confirms it is
+ * completed with true once the message was written to the channel. With
+ * :confirms true, the writer waits for confirms once per batch (for up to
+ * :confirm-timeout milliseconds) and completes the whole batch with true,
+ * or with false if RabbitMQ nacked any of its messages.
+ * <p/>
+ * Publishers block while the ring buffer (:capacity messages, rounded up
+ * to a power of two) is full.
+ * <p/>
+ * The Java client flushes its socket after every command. Use NIO mode
+ * (:use-nio? true in langohr.core/connect) to have writes of a batch coalesced.
+ * <p/>
+ * With :metrics, publishes are recorded per exchange, as are confirms and
+ * the time from enqueueing a message to its confirm when :confirms is true.
+ */
+public class PipelinedPublisher implements AutoCloseable {
+  private static final Keyword CAPACITY_KEYWORD = Keyword.intern(null, "capacity");
+  private static final Keyword BATCH_SIZE_KEYWORD = Keyword.intern(null, "batch-size");
+  private static final Keyword CONFIRMS_KEYWORD = Keyword.intern(null, "confirms");
+  private static final Keyword CONFIRM_TIMEOUT_KEYWORD = Keyword.intern(null, "confirm-timeout");
+  private static final Keyword METRICS_KEYWORD = Keyword.intern(null, "metrics");
+  private static final int DEFAULT_CAPACITY = 8192;
+  private static final int DEFAULT_BATCH_SIZE = 256;
+  private static final long DEFAULT_CONFIRM_TIMEOUT = 30000;
+  // upper bound for writer and full-buffer waits, guards against missed wake-ups
+  private static final long PARK_NANOS = 1000000;
+
+  private static final AtomicInteger COUNTER = new AtomicInteger();
+
+  private static final class Message {
+    private final String exchange;
+    private final String routingKey;
+    private final boolean mandatory;
+    private final AMQP.BasicProperties properties;
+    private final byte[] body;
+    private final CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+    // only set with metrics
+    private final long enqueuedAt;
+
+    private Message(String exchange, String routingKey, boolean mandatory,
+                    AMQP.BasicProperties properties, byte[] body, long enqueuedAt) {
+      this.exchange = exchange;
+      this.routingKey = routingKey;
+      this.mandatory = mandatory;
+      this.properties = properties;
+      this.body = body;
+      this.enqueuedAt = enqueuedAt;
+    }
+  }
+
+  private final Channel channel;
+  private final int batchSize;
+  private final boolean confirms;
+  private final long confirmTimeout;
+  // null unless instrumentation is enabled
+  private final Metrics metrics;
+  // recorders looked up once per exchange, only used by the writer thread
+  private final Map<String, Metrics.PublisherMetrics> recorders = new HashMap<String, Metrics.PublisherMetrics>();
+
+  //
+  // bounded MPSC ring buffer, see D. Vyukov's bounded MPMC queue:
+  // a slot can be written when its sequence equals the producer position
+  // and read when it equals the consumer position + 1
+  //
+
+  private final AtomicReferenceArray<Message> slots;
+  private final AtomicLongArray sequences;
+  private final int mask;
+  private final AtomicLong tail = new AtomicLong();
+  // only written by the writer thread
+  private volatile long head;
+  // producers that are between the closed check and a completed offer,
+  // the writer keeps going until there are none left after close
+  private final AtomicInteger producers = new AtomicInteger();
+
+  private final Thread writer;
+  private volatile boolean writerWaiting;
+  private volatile boolean closed;
+
+  public PipelinedPublisher(Channel channel, IPersistentMap options) throws IOException {
+    this.channel = channel;
+    int capacity = ((Number) options.valAt(CAPACITY_KEYWORD, DEFAULT_CAPACITY)).intValue();
+    this.batchSize = ((Number) options.valAt(BATCH_SIZE_KEYWORD, DEFAULT_BATCH_SIZE)).intValue();
+    if (capacity <= 0 || batchSize <= 0) {
+      throw new IllegalArgumentException("capacity and batch size must be positive");
+    }
+    this.confirms = Util.isTruthy(options.valAt(CONFIRMS_KEYWORD, false));
+    this.confirmTimeout = ((Number) options.valAt(CONFIRM_TIMEOUT_KEYWORD, DEFAULT_CONFIRM_TIMEOUT)).longValue();
+    this.metrics = (Metrics) options.valAt(METRICS_KEYWORD);
+
+    int n = Integer.highestOneBit(capacity);
+    if (n < capacity) {
+      n = n << 1;
+    }
+    this.slots = new AtomicReferenceArray<Message>(n);
+    this.sequences = new AtomicLongArray(n);
+    for (int i = 0; i < n; i++) {
+      sequences.set(i, i);
+    }
+    this.mask = n - 1;
+
+    if (confirms) {
+      channel.confirmSelect();
+    }
+    this.writer = new Thread(this::run, "langohr-pipelined-publisher-" + COUNTER.incrementAndGet());
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  public Channel getChannel() {
+    return channel;
+  }
+
+  /**
+   * @return approximate number of messages waiting to be published
+   */
+  public int getPending() {
+    return (int) Math.max(0, tail.get() - head);
+  }
+
+  /**
+   * Enqueues a message for publishing, blocking while the buffer is full.
+   *
+   * @throws InterruptedException when interrupted while the buffer is full
+   */
+  public CompletableFuture<Boolean> publish(String exchange, String routingKey, boolean mandatory,
+                                            AMQP.BasicProperties props, byte[] body)
+      throws InterruptedException {
+    long now = (metrics == null) ? 0 : System.nanoTime();
+    Message m = new Message(exchange, routingKey, mandatory, props, body, now);
+    producers.incrementAndGet();
+    try {
+      if (closed) {
+        throw new IllegalStateException("pipelined publisher is closed");
+      }
+      while (!offer(m)) {
+        // full, wait for the writer to catch up
+        if (Thread.interrupted()) {
+          throw new InterruptedException("interrupted while waiting for room in the pipelined publisher");
+        }
+        LockSupport.parkNanos(this, PARK_NANOS / 100);
+      }
+    } finally {
+      producers.decrementAndGet();
+    }
+    if (writerWaiting) {
+      LockSupport.unpark(writer);
+    }
+    return m.result;
+  }
+
+  /**
+   * Stops accepting messages, publishes the ones already enqueued and
+   * stops the writer thread.
+   */
+  public void close() throws InterruptedException {
+    closed = true;
+    LockSupport.unpark(writer);
+    writer.join();
+  }
+
+  //
+  // Implementation
+  //
+
+  private boolean offer(Message m) {
+    long pos = tail.get();
+    for (; ; ) {
+      int i = (int) (pos & mask);
+      long d = sequences.get(i) - pos;
+      if (d == 0) {
+        if (tail.compareAndSet(pos, pos + 1)) {
+          slots.set(i, m);
+          // a volatile write, orders it before the read of writerWaiting
+          sequences.set(i, pos + 1);
+          return true;
+        }
+        pos = tail.get();
+      } else if (d < 0) {
+        // full
+        return false;
+      } else {
+        pos = tail.get();
+      }
+    }
+  }
+
+  private Message poll() {
+    long h = head;
+    int i = (int) (h & mask);
+    if (sequences.get(i) != h + 1) {
+      return null;
+    }
+    Message m = slots.get(i);
+    slots.lazySet(i, null);
+    sequences.set(i, h + mask + 1);
+    head = h + 1;
+    return m;
+  }
+
+  private void run() {
+    List<Message> batch = new ArrayList<Message>(batchSize);
+    for (; ; ) {
+      Message m;
+      while (batch.size() < batchSize && (m = poll()) != null) {
+        batch.add(m);
+      }
+      if (!batch.isEmpty()) {
+        write(batch);
+        batch.clear();
+        continue;
+      }
+      if (closed && producers.get() == 0) {
+        // producers that got past the closed check are done enqueueing
+        if ((m = poll()) == null) {
+          return;
+        }
+        batch.add(m);
+        continue;
+      }
+      writerWaiting = true;
+      long h = head;
+      if (sequences.get((int) (h & mask)) != h + 1) {
+        LockSupport.parkNanos(this, PARK_NANOS);
+      }
+      writerWaiting = false;
+    }
+  }
+
+  private void write(List<Message> batch) {
+    List<Message> written = new ArrayList<Message>(batch.size());
+    for (Message m : batch) {
+      try {
+        channel.basicPublish(m.exchange, m.routingKey, m.mandatory, m.properties, m.body);
+        written.add(m);
+        if (metrics != null) {
+          recorder(m.exchange).published();
+        }
+      } catch (IOException | RuntimeException e) {
+        if (metrics != null) {
+          recorder(m.exchange).failed();
+        }
+        m.result.completeExceptionally(e);
+      }
+    }
+    if (written.isEmpty()) {
+      return;
+    }
+    if (!confirms) {
+      complete(written, Boolean.TRUE);
+      return;
+    }
+    try {
+      boolean acked = channel.waitForConfirms(confirmTimeout);
+      if (metrics != null) {
+        recordConfirms(written, acked);
+      }
+      complete(written, acked ? Boolean.TRUE : Boolean.FALSE);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      fail(written, e);
+    } catch (TimeoutException | RuntimeException e) {
+      fail(written, e);
+    }
+  }
+
+  private void recordConfirms(List<Message> ms, boolean acked) {
+    long now = System.nanoTime();
+    for (Message m : ms) {
+      recorder(m.exchange).confirmed(now - m.enqueuedAt, acked);
+    }
+  }
+
+  private static void complete(List<Message> ms, Boolean result) {
+    for (Message m : ms) {
+      m.result.complete(result);
+    }
+  }
+
+  private void fail(List<Message> ms, Throwable t) {
+    for (Message m : ms) {
+      if (metrics != null) {
+        recorder(m.exchange).failed();
+      }
+      m.result.completeExceptionally(t);
+    }
+  }
+
+  private Metrics.PublisherMetrics recorder(String exchange) {
+    Metrics.PublisherMetrics pm = recorders.get(exchange);
+    if (pm == null) {
+      pm = metrics.publisher(exchange);
+      recorders.put(exchange, pm);
+    }
+    return pm;
+  }
+}
@@ -0,0 +1,92 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.basic;
+
+import com.rabbitmq.client.AMQP;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Small direct-mapped cache of message properties keyed on the identity
+ * of (immutable) option maps. Publishers that pass the same option map
+ * over and over skip property building entirely.
+ * <p/>
+ * Option maps built per message are never seen twice, so a key is only
+ * admitted on its second miss: the first one just remembers the key in
+ * its slot, which allocates nothing. Colliding keys simply replace each
+ * other, there is no eviction bookkeeping.
+ */
+public class PropertiesCache {
+  private static final class Entry {
+    private final Object key;
+    private final AMQP.BasicProperties properties;
+
+    private Entry(Object key, AMQP.BasicProperties properties) {
+      this.key = key;
+      this.properties = properties;
+    }
+  }
+
+  private final AtomicReferenceArray<Entry> entries;
+  // the key that last missed, per slot
+  private final AtomicReferenceArray<Object> missed;
+  private final int mask;
+
+  public PropertiesCache(int size) {
+    int capacity = Integer.highestOneBit(Math.max(size, 1));
+    if (capacity < size) {
+      capacity = capacity << 1;
+    }
+    this.entries = new AtomicReferenceArray<Entry>(capacity);
+    this.missed = new AtomicReferenceArray<Object>(capacity);
+    this.mask = capacity - 1;
+  }
+
+  public AMQP.BasicProperties get(Object key) {
+    Entry e = entries.get(indexFor(key));
+    if (e != null && e.key == key) {
+      return e.properties;
+    }
+    return null;
+  }
+
+  /**
+   * Records a miss.
+   *
+   * @return true if the key missed before and should be {@link #put(Object, AMQP.BasicProperties)}
+   */
+  public boolean admit(Object key) {
+    int i = indexFor(key);
+    if (missed.get(i) == key) {
+      return true;
+    }
+    missed.lazySet(i, key);
+    return false;
+  }
+
+  public void put(Object key, AMQP.BasicProperties properties) {
+    int i = indexFor(key);
+    entries.lazySet(i, new Entry(key, properties));
+    missed.lazySet(i, null);
+  }
+
+  public void clear() {
+    for (int i = 0; i < entries.length(); i++) {
+      entries.set(i, null);
+      missed.set(i, null);
+    }
+  }
+
+  private int indexFor(Object key) {
+    int h = System.identityHashCode(key);
+    // identity hash codes are not well distributed in the lower bits on some JVMs
+    return (h ^ (h >>> 16)) & mask;
+  }
+}
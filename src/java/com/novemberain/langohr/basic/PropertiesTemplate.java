@@ -0,0 +1,113 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.basic;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import com.novemberain.langohr.Util;
+import com.rabbitmq.client.AMQP;
+
+import java.util.Date;
+
+/**
+ * Precompiled message properties for publishers that send many messages
+ * with the same content type, delivery mode, app id and so on.
+ * <p/>
+ * Per-message values are applied with {@link #with(IPersistentMap)},
+ * which allocates a single {@link AMQP.BasicProperties} instance.
+ */
+public class PropertiesTemplate {
+  private static final Keyword MANDATORY_KEYWORD = Keyword.intern(null, "mandatory");
+  private static final Keyword CONTENT_TYPE_KEYWORD = Keyword.intern(null, "content-type");
+  private static final Keyword CONTENT_ENCODING_KEYWORD = Keyword.intern(null, "content-encoding");
+  private static final Keyword HEADERS_KEYWORD = Keyword.intern(null, "headers");
+  private static final Keyword PERSISTENT_KEYWORD = Keyword.intern(null, "persistent");
+  private static final Keyword PRIORITY_KEYWORD = Keyword.intern(null, "priority");
+  private static final Keyword CORRELATION_ID_KEYWORD = Keyword.intern(null, "correlation-id");
+  private static final Keyword REPLY_TO_KEYWORD = Keyword.intern(null, "reply-to");
+  private static final Keyword EXPIRATION_KEYWORD = Keyword.intern(null, "expiration");
+  private static final Keyword MESSAGE_ID_KEYWORD = Keyword.intern(null, "message-id");
+  private static final Keyword TIMESTAMP_KEYWORD = Keyword.intern(null, "timestamp");
+  private static final Keyword TYPE_KEYWORD = Keyword.intern(null, "type");
+  private static final Keyword USER_ID_KEYWORD = Keyword.intern(null, "user-id");
+  private static final Keyword APP_ID_KEYWORD = Keyword.intern(null, "app-id");
+  private static final Keyword CLUSTER_ID_KEYWORD = Keyword.intern(null, "cluster-id");
+
+  private static final Integer PERSISTENT_DELIVERY_MODE = 2;
+  private static final Integer TRANSIENT_DELIVERY_MODE = 1;
+
+  private static final Object NOT_FOUND = new Object();
+
+  private final AMQP.BasicProperties properties;
+  private final boolean mandatory;
+
+  public PropertiesTemplate(AMQP.BasicProperties properties, boolean mandatory) {
+    this.properties = properties;
+    this.mandatory = mandatory;
+  }
+
+  public AMQP.BasicProperties getProperties() {
+    return properties;
+  }
+
+  public boolean isMandatory() {
+    return mandatory;
+  }
+
+  public boolean isMandatory(IPersistentMap overrides) {
+    if (overrides == null) {
+      return mandatory;
+    }
+    return Util.isTruthy(overrides.valAt(MANDATORY_KEYWORD, mandatory));
+  }
+
+  /**
+   * @param overrides a map that uses the same keys as langohr.basic/publish options
+   * @return properties with values from the overrides map replacing those of the template
+   */
+  public AMQP.BasicProperties with(IPersistentMap overrides) {
+    if (overrides == null || overrides.count() == 0) {
+      return properties;
+    }
+    AMQP.BasicProperties p = this.properties;
+
+    Object persistent = overrides.valAt(PERSISTENT_KEYWORD, NOT_FOUND);
+    Integer deliveryMode = (persistent == NOT_FOUND) ?
+        p.getDeliveryMode() :
+        (Util.isTruthy(persistent) ? PERSISTENT_DELIVERY_MODE : TRANSIENT_DELIVERY_MODE);
+    Object priority = overrides.valAt(PRIORITY_KEYWORD, NOT_FOUND);
+
+    return new AMQP.BasicProperties((String) lookup(overrides, CONTENT_TYPE_KEYWORD, p.getContentType()),
+                                    (String) lookup(overrides, CONTENT_ENCODING_KEYWORD, p.getContentEncoding()),
+                                    EncodedHeaders.encode(lookup(overrides, HEADERS_KEYWORD, p.getHeaders())),
+                                    deliveryMode,
+                                    (priority == NOT_FOUND) ? p.getPriority() : toInteger(priority),
+                                    (String) lookup(overrides, CORRELATION_ID_KEYWORD, p.getCorrelationId()),
+                                    (String) lookup(overrides, REPLY_TO_KEYWORD, p.getReplyTo()),
+                                    (String) lookup(overrides, EXPIRATION_KEYWORD, p.getExpiration()),
+                                    (String) lookup(overrides, MESSAGE_ID_KEYWORD, p.getMessageId()),
+                                    (Date) lookup(overrides, TIMESTAMP_KEYWORD, p.getTimestamp()),
+                                    (String) lookup(overrides, TYPE_KEYWORD, p.getType()),
+                                    (String) lookup(overrides, USER_ID_KEYWORD, p.getUserId()),
+                                    (String) lookup(overrides, APP_ID_KEYWORD, p.getAppId()),
+                                    (String) lookup(overrides, CLUSTER_ID_KEYWORD, p.getClusterId()));
+  }
+
+  private static Object lookup(IPersistentMap m, Keyword k, Object fallback) {
+    return m.valAt(k, fallback);
+  }
+
+  private static Integer toInteger(Object n) {
+    if (n == null) {
+      return null;
+    }
+    return ((Number) n).intValue();
+  }
+}
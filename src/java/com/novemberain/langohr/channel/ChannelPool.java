@@ -0,0 +1,272 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.channel;
+
+import clojure.lang.IFn;
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import com.novemberain.langohr.Util;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of channels on a connection, for short-lived operations
+ * such as publishing from request handlers.
+ * <p/>
+ * No more than :max-size (default: 16) channels are borrowed at a time,
+ * {@link #borrow()} blocks for up to :borrow-timeout milliseconds (by default
+ * indefinitely) when they all are. Channels are opened lazily. With :confirms
+ * true, publisher confirms are enabled on every channel the pool opens.
+ * <p/>
+ * With :thread-affinity true, a thread gets the channel it returned last
+ * back whenever it is still idle, without touching the shared idle queue.
+ * <p/>
+ * Channels closed by the broker are evicted when :evict-when, a predicate
+ * of the {@link ShutdownSignalException}, returns true. By default that is
+ * the case for soft (channel-level) errors: channels closed because of
+ * connection failures are recovered along with the connection when
+ * automatic recovery is enabled and stay in the pool.
+ */
+public class ChannelPool implements AutoCloseable {
+  private static final Keyword MAX_SIZE_KEYWORD = Keyword.intern(null, "max-size");
+  private static final Keyword BORROW_TIMEOUT_KEYWORD = Keyword.intern(null, "borrow-timeout");
+  private static final Keyword CONFIRMS_KEYWORD = Keyword.intern(null, "confirms");
+  private static final Keyword THREAD_AFFINITY_KEYWORD = Keyword.intern(null, "thread-affinity");
+  private static final Keyword EVICT_WHEN_KEYWORD = Keyword.intern(null, "evict-when");
+  private static final int DEFAULT_MAX_SIZE = 16;
+
+  private static final class Entry {
+    private final Channel channel;
+    private final AtomicBoolean inUse = new AtomicBoolean(true);
+    // true while the entry is in the idle queue, keeps thread-affine
+    // borrowers from queueing it more than once
+    private final AtomicBoolean queued = new AtomicBoolean();
+    private volatile boolean evicted;
+
+    private Entry(Channel channel) {
+      this.channel = channel;
+    }
+  }
+
+  private final Connection connection;
+  private final int maxSize;
+  private final long borrowTimeout;
+  private final boolean confirms;
+  private final IFn evictWhen;
+  private final ThreadLocal<Entry> affinity;
+
+  // one permit per channel that can be borrowed
+  private final Semaphore permits;
+  private final Queue<Entry> idle = new ConcurrentLinkedQueue<Entry>();
+  private final Map<Channel, Entry> entries = new ConcurrentHashMap<Channel, Entry>();
+  private final AtomicInteger size = new AtomicInteger();
+  private volatile boolean closed;
+
+  public ChannelPool(Connection connection, IPersistentMap options) {
+    this.connection = connection;
+    this.maxSize = ((Number) options.valAt(MAX_SIZE_KEYWORD, DEFAULT_MAX_SIZE)).intValue();
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("max pool size must be positive, given: " + maxSize);
+    }
+    this.borrowTimeout = ((Number) options.valAt(BORROW_TIMEOUT_KEYWORD, -1L)).longValue();
+    this.confirms = Util.isTruthy(options.valAt(CONFIRMS_KEYWORD, false));
+    this.evictWhen = (IFn) options.valAt(EVICT_WHEN_KEYWORD);
+    this.affinity = Util.isTruthy(options.valAt(THREAD_AFFINITY_KEYWORD, false)) ? new ThreadLocal<Entry>() : null;
+    this.permits = new Semaphore(maxSize, true);
+  }
+
+  public Connection getConnection() {
+    return connection;
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * @return number of channels opened by this pool that were not evicted
+   */
+  public int getSize() {
+    return size.get();
+  }
+
+  /**
+   * @return number of channels that are currently borrowed
+   */
+  public int getBorrowed() {
+    return maxSize - permits.availablePermits();
+  }
+
+  /**
+   * Borrows a channel, opening one if no idle channel is available.
+   * The channel must be returned with {@link #release(Channel)}.
+   *
+   * @throws TimeoutException when no channel becomes available in :borrow-timeout milliseconds
+   */
+  public Channel borrow() throws IOException, InterruptedException, TimeoutException {
+    ensureOpen();
+    if (borrowTimeout < 0) {
+      permits.acquire();
+    } else if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+      throw new TimeoutException("timed out waiting for a pooled channel, " + maxSize + " channels are in use");
+    }
+    try {
+      return take().channel;
+    } catch (IOException | RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns a borrowed channel to the pool. Channels that were closed
+   * by the application or evicted are discarded.
+   */
+  public void release(Channel ch) {
+    Entry e = entries.get(ch);
+    if (e == null || !e.inUse.compareAndSet(true, false)) {
+      throw new IllegalArgumentException("channel " + ch + " is not borrowed from this pool");
+    }
+    try {
+      if (closed || e.evicted || !isUsable(e)) {
+        evict(e);
+        return;
+      }
+      if (affinity != null) {
+        affinity.set(e);
+      }
+      if (e.queued.compareAndSet(false, true)) {
+        idle.offer(e);
+      }
+    } finally {
+      permits.release();
+    }
+  }
+
+  /**
+   * Returns a borrowed channel to the pool and closes it, e.g. when
+   * it was left in an unknown state.
+   */
+  public void invalidate(Channel ch) {
+    Entry e = entries.get(ch);
+    if (e != null) {
+      e.evicted = true;
+    }
+    release(ch);
+  }
+
+  /**
+   * Closes idle channels. Borrowed channels are closed as they are returned.
+   */
+  public void close() {
+    closed = true;
+    Entry e;
+    while ((e = idle.poll()) != null) {
+      if (!e.inUse.get()) {
+        evict(e);
+      }
+    }
+  }
+
+  //
+  // Implementation
+  //
+
+  // must be called with a permit acquired, which guarantees that either
+  // an idle channel is available or fewer than maxSize channels are open
+  private Entry take() throws IOException {
+    if (affinity != null) {
+      Entry e = affinity.get();
+      if (e != null && !e.evicted && e.inUse.compareAndSet(false, true)) {
+        if (isUsable(e)) {
+          return e;
+        }
+        evict(e);
+      }
+    }
+
+    Entry e;
+    while ((e = idle.poll()) != null) {
+      e.queued.set(false);
+      if (e.inUse.compareAndSet(false, true)) {
+        if (!e.evicted && isUsable(e)) {
+          return e;
+        }
+        evict(e);
+      }
+    }
+    return open();
+  }
+
+  private Entry open() throws IOException {
+    Channel ch = connection.createChannel();
+    if (ch == null) {
+      throw new IOException("could not open a pooled channel: channel_max reached");
+    }
+    if (confirms) {
+      ch.confirmSelect();
+    }
+    final Entry e = new Entry(ch);
+    ch.addShutdownListener(cause -> {
+      if (shouldEvict(cause)) {
+        e.evicted = true;
+      }
+    });
+    entries.put(ch, e);
+    size.incrementAndGet();
+    return e;
+  }
+
+  private boolean shouldEvict(ShutdownSignalException cause) {
+    if (evictWhen != null) {
+      return Util.isTruthy(evictWhen.invoke(cause));
+    }
+    return !cause.isHardError();
+  }
+
+  // a closed channel that was not evicted is awaiting recovery
+  private boolean isUsable(Entry e) {
+    return e.channel.isOpen() || !connection.isOpen();
+  }
+
+  private void evict(Entry e) {
+    if (entries.remove(e.channel) != null) {
+      size.decrementAndGet();
+    }
+    if (affinity != null && affinity.get() == e) {
+      affinity.remove();
+    }
+    if (e.channel.isOpen()) {
+      try {
+        e.channel.close();
+      } catch (IOException | TimeoutException | RuntimeException ignored) {
+        // closing is best effort
+      }
+    }
+  }
+
+  private void ensureOpen() {
+    if (closed) {
+      throw new IllegalStateException("channel pool is closed");
+    }
+  }
+}
@@ -0,0 +1,320 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.confirm;
+
+import com.novemberain.langohr.metrics.Metrics;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tracks publisher confirms for messages published on a channel
+ * that has confirms enabled, see {@link Channel#confirmSelect()}.
+ * <p/>
+ * Every publish returns a {@link CompletableFuture} that is completed with
+ * true when the message is acked by the broker, false when it is nacked, and
+ * exceptionally when the channel is closed before a confirm arrives.
+ * <p/>
+ * Outstanding futures are kept in a ring indexed by publish sequence number.
+ * At most {@code maxInFlight} sequence numbers (rounded up to a power of two)
+ * can be outstanding, publishers block until older messages are confirmed.
+ * <p/>
+ * Futures are completed on the connection's I/O thread. Dependent stages
+ * must not block, in particular they must not publish with a full window.
+ * Use the *Async variants of {@link CompletableFuture} methods when in doubt.
+ * <p/>
+ * When given {@link Metrics}, publishes, confirms and the time from publishing
+ * to the confirm are recorded per exchange.
+ */
+public class ConfirmTracker implements ConfirmListener, ShutdownListener {
+  private final Channel channel;
+
+  // serializes sequence number allocation and basic.publish
+  private final ReentrantLock publishLock = new ReentrantLock();
+  // guards the fields below
+  private final ReentrantLock stateLock = new ReentrantLock();
+  private final Condition windowAvailable = stateLock.newCondition();
+
+  private final CompletableFuture<Boolean>[] slots;
+  private final int mask;
+  // lowest sequence number that has not been confirmed yet,
+  // only meaningful when inFlight > 0
+  private long oldest;
+  // sequence number that follows the most recently published one
+  private long next;
+  private int inFlight;
+
+  // null unless instrumentation is enabled, indexed like slots
+  private final Metrics metrics;
+  private final Metrics.PublisherMetrics[] recorders;
+  private final long[] publishedAt;
+  // recorders looked up once per exchange
+  private final ConcurrentHashMap<String, Metrics.PublisherMetrics> exchangeRecorders;
+
+  public ConfirmTracker(Channel channel, int maxInFlight) {
+    this(channel, maxInFlight, null);
+  }
+
+  @SuppressWarnings("unchecked")
+  public ConfirmTracker(Channel channel, int maxInFlight, Metrics metrics) {
+    if (maxInFlight <= 0) {
+      throw new IllegalArgumentException("max in-flight messages must be positive, given: " + maxInFlight);
+    }
+    this.channel = channel;
+
+    int capacity = Integer.highestOneBit(maxInFlight);
+    if (capacity < maxInFlight) {
+      capacity = capacity << 1;
+    }
+    this.slots = (CompletableFuture<Boolean>[]) new CompletableFuture[capacity];
+    this.mask = capacity - 1;
+    this.metrics = metrics;
+    this.recorders = (metrics == null) ? null : new Metrics.PublisherMetrics[capacity];
+    this.publishedAt = (metrics == null) ? null : new long[capacity];
+    this.exchangeRecorders = (metrics == null) ? null : new ConcurrentHashMap<String, Metrics.PublisherMetrics>();
+
+    channel.addConfirmListener(this);
+    channel.addShutdownListener(this);
+  }
+
+  public Channel getChannel() {
+    return channel;
+  }
+
+  public int getMaxInFlight() {
+    return slots.length;
+  }
+
+  public int getInFlight() {
+    stateLock.lock();
+    try {
+      return inFlight;
+    } finally {
+      stateLock.unlock();
+    }
+  }
+
+  /**
+   * Publishes a message, blocking for as long as the window of outstanding
+   * confirms is full.
+   */
+  public CompletableFuture<Boolean> publish(String exchange, String routingKey, boolean mandatory,
+                                            AMQP.BasicProperties props, byte[] body)
+      throws IOException, InterruptedException {
+    try {
+      return publish(exchange, routingKey, mandatory, props, body, -1);
+    } catch (TimeoutException e) {
+      // cannot happen without a timeout
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Publishes a message, waiting up to timeout milliseconds for the window
+   * of outstanding confirms to have room. A negative timeout means no timeout.
+   */
+  public CompletableFuture<Boolean> publish(String exchange, String routingKey, boolean mandatory,
+                                            AMQP.BasicProperties props, byte[] body, long timeout)
+      throws IOException, InterruptedException, TimeoutException {
+    Metrics.PublisherMetrics pm = (metrics == null) ? null : recorder(exchange);
+    publishLock.lockInterruptibly();
+    try {
+      long seqNo = reserve(timeout);
+      CompletableFuture<Boolean> f = new CompletableFuture<Boolean>();
+      register(seqNo, f, pm);
+
+      try {
+        channel.basicPublish(exchange, routingKey, mandatory, props, body);
+      } catch (IOException | RuntimeException e) {
+        unregister(seqNo);
+        if (pm != null) {
+          pm.failed();
+        }
+        f.completeExceptionally(e);
+        throw e;
+      }
+      if (pm != null) {
+        pm.published();
+      }
+      return f;
+    } finally {
+      publishLock.unlock();
+    }
+  }
+
+  public void handleAck(long deliveryTag, boolean multiple) {
+    confirm(deliveryTag, multiple, true);
+  }
+
+  public void handleNack(long deliveryTag, boolean multiple) {
+    confirm(deliveryTag, multiple, false);
+  }
+
+  public void shutdownCompleted(ShutdownSignalException cause) {
+    List<CompletableFuture<Boolean>> pending = new ArrayList<CompletableFuture<Boolean>>();
+    stateLock.lock();
+    try {
+      for (int i = 0; i < slots.length; i++) {
+        if (slots[i] != null) {
+          pending.add(slots[i]);
+          slots[i] = null;
+        }
+        if (recorders != null && recorders[i] != null) {
+          recorders[i].failed();
+          recorders[i] = null;
+        }
+      }
+      inFlight = 0;
+      windowAvailable.signalAll();
+    } finally {
+      stateLock.unlock();
+    }
+
+    for (CompletableFuture<Boolean> f : pending) {
+      f.completeExceptionally(cause);
+    }
+  }
+
+  //
+  // Implementation
+  //
+
+  // must be called with publishLock held
+  private long reserve(long timeout) throws InterruptedException, TimeoutException {
+    long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+    stateLock.lockInterruptibly();
+    try {
+      long seqNo = nextSeqNo();
+      while (inFlight > 0 && seqNo - oldest >= slots.length) {
+        if (timeout < 0) {
+          windowAvailable.await();
+        } else {
+          if (remaining <= 0) {
+            throw new TimeoutException("timed out waiting for publisher confirms, " + inFlight + " messages in flight");
+          }
+          remaining = windowAvailable.awaitNanos(remaining);
+        }
+        // the channel may have been recovered in the meantime
+        seqNo = nextSeqNo();
+      }
+      return seqNo;
+    } finally {
+      stateLock.unlock();
+    }
+  }
+
+  private long nextSeqNo() {
+    long seqNo = channel.getNextPublishSeqNo();
+    if (seqNo == 0) {
+      throw new IllegalStateException("publisher confirms are not enabled on channel " + channel);
+    }
+    return seqNo;
+  }
+
+  private Metrics.PublisherMetrics recorder(String exchange) {
+    Metrics.PublisherMetrics pm = exchangeRecorders.get(exchange);
+    return (pm != null) ? pm : exchangeRecorders.computeIfAbsent(exchange, metrics::publisher);
+  }
+
+  private void register(long seqNo, CompletableFuture<Boolean> f, Metrics.PublisherMetrics pm) {
+    long now = (pm == null) ? 0 : System.nanoTime();
+    stateLock.lock();
+    try {
+      if (inFlight == 0) {
+        oldest = seqNo;
+      }
+      int i = (int) (seqNo & mask);
+      slots[i] = f;
+      if (pm != null) {
+        recorders[i] = pm;
+        publishedAt[i] = now;
+      }
+      inFlight++;
+      next = seqNo + 1;
+    } finally {
+      stateLock.unlock();
+    }
+  }
+
+  private void unregister(long seqNo) {
+    stateLock.lock();
+    try {
+      int i = (int) (seqNo & mask);
+      if (slots[i] != null) {
+        slots[i] = null;
+        inFlight--;
+      }
+      if (recorders != null) {
+        recorders[i] = null;
+      }
+      next = seqNo;
+      windowAvailable.signalAll();
+    } finally {
+      stateLock.unlock();
+    }
+  }
+
+  private void confirm(long deliveryTag, boolean multiple, boolean ack) {
+    List<CompletableFuture<Boolean>> confirmed = new ArrayList<CompletableFuture<Boolean>>();
+    long now = (metrics == null) ? 0 : System.nanoTime();
+    stateLock.lock();
+    try {
+      if (inFlight == 0) {
+        return;
+      }
+      long upTo = Math.min(deliveryTag, next - 1);
+      if (multiple) {
+        for (long s = oldest; s <= upTo; s++) {
+          take(s, confirmed, ack, now);
+        }
+      } else if (deliveryTag >= oldest && deliveryTag < next) {
+        take(deliveryTag, confirmed, ack, now);
+      }
+      while (inFlight > 0 && slots[(int) (oldest & mask)] == null) {
+        oldest++;
+      }
+      windowAvailable.signalAll();
+    } finally {
+      stateLock.unlock();
+    }
+
+    Boolean result = ack ? Boolean.TRUE : Boolean.FALSE;
+    for (CompletableFuture<Boolean> f : confirmed) {
+      f.complete(result);
+    }
+  }
+
+  // must be called with stateLock held
+  private void take(long seqNo, List<CompletableFuture<Boolean>> acc, boolean ack, long now) {
+    int i = (int) (seqNo & mask);
+    CompletableFuture<Boolean> f = slots[i];
+    if (f != null) {
+      slots[i] = null;
+      inFlight--;
+      acc.add(f);
+    }
+    if (recorders != null && recorders[i] != null) {
+      recorders[i].confirmed(now - publishedAt[i], ack);
+      recorders[i] = null;
+    }
+  }
+}
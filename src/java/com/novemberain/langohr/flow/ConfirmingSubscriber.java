@@ -0,0 +1,147 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.flow;
+
+import clojure.lang.IFn;
+import com.novemberain.langohr.confirm.ConfirmTracker;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link Flow.Subscriber} that publishes every element it receives with
+ * publisher confirms and only requests more elements as confirms arrive,
+ * keeping at most {@code maxOutstanding} messages unconfirmed.
+ * <p/>
+ * Elements are published by {@code publishFn}, a function of a
+ * {@link ConfirmTracker} and an element that returns the future returned by
+ * {@link ConfirmTracker#publish}. Demand is signalled on {@code executor}
+ * rather than the connection's I/O thread confirms arrive on, since
+ * upstream may publish synchronously in response.
+ * <p/>
+ * {@link #getCompletion()} completes once upstream completes and every
+ * published message is confirmed. It completes exceptionally, and the
+ * upstream subscription is cancelled, when a message is nacked,
+ * publishing fails or upstream signals an error.
+ */
+public class ConfirmingSubscriber implements Flow.Subscriber<Object> {
+  private final ConfirmTracker tracker;
+  private final IFn publishFn;
+  private final int maxOutstanding;
+  private final Executor executor;
+
+  private final CompletableFuture<Void> completion = new CompletableFuture<Void>();
+  private final AtomicInteger outstanding = new AtomicInteger();
+  private final AtomicBoolean subscribed = new AtomicBoolean();
+  private volatile Flow.Subscription subscription;
+  private volatile boolean upstreamDone;
+
+  public ConfirmingSubscriber(ConfirmTracker tracker, IFn publishFn, int maxOutstanding, Executor executor) {
+    if (maxOutstanding <= 0) {
+      throw new IllegalArgumentException("max outstanding confirms must be positive, given: " + maxOutstanding);
+    }
+    this.tracker = tracker;
+    this.publishFn = publishFn;
+    // requesting more than the tracker window would only block the publishing thread
+    this.maxOutstanding = Math.min(maxOutstanding, tracker.getMaxInFlight());
+    this.executor = executor;
+  }
+
+  public CompletableFuture<Void> getCompletion() {
+    return completion;
+  }
+
+  public int getOutstanding() {
+    return outstanding.get();
+  }
+
+  @Override
+  public void onSubscribe(Flow.Subscription s) {
+    if (!subscribed.compareAndSet(false, true)) {
+      s.cancel();
+      return;
+    }
+    this.subscription = s;
+    s.request(maxOutstanding);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void onNext(Object item) {
+    if (completion.isDone()) {
+      return;
+    }
+    outstanding.incrementAndGet();
+    CompletableFuture<Boolean> f;
+    try {
+      f = (CompletableFuture<Boolean>) publishFn.invoke(tracker, item);
+    } catch (Throwable t) {
+      outstanding.decrementAndGet();
+      fail(t);
+      return;
+    }
+    f.whenCompleteAsync((acked, t) -> {
+      int n = outstanding.decrementAndGet();
+      if (t != null) {
+        fail(t);
+      } else if (!acked) {
+        fail(new NackedException(item));
+      } else if (upstreamDone) {
+        if (n == 0) {
+          completion.complete(null);
+        }
+      } else if (!completion.isDone()) {
+        subscription.request(1);
+      }
+    }, executor);
+  }
+
+  @Override
+  public void onError(Throwable t) {
+    upstreamDone = true;
+    completion.completeExceptionally(t);
+  }
+
+  @Override
+  public void onComplete() {
+    upstreamDone = true;
+    if (outstanding.get() == 0) {
+      completion.complete(null);
+    }
+  }
+
+  private void fail(Throwable t) {
+    if (completion.completeExceptionally(t)) {
+      Flow.Subscription s = subscription;
+      if (s != null) {
+        s.cancel();
+      }
+    }
+  }
+
+  /**
+   * Signals that RabbitMQ nacked a published element.
+   */
+  public static class NackedException extends RuntimeException {
+    private final transient Object item;
+
+    public NackedException(Object item) {
+      super("message was nacked by RabbitMQ");
+      this.item = item;
+    }
+
+    public Object getItem() {
+      return item;
+    }
+  }
+}
@@ -0,0 +1,315 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.flow;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.LazilyPersistentVector;
+import com.novemberain.langohr.DeliveryMetadata;
+import com.novemberain.langohr.Util;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.impl.recovery.AutorecoveringChannel;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Exposes a queue subscription as a {@link Flow.Publisher} of
+ * [delivery-metadata body] pairs.
+ * <p/>
+ * The consumer is registered with a prefetch of :prefetch (default: 256) when
+ * the subscriber arrives. Deliveries are passed on as the subscriber requests
+ * them and acknowledged once {@link Flow.Subscriber#onNext(Object)} returns,
+ * so RabbitMQ never has more than :prefetch deliveries outstanding and the
+ * subscriber's demand is what moves the queue. With :manual-ack true, the
+ * subscriber acknowledges deliveries itself; they still count against prefetch
+ * until it does.
+ * <p/>
+ * Only one subscriber is supported. The publisher completes when the consumer
+ * is cancelled (e.g. the queue is deleted) or its channel is closed by the
+ * application, and signals an error when the channel is closed for any other reason.
+ * Cancelling the subscription cancels the consumer and requeues buffered deliveries.
+ * <p/>
+ * The subscription ends with the channel, even when it is recovered: the
+ * consumer is removed from connection recovery, and should recovery
+ * re-register it anyway, it is cancelled as soon as the registration
+ * completes, so that deliveries to it are not requeued over and over.
+ */
+public class QueuePublisher implements Flow.Publisher<Object> {
+  private static final Keyword PREFETCH_KEYWORD = Keyword.intern(null, "prefetch");
+  private static final Keyword MANUAL_ACK_KEYWORD = Keyword.intern(null, "manual-ack");
+  private static final Keyword CONSUMER_TAG_KEYWORD = Keyword.intern(null, "consumer-tag");
+  private static final int DEFAULT_PREFETCH = 256;
+
+  private final Channel channel;
+  private final String queue;
+  private final int prefetch;
+  private final boolean manualAck;
+  private final String consumerTag;
+  private final AtomicBoolean subscribed = new AtomicBoolean();
+
+  public QueuePublisher(Channel channel, String queue, IPersistentMap options) {
+    this.channel = channel;
+    this.queue = queue;
+    this.prefetch = ((Number) options.valAt(PREFETCH_KEYWORD, DEFAULT_PREFETCH)).intValue();
+    if (prefetch <= 0) {
+      throw new IllegalArgumentException("prefetch must be positive, given: " + prefetch);
+    }
+    this.manualAck = Util.isTruthy(options.valAt(MANUAL_ACK_KEYWORD, false));
+    this.consumerTag = (String) options.valAt(CONSUMER_TAG_KEYWORD, "");
+  }
+
+  public int getPrefetch() {
+    return prefetch;
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super Object> subscriber) {
+    if (subscriber == null) {
+      throw new NullPointerException("subscriber");
+    }
+    if (!subscribed.compareAndSet(false, true)) {
+      subscriber.onSubscribe(NOOP_SUBSCRIPTION);
+      subscriber.onError(new IllegalStateException("queue " + queue + " publisher supports a single subscriber"));
+      return;
+    }
+    DeliverySubscription s = new DeliverySubscription(subscriber);
+    subscriber.onSubscribe(s);
+    s.start();
+  }
+
+  private static final Flow.Subscription NOOP_SUBSCRIPTION = new Flow.Subscription() {
+    public void request(long n) {
+    }
+
+    public void cancel() {
+    }
+  };
+
+  private final class DeliverySubscription extends DefaultConsumer implements Flow.Subscription {
+    private final Flow.Subscriber<? super Object> subscriber;
+    // deliveries that have not been requested yet, bounded by prefetch
+    private final Queue<Object[]> buffer = new ConcurrentLinkedQueue<Object[]>();
+    private final AtomicLong demand = new AtomicLong();
+    // serializes signals to the subscriber, see #drain
+    private final AtomicInteger wip = new AtomicInteger();
+
+    private volatile boolean cancelled;
+    private volatile boolean done;
+    private volatile Throwable error;
+    private volatile String tag;
+
+    private DeliverySubscription(Flow.Subscriber<? super Object> subscriber) {
+      super(channel);
+      this.subscriber = subscriber;
+    }
+
+    private void start() {
+      if (cancelled) {
+        return;
+      }
+      try {
+        channel.basicQos(prefetch);
+        tag = channel.basicConsume(queue, false, consumerTag, this);
+        if (cancelled) {
+          // cancelled while the consumer was being registered
+          cancelConsumer();
+        }
+      } catch (IOException | RuntimeException e) {
+        error = e;
+        done = true;
+        drain();
+      }
+    }
+
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        error = new IllegalArgumentException("non-positive request: " + n);
+        done = true;
+        cancelConsumer();
+        drain();
+        return;
+      }
+      long current, next;
+      do {
+        current = demand.get();
+        next = current + n;
+        // saturate at Long.MAX_VALUE, i.e. unbounded
+        if (next < 0) {
+          next = Long.MAX_VALUE;
+        }
+      } while (!demand.compareAndSet(current, next));
+      drain();
+    }
+
+    @Override
+    public void cancel() {
+      if (!cancelled) {
+        cancelled = true;
+        cancelConsumer();
+        drain();
+      }
+    }
+
+    @Override
+    public void handleConsumeOk(String consumerTag) {
+      super.handleConsumeOk(consumerTag);
+      // server-named tags change when the consumer is recovered
+      tag = consumerTag;
+      if (cancelled || done) {
+        // re-registered by connection recovery after the subscription ended
+        cancelConsumer();
+      }
+    }
+
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+      buffer.offer(new Object[]{new DeliveryMetadata(envelope, properties), body});
+      drain();
+    }
+
+    @Override
+    public void handleCancel(String consumerTag) {
+      done = true;
+      drain();
+    }
+
+    @Override
+    public void handleCancelOk(String consumerTag) {
+      done = true;
+      drain();
+    }
+
+    @Override
+    public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+      if (!sig.isInitiatedByApplication()) {
+        error = sig;
+      }
+      done = true;
+      forgetConsumer();
+      drain();
+    }
+
+    // keeps connection recovery from re-registering the consumer
+    private void forgetConsumer() {
+      String t = (tag != null) ? tag : getConsumerTag();
+      if (t != null && channel instanceof AutorecoveringChannel) {
+        ((AutorecoveringChannel) channel).deleteRecordedConsumer(t);
+      }
+    }
+
+    private void cancelConsumer() {
+      String t = (tag != null) ? tag : getConsumerTag();
+      if (t != null && channel.isOpen()) {
+        try {
+          channel.basicCancel(t);
+        } catch (IOException | RuntimeException ignored) {
+          // the channel is going away, deliveries will be requeued
+        }
+      }
+    }
+
+    // standard serialized drain loop: whichever thread increments wip from 0
+    // emits, others only make it go around once more
+    private void drain() {
+      if (wip.getAndIncrement() != 0) {
+        return;
+      }
+      int missed = 1;
+      do {
+        if (cancelled) {
+          requeueBuffered();
+        } else {
+          emit();
+        }
+        missed = wip.addAndGet(-missed);
+      } while (missed != 0);
+    }
+
+    private void emit() {
+      long r = demand.get();
+      long emitted = 0;
+      while (emitted != r && !cancelled) {
+        Object[] d = buffer.poll();
+        if (d == null) {
+          break;
+        }
+        DeliveryMetadata metadata = (DeliveryMetadata) d[0];
+        try {
+          subscriber.onNext(LazilyPersistentVector.createOwning(d));
+        } catch (Throwable t) {
+          // onNext must not throw, treat it as a cancellation
+          cancelled = true;
+          nack(metadata.getDeliveryTag());
+          cancelConsumer();
+          return;
+        }
+        if (!manualAck) {
+          ack(metadata.getDeliveryTag());
+        }
+        emitted++;
+      }
+      if (emitted != 0 && r != Long.MAX_VALUE) {
+        demand.addAndGet(-emitted);
+      }
+      // errors are signalled right away, completion only once buffered deliveries are emitted
+      Throwable e = error;
+      if (done && !cancelled && (e != null || buffer.isEmpty())) {
+        cancelled = true;
+        requeueBuffered();
+        // a no-op unless the channel was already recovered with the consumer
+        cancelConsumer();
+        if (e != null) {
+          subscriber.onError(e);
+        } else {
+          subscriber.onComplete();
+        }
+      }
+    }
+
+    private void requeueBuffered() {
+      Object[] d;
+      while ((d = buffer.poll()) != null) {
+        nack(((DeliveryMetadata) d[0]).getDeliveryTag());
+      }
+    }
+
+    private void ack(long deliveryTag) {
+      try {
+        channel.basicAck(deliveryTag, false);
+      } catch (IOException | RuntimeException e) {
+        if (error == null) {
+          error = e;
+        }
+        done = true;
+      }
+    }
+
+    private void nack(long deliveryTag) {
+      if (channel.isOpen()) {
+        try {
+          channel.basicNack(deliveryTag, false, true);
+        } catch (IOException | RuntimeException ignored) {
+          // closing the channel requeues it anyway
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,242 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.http;
+
+import clojure.lang.IFn;
+import clojure.lang.IReduceInit;
+import clojure.lang.ITransientCollection;
+import clojure.lang.ITransientMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+import clojure.lang.PersistentVector;
+import clojure.lang.RT;
+import clojure.lang.Reduced;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The elements of a JSON array returned by the HTTP API, decoded one at a
+ * time from the response stream into maps with keyword keys, so that
+ * responses of any size can be processed in constant memory.
+ * <p/>
+ * Paginated responses (objects with "items" and "page_count") are followed
+ * page by page: fetch is called with the page number (starting at 1) and
+ * returns the response body of that page. Without pagination it is called
+ * once, with 1.
+ * <p/>
+ * Can be reduced or iterated once. The response stream is closed when all
+ * elements were read, when a reduction stops early or by {@link #close()}.
+ */
+public class JsonItems implements IReduceInit, Iterable<Object>, AutoCloseable {
+  private static final JsonFactory FACTORY = new JsonFactory();
+  private static final String ITEMS_FIELD = "items";
+  private static final String PAGE_COUNT_FIELD = "page_count";
+  private static final Object END = new Object();
+  private static final Object NONE = new Object();
+
+  private final IFn fetch;
+  private final boolean paginated;
+
+  private boolean used;
+  private JsonParser parser;
+  private int page;
+  private int pageCount = 1;
+  private boolean done;
+
+  public JsonItems(IFn fetch, boolean paginated) {
+    this.fetch = fetch;
+    this.paginated = paginated;
+  }
+
+  public Object reduce(IFn f, Object init) {
+    claim();
+    Object acc = init;
+    try {
+      for (Object x = next(); x != END; x = next()) {
+        acc = f.invoke(acc, x);
+        if (RT.isReduced(acc)) {
+          return ((Reduced) acc).deref();
+        }
+      }
+      return acc;
+    } finally {
+      close();
+    }
+  }
+
+  public Iterator<Object> iterator() {
+    claim();
+    return new Iterator<Object>() {
+      // elements can be null
+      private Object lookahead = NONE;
+
+      public boolean hasNext() {
+        if (lookahead == NONE) {
+          lookahead = JsonItems.this.next();
+        }
+        return lookahead != END;
+      }
+
+      public Object next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        Object x = lookahead;
+        lookahead = NONE;
+        return x;
+      }
+    };
+  }
+
+  public void close() {
+    done = true;
+    closeParser();
+  }
+
+  //
+  // Implementation
+  //
+
+  private void claim() {
+    if (used) {
+      throw new IllegalStateException("JSON items can only be consumed once");
+    }
+    used = true;
+  }
+
+  private Object next() {
+    try {
+      for (; ; ) {
+        if (parser == null) {
+          if (done || !open()) {
+            return END;
+          }
+        }
+        JsonToken t = parser.nextToken();
+        if (t == JsonToken.END_ARRAY || t == null) {
+          finishPage();
+          continue;
+        }
+        return read(t);
+      }
+    } catch (IOException e) {
+      close();
+      throw new UncheckedIOException(e);
+    } catch (RuntimeException e) {
+      close();
+      throw e;
+    }
+  }
+
+  // positions the parser at the start of the next page's items,
+  // returns false when there are no more pages
+  private boolean open() throws IOException {
+    if (page >= pageCount) {
+      done = true;
+      return false;
+    }
+    page++;
+    parser = FACTORY.createParser((InputStream) fetch.invoke(page));
+    JsonToken t = parser.nextToken();
+    if (t == JsonToken.START_ARRAY) {
+      return true;
+    }
+    if (t != JsonToken.START_OBJECT || !paginated) {
+      throw new IOException("expected a JSON array, got " + t);
+    }
+    while ((t = parser.nextToken()) == JsonToken.FIELD_NAME) {
+      String field = parser.currentName();
+      t = parser.nextToken();
+      if (ITEMS_FIELD.equals(field) && t == JsonToken.START_ARRAY) {
+        return true;
+      } else if (PAGE_COUNT_FIELD.equals(field)) {
+        pageCount = parser.getIntValue();
+      } else {
+        parser.skipChildren();
+      }
+    }
+    // a page without items
+    finishPage();
+    return parser != null || open();
+  }
+
+  // reads the rest of a paginated response, which includes the page count
+  private void finishPage() throws IOException {
+    if (paginated) {
+      JsonToken t;
+      while ((t = parser.nextToken()) == JsonToken.FIELD_NAME) {
+        String field = parser.currentName();
+        parser.nextToken();
+        if (PAGE_COUNT_FIELD.equals(field)) {
+          pageCount = parser.getIntValue();
+        } else {
+          parser.skipChildren();
+        }
+      }
+    } else {
+      done = true;
+    }
+    closeParser();
+  }
+
+  private void closeParser() {
+    if (parser != null) {
+      try {
+        // also closes the response stream
+        parser.close();
+      } catch (IOException ignored) {
+        // nothing else to do
+      }
+      parser = null;
+    }
+  }
+
+  private Object read(JsonToken t) throws IOException {
+    switch (t) {
+      case START_OBJECT: {
+        ITransientMap m = PersistentArrayMap.EMPTY.asTransient();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          Keyword k = Keyword.intern(null, parser.currentName());
+          m = m.assoc(k, read(parser.nextToken()));
+        }
+        return m.persistent();
+      }
+      case START_ARRAY: {
+        ITransientCollection v = PersistentVector.EMPTY.asTransient();
+        for (JsonToken x = parser.nextToken(); x != JsonToken.END_ARRAY; x = parser.nextToken()) {
+          v = v.conj(read(x));
+        }
+        return v.persistent();
+      }
+      case VALUE_STRING:
+        return parser.getText();
+      case VALUE_NUMBER_INT:
+        return parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER
+            ? parser.getBigIntegerValue() : (Object) parser.getLongValue();
+      case VALUE_NUMBER_FLOAT:
+        return parser.getDoubleValue();
+      case VALUE_TRUE:
+        return Boolean.TRUE;
+      case VALUE_FALSE:
+        return Boolean.FALSE;
+      case VALUE_NULL:
+        return null;
+      default:
+        throw new IOException("unexpected JSON token " + t);
+    }
+  }
+}
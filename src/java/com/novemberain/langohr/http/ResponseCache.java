@@ -0,0 +1,310 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.http;
+
+import clojure.lang.IFn;
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of HTTP API responses with a time to live per endpoint (the first
+ * path segment after /api/, e.g. :queues or :overview).
+ * <p/>
+ * Concurrent requests for a value that is missing or expired share a single
+ * fetch. For :stale-ttl milliseconds after a value has expired, it is still
+ * returned while a refresh runs in the background on :executor. Failed fetches
+ * are not cached, and neither are values a fetch wraps with
+ * {@link #uncached(Object)}, e.g. error responses: they are returned to the
+ * requests that waited for the fetch and count as failures.
+ * <p/>
+ * No more than :max-entries (default: 1024) responses are kept, the least
+ * recently used ones are evicted first.
+ */
+public class ResponseCache {
+  private static final Keyword TTL_KEYWORD = Keyword.intern(null, "ttl");
+  private static final Keyword TTLS_KEYWORD = Keyword.intern(null, "ttls");
+  private static final Keyword STALE_TTL_KEYWORD = Keyword.intern(null, "stale-ttl");
+  private static final Keyword MAX_ENTRIES_KEYWORD = Keyword.intern(null, "max-entries");
+  private static final Keyword EXECUTOR_KEYWORD = Keyword.intern(null, "executor");
+  private static final Keyword HITS_KEYWORD = Keyword.intern(null, "hits");
+  private static final Keyword MISSES_KEYWORD = Keyword.intern(null, "misses");
+  private static final Keyword STALE_KEYWORD = Keyword.intern(null, "stale");
+  private static final Keyword COALESCED_KEYWORD = Keyword.intern(null, "coalesced");
+  private static final Keyword REFRESHES_KEYWORD = Keyword.intern(null, "refreshes");
+  private static final Keyword FAILURES_KEYWORD = Keyword.intern(null, "failures");
+  private static final Keyword EVICTIONS_KEYWORD = Keyword.intern(null, "evictions");
+  private static final Keyword SIZE_KEYWORD = Keyword.intern(null, "size");
+  private static final long DEFAULT_TTL = 5000;
+  private static final int DEFAULT_MAX_ENTRIES = 1024;
+
+  private static final AtomicInteger COUNTER = new AtomicInteger();
+  private static Executor defaultExecutor;
+
+  private static final class Snapshot {
+    private final Object value;
+    private final long fetchedAt;
+
+    private Snapshot(Object value, long fetchedAt) {
+      this.value = value;
+      this.fetchedAt = fetchedAt;
+    }
+  }
+
+  private static final class Uncached {
+    private final Object value;
+
+    private Uncached(Object value) {
+      this.value = value;
+    }
+  }
+
+  private static final class Entry {
+    private final Keyword endpoint;
+    private volatile Snapshot snapshot;
+    private volatile long lastAccess;
+    // guarded by this
+    private CompletableFuture<Object> inFlight;
+
+    private Entry(Keyword endpoint) {
+      this.endpoint = endpoint;
+    }
+  }
+
+  private final long ttl;
+  private final Map<Keyword, Long> ttls = new ConcurrentHashMap<Keyword, Long>();
+  private final long staleTtl;
+  private final int maxEntries;
+  private final Executor executor;
+  private final ConcurrentHashMap<Object, Entry> entries = new ConcurrentHashMap<Object, Entry>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder stale = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+  private final LongAdder refreshes = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  public ResponseCache(IPersistentMap options) {
+    this.ttl = TimeUnit.MILLISECONDS.toNanos(((Number) options.valAt(TTL_KEYWORD, DEFAULT_TTL)).longValue());
+    this.staleTtl = TimeUnit.MILLISECONDS.toNanos(((Number) options.valAt(STALE_TTL_KEYWORD, 0)).longValue());
+    this.maxEntries = ((Number) options.valAt(MAX_ENTRIES_KEYWORD, DEFAULT_MAX_ENTRIES)).intValue();
+    if (ttl < 0 || staleTtl < 0 || maxEntries <= 0) {
+      throw new IllegalArgumentException("TTLs must not be negative and max entries must be positive");
+    }
+    Map<?, ?> m = (Map<?, ?>) options.valAt(TTLS_KEYWORD);
+    if (m != null) {
+      for (Map.Entry<?, ?> e : m.entrySet()) {
+        ttls.put((Keyword) e.getKey(), TimeUnit.MILLISECONDS.toNanos(((Number) e.getValue()).longValue()));
+      }
+    }
+    Executor es = (Executor) options.valAt(EXECUTOR_KEYWORD);
+    this.executor = (es != null) ? es : getDefaultExecutor();
+  }
+
+  private static synchronized Executor getDefaultExecutor() {
+    if (defaultExecutor == null) {
+      defaultExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "langohr-http-cache-refresh-" + COUNTER.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    return defaultExecutor;
+  }
+
+  /**
+   * Returns the cached value for key or the result of calling fetch.
+   *
+   * @param endpoint endpoint the key belongs to, determines the TTL
+   */
+  public Object get(Object key, Keyword endpoint, IFn fetch) {
+    long now = System.nanoTime();
+    Entry e = entries.get(key);
+    if (e == null) {
+      Entry created = new Entry(endpoint);
+      e = entries.putIfAbsent(key, created);
+      if (e == null) {
+        e = created;
+        if (entries.size() > maxEntries) {
+          evict();
+        }
+      }
+    }
+    e.lastAccess = now;
+
+    Snapshot s = e.snapshot;
+    if (s != null) {
+      long age = now - s.fetchedAt;
+      long t = ttlFor(e.endpoint);
+      if (age < t) {
+        hits.increment();
+        return s.value;
+      }
+      if (age < t + staleTtl) {
+        stale.increment();
+        refresh(e, fetch);
+        return s.value;
+      }
+    }
+
+    misses.increment();
+    CompletableFuture<Object> f;
+    boolean owner = false;
+    synchronized (e) {
+      f = e.inFlight;
+      if (f == null) {
+        f = new CompletableFuture<Object>();
+        e.inFlight = f;
+        owner = true;
+      }
+    }
+    if (owner) {
+      fetch(key, e, f, fetch);
+    } else {
+      coalesced.increment();
+    }
+    try {
+      return f.get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw clojure.lang.Util.sneakyThrow(ie);
+    } catch (ExecutionException ee) {
+      throw clojure.lang.Util.sneakyThrow(ee.getCause());
+    }
+  }
+
+  /**
+   * Wraps a value that fetch returns but that must not be cached.
+   */
+  public static Object uncached(Object value) {
+    return new Uncached(value);
+  }
+
+  /**
+   * Removes all entries.
+   */
+  public void invalidate() {
+    entries.clear();
+  }
+
+  /**
+   * Removes entries of the given endpoint, e.g. after it was modified.
+   */
+  public void invalidate(Keyword endpoint) {
+    entries.values().removeIf(e -> e.endpoint == endpoint);
+  }
+
+  /**
+   * @return a map of :hits, :misses, :stale (stale values returned), :coalesced
+   *         (requests that waited for another one's fetch), :refreshes, :failures,
+   *         :evictions and :size
+   */
+  public IPersistentMap stats() {
+    return PersistentArrayMap.EMPTY
+        .assoc(HITS_KEYWORD, hits.sum())
+        .assoc(MISSES_KEYWORD, misses.sum())
+        .assoc(STALE_KEYWORD, stale.sum())
+        .assoc(COALESCED_KEYWORD, coalesced.sum())
+        .assoc(REFRESHES_KEYWORD, refreshes.sum())
+        .assoc(FAILURES_KEYWORD, failures.sum())
+        .assoc(EVICTIONS_KEYWORD, evictions.sum())
+        .assoc(SIZE_KEYWORD, entries.size());
+  }
+
+  //
+  // Implementation
+  //
+
+  private long ttlFor(Keyword endpoint) {
+    Long t = (endpoint == null) ? null : ttls.get(endpoint);
+    return (t == null) ? ttl : t;
+  }
+
+  private void fetch(Object key, Entry e, CompletableFuture<Object> f, IFn fetch) {
+    try {
+      Object v = fetch.invoke();
+      if (v instanceof Uncached) {
+        failures.increment();
+        done(e);
+        if (e.snapshot == null) {
+          entries.remove(key, e);
+        }
+        f.complete(((Uncached) v).value);
+        return;
+      }
+      e.snapshot = new Snapshot(v, System.nanoTime());
+      done(e);
+      f.complete(v);
+    } catch (Throwable t) {
+      failures.increment();
+      done(e);
+      if (e.snapshot == null) {
+        entries.remove(key, e);
+      }
+      f.completeExceptionally(t);
+    }
+  }
+
+  private void done(Entry e) {
+    synchronized (e) {
+      e.inFlight = null;
+    }
+  }
+
+  private void refresh(final Entry e, final IFn fetch) {
+    final CompletableFuture<Object> f;
+    synchronized (e) {
+      if (e.inFlight != null) {
+        return;
+      }
+      f = new CompletableFuture<Object>();
+      e.inFlight = f;
+    }
+    refreshes.increment();
+    try {
+      // failures keep the stale value
+      executor.execute(() -> fetch(null, e, f, fetch));
+    } catch (RuntimeException ex) {
+      done(e);
+      f.completeExceptionally(ex);
+    }
+  }
+
+  // evicts the least recently used tenth of the entries
+  private synchronized void evict() {
+    int excess = entries.size() - maxEntries;
+    if (excess <= 0) {
+      return;
+    }
+    List<Map.Entry<Object, Entry>> all = new ArrayList<Map.Entry<Object, Entry>>(entries.entrySet());
+    all.sort((a, b) -> Long.compare(a.getValue().lastAccess, b.getValue().lastAccess));
+    int n = Math.min(all.size(), Math.max(excess, maxEntries / 10));
+    for (int i = 0; i < n; i++) {
+      Map.Entry<Object, Entry> x = all.get(i);
+      if (entries.remove(x.getKey(), x.getValue())) {
+        evictions.increment();
+      }
+    }
+  }
+}
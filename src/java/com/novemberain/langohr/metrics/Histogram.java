@@ -0,0 +1,124 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.metrics;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram with log-linear buckets in the style of
+ * HdrHistogram: every power of two range is split into 16 linear
+ * sub-buckets, so recorded values are accurate to within 1/16 (6.25%).
+ * Values from 0 to 2^48 - 1 (about 78 hours in nanoseconds) can be
+ * tracked, larger ones are recorded as the maximum trackable value.
+ * <p/>
+ * Recording is a few atomic increments and never blocks. Snapshots are not
+ * atomic with respect to concurrent recording, which can make a snapshot
+ * miss a value that is being recorded at the same time.
+ */
+public final class Histogram {
+  private static final Keyword COUNT_KEYWORD = Keyword.intern(null, "count");
+  private static final Keyword MEAN_KEYWORD = Keyword.intern(null, "mean");
+  private static final Keyword MAX_KEYWORD = Keyword.intern(null, "max");
+  private static final Keyword P50_KEYWORD = Keyword.intern(null, "p50");
+  private static final Keyword P75_KEYWORD = Keyword.intern(null, "p75");
+  private static final Keyword P90_KEYWORD = Keyword.intern(null, "p90");
+  private static final Keyword P99_KEYWORD = Keyword.intern(null, "p99");
+  private static final Keyword P999_KEYWORD = Keyword.intern(null, "p999");
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MAX_EXPONENT = 47;
+  public static final long HIGHEST_TRACKABLE_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+  private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) << SUB_BUCKET_BITS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long value) {
+    long v = value < 0 ? 0 : Math.min(value, HIGHEST_TRACKABLE_VALUE);
+    counts.incrementAndGet(indexOf(v));
+    sum.add(v);
+    long m = max.get();
+    while (v > m && !max.compareAndSet(m, v)) {
+      m = max.get();
+    }
+  }
+
+  /**
+   * @param reset when true, the histogram is cleared as it is read
+   * @return a map of :count, :mean, :max and :p50 through :p999 (the 99.9th
+   * percentile). Percentiles are the highest value of the bucket they fall
+   * into, capped at :max.
+   */
+  public IPersistentMap snapshot(boolean reset) {
+    long[] cs = new long[BUCKET_COUNT];
+    long total = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      cs[i] = reset ? counts.getAndSet(i, 0) : counts.get(i);
+      total += cs[i];
+    }
+    long s = reset ? sum.sumThenReset() : sum.sum();
+    long m = reset ? max.getAndSet(0) : max.get();
+
+    return PersistentArrayMap.EMPTY
+        .assoc(COUNT_KEYWORD, total)
+        .assoc(MEAN_KEYWORD, total == 0 ? 0.0 : (double) s / total)
+        .assoc(MAX_KEYWORD, m)
+        .assoc(P50_KEYWORD, valueAt(cs, total, m, 0.5))
+        .assoc(P75_KEYWORD, valueAt(cs, total, m, 0.75))
+        .assoc(P90_KEYWORD, valueAt(cs, total, m, 0.9))
+        .assoc(P99_KEYWORD, valueAt(cs, total, m, 0.99))
+        .assoc(P999_KEYWORD, valueAt(cs, total, m, 0.999));
+  }
+
+  //
+  // Implementation
+  //
+
+  static int indexOf(long v) {
+    if (v < SUB_BUCKETS) {
+      return (int) v;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(v);
+    int shift = exponent - SUB_BUCKET_BITS;
+    return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((v >>> shift) & (SUB_BUCKETS - 1));
+  }
+
+  static long highestEquivalentValue(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = (index >>> SUB_BUCKET_BITS) - 1;
+    long lowest = (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+
+  private static long valueAt(long[] cs, long total, long max, double quantile) {
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(quantile * total));
+    long seen = 0;
+    for (int i = 0; i < cs.length; i++) {
+      seen += cs[i];
+      if (seen >= rank) {
+        return Math.min(highestEquivalentValue(i), max);
+      }
+    }
+    return max;
+  }
+}
@@ -0,0 +1,72 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.metrics;
+
+/**
+ * Receives measurements from consumers ({@link com.novemberain.langohr.FnConsumer})
+ * and publishers ({@link com.novemberain.langohr.confirm.ConfirmTracker},
+ * {@link com.novemberain.langohr.basic.PipelinedPublisher}) that were
+ * given one with the :metrics option. Without it, they do not take any
+ * measurements at all.
+ * <p/>
+ * Each consumer and publisher looks a recorder up once per consumer tag or
+ * exchange and keeps using it. Recorders are called on consumer dispatch and
+ * publishing threads, so they must be thread-safe and cheap. All durations
+ * are in nanoseconds.
+ *
+ * @see MetricsRegistry
+ */
+public interface Metrics {
+  ConsumerMetrics consumer(String consumerTag);
+
+  PublisherMetrics publisher(String exchange);
+
+  interface ConsumerMetrics {
+    /**
+     * A delivery was received.
+     */
+    void delivered();
+
+    /**
+     * A delivery (or batch) handler returned or, when failed is true, threw.
+     */
+    void handled(long nanos, boolean failed);
+
+    /**
+     * A delivery waited for a worker for the given time.
+     */
+    void queued(long nanos);
+
+    /**
+     * A batch of deliveries was acknowledged the given time after
+     * its first delivery was received.
+     */
+    void acked(int deliveries, long nanos);
+  }
+
+  interface PublisherMetrics {
+    /**
+     * A message was published.
+     */
+    void published();
+
+    /**
+     * A message was acked (or nacked) by the broker the given time after
+     * it was published (or, for pipelined publishing, enqueued).
+     */
+    void confirmed(long nanos, boolean acked);
+
+    /**
+     * Publishing a message failed or its channel was closed before
+     * a confirm arrived.
+     */
+    void failed();
+  }
+}
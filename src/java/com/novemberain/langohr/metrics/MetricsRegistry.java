@@ -0,0 +1,163 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.metrics;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+import clojure.lang.PersistentHashMap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The built-in {@link Metrics} implementation: throughput counters and
+ * latency {@link Histogram}s per consumer tag and per exchange, readable
+ * as a map with {@link #snapshot(boolean)}.
+ * <p/>
+ * Entries are kept until they are removed with {@link #removeConsumer(String)}
+ * or {@link #removePublisher(String)}. Consumers and publishers keep the
+ * recorders they looked up, so one that keeps recording after its entry was
+ * removed does not add it back. Publishers look recorders up per exchange,
+ * consumers again when their consumer tag changes.
+ */
+public class MetricsRegistry implements Metrics {
+  private static final Keyword CONSUMERS_KEYWORD = Keyword.intern(null, "consumers");
+  private static final Keyword PUBLISHERS_KEYWORD = Keyword.intern(null, "publishers");
+  private static final Keyword DELIVERED_KEYWORD = Keyword.intern(null, "delivered");
+  private static final Keyword FAILED_KEYWORD = Keyword.intern(null, "failed");
+  private static final Keyword ACKED_KEYWORD = Keyword.intern(null, "acked");
+  private static final Keyword NACKED_KEYWORD = Keyword.intern(null, "nacked");
+  private static final Keyword PUBLISHED_KEYWORD = Keyword.intern(null, "published");
+  private static final Keyword HANDLER_LATENCY_KEYWORD = Keyword.intern(null, "handler-latency");
+  private static final Keyword QUEUE_LATENCY_KEYWORD = Keyword.intern(null, "queue-latency");
+  private static final Keyword ACK_LATENCY_KEYWORD = Keyword.intern(null, "ack-latency");
+  private static final Keyword CONFIRM_LATENCY_KEYWORD = Keyword.intern(null, "confirm-latency");
+
+  private static final class ConsumerStats implements ConsumerMetrics {
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder acked = new LongAdder();
+    private final Histogram handlerLatency = new Histogram();
+    private final Histogram queueLatency = new Histogram();
+    private final Histogram ackLatency = new Histogram();
+
+    public void delivered() {
+      delivered.increment();
+    }
+
+    public void handled(long nanos, boolean failed) {
+      handlerLatency.record(nanos);
+      if (failed) {
+        this.failed.increment();
+      }
+    }
+
+    public void queued(long nanos) {
+      queueLatency.record(nanos);
+    }
+
+    public void acked(int deliveries, long nanos) {
+      acked.add(deliveries);
+      ackLatency.record(nanos);
+    }
+
+    private IPersistentMap snapshot(boolean reset) {
+      return PersistentArrayMap.EMPTY
+          .assoc(DELIVERED_KEYWORD, read(delivered, reset))
+          .assoc(FAILED_KEYWORD, read(failed, reset))
+          .assoc(ACKED_KEYWORD, read(acked, reset))
+          .assoc(HANDLER_LATENCY_KEYWORD, handlerLatency.snapshot(reset))
+          .assoc(QUEUE_LATENCY_KEYWORD, queueLatency.snapshot(reset))
+          .assoc(ACK_LATENCY_KEYWORD, ackLatency.snapshot(reset));
+    }
+  }
+
+  private static final class PublisherStats implements PublisherMetrics {
+    private final LongAdder published = new LongAdder();
+    private final LongAdder acked = new LongAdder();
+    private final LongAdder nacked = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final Histogram confirmLatency = new Histogram();
+
+    public void published() {
+      published.increment();
+    }
+
+    public void confirmed(long nanos, boolean acked) {
+      (acked ? this.acked : this.nacked).increment();
+      confirmLatency.record(nanos);
+    }
+
+    public void failed() {
+      failed.increment();
+    }
+
+    private IPersistentMap snapshot(boolean reset) {
+      return PersistentArrayMap.EMPTY
+          .assoc(PUBLISHED_KEYWORD, read(published, reset))
+          .assoc(ACKED_KEYWORD, read(acked, reset))
+          .assoc(NACKED_KEYWORD, read(nacked, reset))
+          .assoc(FAILED_KEYWORD, read(failed, reset))
+          .assoc(CONFIRM_LATENCY_KEYWORD, confirmLatency.snapshot(reset));
+    }
+  }
+
+  private final ConcurrentMap<String, ConsumerStats> consumers = new ConcurrentHashMap<String, ConsumerStats>();
+  private final ConcurrentMap<String, PublisherStats> publishers = new ConcurrentHashMap<String, PublisherStats>();
+
+  public ConsumerMetrics consumer(String consumerTag) {
+    ConsumerStats s = consumers.get(consumerTag);
+    return (s != null) ? s : consumers.computeIfAbsent(consumerTag, k -> new ConsumerStats());
+  }
+
+  public PublisherMetrics publisher(String exchange) {
+    PublisherStats s = publishers.get(exchange);
+    return (s != null) ? s : publishers.computeIfAbsent(exchange, k -> new PublisherStats());
+  }
+
+  public void removeConsumer(String consumerTag) {
+    consumers.remove(consumerTag);
+  }
+
+  public void removePublisher(String exchange) {
+    publishers.remove(exchange);
+  }
+
+  /**
+   * @param reset when true, counters and histograms are reset as they are
+   *              read, so that every snapshot covers the time since the previous one
+   * @return a map with :consumers (consumer tag => stats) and
+   * :publishers (exchange name => stats)
+   */
+  public IPersistentMap snapshot(boolean reset) {
+    IPersistentMap cs = PersistentHashMap.EMPTY;
+    for (Map.Entry<String, ConsumerStats> e : consumers.entrySet()) {
+      cs = cs.assoc(e.getKey(), e.getValue().snapshot(reset));
+    }
+    IPersistentMap ps = PersistentHashMap.EMPTY;
+    for (Map.Entry<String, PublisherStats> e : publishers.entrySet()) {
+      ps = ps.assoc(e.getKey(), e.getValue().snapshot(reset));
+    }
+    return PersistentArrayMap.EMPTY
+        .assoc(CONSUMERS_KEYWORD, cs)
+        .assoc(PUBLISHERS_KEYWORD, ps);
+  }
+
+  //
+  // Implementation
+  //
+
+  private static long read(LongAdder a, boolean reset) {
+    return reset ? a.sumThenReset() : a.sum();
+  }
+}
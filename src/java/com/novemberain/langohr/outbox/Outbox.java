@@ -0,0 +1,352 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.outbox;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+import com.novemberain.langohr.Util;
+import com.novemberain.langohr.basic.EncodingBuffer;
+import com.novemberain.langohr.confirm.ConfirmTracker;
+import com.rabbitmq.client.AMQP;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * At-least-once publishing through a log on local disk: publishes append
+ * messages to a {@link SegmentLog} and return, a background thread publishes
+ * them with a {@link ConfirmTracker} and moves the log's checkpoint past
+ * messages once they are confirmed. Messages that were not confirmed when
+ * the process stopped are published again by the next outbox opened on the
+ * same directory.
+ * <p/>
+ * With :sync? true (the default) publishes return once their message is
+ * forced to disk. Forcing is group-committed: one thread forces everything
+ * appended since the last force, so concurrent publishers share the cost of
+ * a force. With :sync? false messages are in the operating system's page
+ * cache when publish returns, which survives the process but not the
+ * machine crashing.
+ * <p/>
+ * Nacked messages and messages in flight when the channel closes are
+ * published again, from the first unconfirmed one, after :retry-interval
+ * milliseconds (default: 1000) and once the channel is open, e.g. after
+ * connection recovery. Consumers may therefore see duplicates.
+ * <p/>
+ * Segments are :segment-size bytes (default: 64 MiB), which must not change
+ * between runs on the same directory, and a message must fit into one.
+ */
+public class Outbox implements AutoCloseable {
+  private static final Keyword SEGMENT_SIZE_KEYWORD = Keyword.intern(null, "segment-size");
+  private static final Keyword SYNC_KEYWORD = Keyword.intern(null, "sync?");
+  private static final Keyword RETRY_INTERVAL_KEYWORD = Keyword.intern(null, "retry-interval");
+  private static final Keyword APPENDED_KEYWORD = Keyword.intern(null, "appended");
+  private static final Keyword PUBLISHED_KEYWORD = Keyword.intern(null, "published");
+  private static final Keyword CONFIRMED_KEYWORD = Keyword.intern(null, "confirmed");
+  private static final Keyword REPUBLISHED_KEYWORD = Keyword.intern(null, "republished");
+  private static final Keyword FORCES_KEYWORD = Keyword.intern(null, "forces");
+  private static final Keyword SEGMENTS_KEYWORD = Keyword.intern(null, "segments");
+  private static final Keyword DRAINED_KEYWORD = Keyword.intern(null, "drained?");
+  private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+  private static final long DEFAULT_RETRY_INTERVAL = 1000;
+  // how long the drainer sleeps when it has nothing to do and was not woken up
+  private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private static final AtomicInteger COUNTER = new AtomicInteger();
+
+  private static final class InFlight {
+    private final long start;
+    private final long end;
+    private final CompletableFuture<Boolean> confirm;
+
+    private InFlight(long start, long end, CompletableFuture<Boolean> confirm) {
+      this.start = start;
+      this.end = end;
+      this.confirm = confirm;
+    }
+  }
+
+  private final SegmentLog log;
+  private final ConfirmTracker tracker;
+  private final boolean sync;
+  private final long retryInterval;
+
+  private final ReentrantLock flushLock = new ReentrantLock();
+  private final Condition flushNeeded = flushLock.newCondition();
+  private final Condition flushed = flushLock.newCondition();
+  // guarded by flushLock, position up to which the log is on disk
+  private long forced;
+
+  private final Thread flusher;
+  private final Thread drainer;
+  private volatile boolean closed;
+
+  private final LongAdder appended = new LongAdder();
+  private final LongAdder published = new LongAdder();
+  private final LongAdder confirmed = new LongAdder();
+  private final LongAdder republished = new LongAdder();
+  private final LongAdder forces = new LongAdder();
+
+  public Outbox(Path dir, ConfirmTracker tracker, IPersistentMap options) throws IOException {
+    this.tracker = tracker;
+    this.sync = Util.isTruthy(options.valAt(SYNC_KEYWORD, true));
+    this.retryInterval = ((Number) options.valAt(RETRY_INTERVAL_KEYWORD, DEFAULT_RETRY_INTERVAL)).longValue();
+    // locks the directory, nothing after it may fail
+    this.log = new SegmentLog(dir, ((Number) options.valAt(SEGMENT_SIZE_KEYWORD, DEFAULT_SEGMENT_SIZE)).intValue());
+    this.forced = log.getEnd();
+
+    int n = COUNTER.incrementAndGet();
+    this.flusher = new Thread(this::flushLoop, "langohr-outbox-flusher-" + n);
+    this.drainer = new Thread(this::drainLoop, "langohr-outbox-drainer-" + n);
+    flusher.setDaemon(true);
+    drainer.setDaemon(true);
+    flusher.start();
+    drainer.start();
+  }
+
+  public ConfirmTracker getConfirmTracker() {
+    return tracker;
+  }
+
+  /**
+   * Appends a message to the log, to be published to RabbitMQ in the background.
+   * Returns once the message is on disk with :sync? true.
+   */
+  public void publish(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body)
+      throws IOException, InterruptedException {
+    if (closed) {
+      throw new IllegalStateException("outbox is closed");
+    }
+    long end = log.append(encode(exchange, routingKey, props, body));
+    appended.increment();
+    LockSupport.unpark(drainer);
+    if (sync) {
+      awaitForced(end);
+    }
+  }
+
+  /**
+   * @return true when every message in the log was confirmed
+   */
+  public boolean isDrained() {
+    return log.getCheckpoint() >= log.getEnd();
+  }
+
+  /**
+   * Waits for every message appended so far to be confirmed.
+   *
+   * @return false if that did not happen in the given number of milliseconds
+   */
+  public boolean awaitDrained(long timeout) throws InterruptedException {
+    long end = log.getEnd();
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    synchronized (this) {
+      while (log.getCheckpoint() < end) {
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0) {
+          return false;
+        }
+        wait(remaining);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return a map of :appended, :published, :confirmed and :republished messages
+   *         and :forces since the outbox was opened, the number of :segments on disk
+   *         and :drained?
+   */
+  public IPersistentMap stats() {
+    return PersistentArrayMap.EMPTY
+        .assoc(APPENDED_KEYWORD, appended.sum())
+        .assoc(PUBLISHED_KEYWORD, published.sum())
+        .assoc(CONFIRMED_KEYWORD, confirmed.sum())
+        .assoc(REPUBLISHED_KEYWORD, republished.sum())
+        .assoc(FORCES_KEYWORD, forces.sum())
+        .assoc(SEGMENTS_KEYWORD, log.getSegmentCount())
+        .assoc(DRAINED_KEYWORD, isDrained());
+  }
+
+  /**
+   * Stops publishing and forces the log to disk. Unconfirmed messages are
+   * published by the next outbox opened on the directory. Does not close
+   * the channel.
+   */
+  public void close() throws InterruptedException, IOException {
+    closed = true;
+    LockSupport.unpark(drainer);
+    flushLock.lock();
+    try {
+      flushNeeded.signalAll();
+      flushed.signalAll();
+    } finally {
+      flushLock.unlock();
+    }
+    // the drainer may be waiting for the window of unconfirmed messages to have room
+    drainer.join(retryInterval + IDLE_NANOS / 1000000);
+    drainer.interrupt();
+    drainer.join();
+    flusher.join();
+    log.close();
+  }
+
+  //
+  // Implementation
+  //
+
+  private static byte[] encode(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body)
+      throws IOException {
+    EncodingBuffer buf = EncodingBuffer.acquire();
+    try {
+      DataOutputStream out = new DataOutputStream(buf);
+      out.writeUTF(exchange);
+      out.writeUTF(routingKey);
+      // the properties as they appear in a content header frame
+      byte[] header = ((props == null) ? new AMQP.BasicProperties() : props).toFrame(0, 0).getPayload();
+      out.writeInt(header.length);
+      out.write(header);
+      out.write(body);
+      out.flush();
+      return buf.toByteArray();
+    } finally {
+      buf.release();
+    }
+  }
+
+  private void awaitForced(long position) throws InterruptedException {
+    flushLock.lock();
+    try {
+      if (forced < position) {
+        flushNeeded.signal();
+      }
+      while (forced < position) {
+        if (closed) {
+          throw new IllegalStateException("outbox was closed before the message was forced to disk");
+        }
+        flushed.await();
+      }
+    } finally {
+      flushLock.unlock();
+    }
+  }
+
+  private void flushLoop() {
+    while (true) {
+      long target;
+      flushLock.lock();
+      try {
+        while (!closed && forced >= log.getEnd()) {
+          flushNeeded.awaitUninterruptibly();
+        }
+        if (closed) {
+          return;
+        }
+        target = log.getEnd();
+      } finally {
+        flushLock.unlock();
+      }
+      // appends made while forcing are forced by the next iteration
+      log.force();
+      forces.increment();
+      flushLock.lock();
+      try {
+        forced = target;
+        flushed.signalAll();
+      } finally {
+        flushLock.unlock();
+      }
+    }
+  }
+
+  private void drainLoop() {
+    ArrayDeque<InFlight> inFlight = new ArrayDeque<InFlight>();
+    long position = log.getCheckpoint();
+    while (!closed) {
+      try {
+        // move the checkpoint past the confirmed messages at the head
+        InFlight head;
+        boolean advanced = false;
+        while ((head = inFlight.peek()) != null && isAcked(head.confirm)) {
+          inFlight.poll();
+          log.checkpoint(head.end);
+          confirmed.increment();
+          advanced = true;
+        }
+        if (advanced) {
+          synchronized (this) {
+            notifyAll();
+          }
+        }
+        if (head != null && head.confirm.isDone() && !isAcked(head.confirm)) {
+          // nacked or failed, publish again from the first unconfirmed message
+          republished.add(inFlight.size());
+          position = head.start;
+          inFlight.clear();
+          LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(retryInterval));
+          continue;
+        }
+
+        if (position >= log.getEnd() || !tracker.getChannel().isOpen()) {
+          LockSupport.parkNanos(tracker.getChannel().isOpen()
+              ? IDLE_NANOS : TimeUnit.MILLISECONDS.toNanos(retryInterval));
+          continue;
+        }
+        byte[] data = log.read(position);
+        if (data == null) {
+          position = log.nextSegment(position);
+          continue;
+        }
+        long next = SegmentLog.next(position, data);
+        CompletableFuture<Boolean> f = publish(data);
+        f.whenComplete((acked, t) -> LockSupport.unpark(drainer));
+        inFlight.add(new InFlight(position, next, f));
+        published.increment();
+        position = next;
+      } catch (InterruptedException e) {
+        return;
+      } catch (IOException | RuntimeException e) {
+        // the channel is closed or closing, messages in flight fail
+        // and are published again once it is open
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(retryInterval));
+      }
+    }
+  }
+
+  private static boolean isAcked(CompletableFuture<Boolean> f) {
+    return f.isDone() && !f.isCompletedExceptionally() && f.getNow(false);
+  }
+
+  private CompletableFuture<Boolean> publish(byte[] data) throws IOException, InterruptedException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+    String exchange = in.readUTF();
+    String routingKey = in.readUTF();
+    byte[] header = new byte[in.readInt()];
+    in.readFully(header);
+    DataInputStream h = new DataInputStream(new ByteArrayInputStream(header));
+    // class id
+    h.readShort();
+    AMQP.BasicProperties props = new AMQP.BasicProperties(h);
+    byte[] body = new byte[in.available()];
+    in.readFully(body);
+    return tracker.publish(exchange, routingKey, false, props, body);
+  }
+}
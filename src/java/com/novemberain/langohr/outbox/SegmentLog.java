@@ -0,0 +1,325 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.outbox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of records in memory-mapped segment files of a fixed
+ * size, with a checkpoint: the position of the first record that is still
+ * needed. Segments before the checkpoint's segment are deleted.
+ * <p/>
+ * A position is a segment number in the upper and an offset within the
+ * segment in the lower 32 bits. Records are a length, a CRC32 of the data
+ * and the data. Reading a segment stops at a zero length, at the end of
+ * the segment or at a record that fails the CRC check, e.g. one that was
+ * partially written when the machine crashed.
+ * <p/>
+ * Appends are serialized. A single reader may read concurrently with
+ * appends, up to {@link #getEnd()}.
+ * <p/>
+ * A log holds an exclusive lock on a lock file in its directory until it is
+ * closed. Opening another log on the same directory, in this or another
+ * process, fails instead of appending to the same segments.
+ */
+public class SegmentLog implements AutoCloseable {
+  private static final String SUFFIX = ".segment";
+  private static final String CHECKPOINT_FILE = "checkpoint";
+  private static final String LOCK_FILE = "lock";
+  private static final int HEADER = 8;
+
+  private final Path dir;
+  private final int segmentSize;
+  private final FileChannel lockChannel;
+  private final ConcurrentSkipListMap<Long, MappedByteBuffer> segments = new ConcurrentSkipListMap<Long, MappedByteBuffer>();
+  private final MappedByteBuffer checkpointBuffer;
+  private final ReentrantLock appendLock = new ReentrantLock();
+
+  // guarded by appendLock
+  private long segment;
+  private int offset;
+  // position after the last appended record
+  private volatile long end;
+  private volatile long checkpoint;
+
+  public SegmentLog(Path dir, int segmentSize) throws IOException {
+    if (segmentSize <= HEADER) {
+      throw new IllegalArgumentException("segment size is too small: " + segmentSize);
+    }
+    this.dir = Files.createDirectories(dir);
+    this.segmentSize = segmentSize;
+    // taken before anything in the directory is read or written
+    this.lockChannel = lock(dir.resolve(LOCK_FILE));
+
+    try {
+      try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+        for (Path p : ds) {
+          String name = p.getFileName().toString();
+          segments.put(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), map(p));
+        }
+      }
+      this.checkpointBuffer = mapCheckpoint(dir.resolve(CHECKPOINT_FILE));
+      long cp = checkpointBuffer.getLong(0);
+      long first = segments.isEmpty() ? segmentOf(cp) : Math.max(segmentOf(cp), firstSegment());
+      // the checkpoint's segment may have been deleted right after the checkpoint moved past it
+      this.checkpoint = (first == segmentOf(cp)) ? cp : position(first, 0);
+
+      if (segments.isEmpty()) {
+        this.segment = segmentOf(checkpoint);
+        segments.put(segment, map(pathOf(segment)));
+        this.offset = 0;
+      } else {
+        this.segment = segments.lastKey();
+        this.offset = scan(segment);
+        // zero what follows the last valid record, so that stale bytes
+        // past a partially written record are never read as records
+        MappedByteBuffer b = segments.get(segment);
+        for (int i = offset; i < segmentSize; i++) {
+          b.put(i, (byte) 0);
+        }
+      }
+      this.end = position(segment, offset);
+    } catch (IOException | RuntimeException e) {
+      lockChannel.close();
+      throw e;
+    }
+  }
+
+  public static long position(long segment, int offset) {
+    return (segment << 32) | (offset & 0xFFFFFFFFL);
+  }
+
+  public static long segmentOf(long position) {
+    return position >>> 32;
+  }
+
+  public static int offsetOf(long position) {
+    return (int) position;
+  }
+
+  public int getSegmentSize() {
+    return segmentSize;
+  }
+
+  /**
+   * @return position after the last appended record
+   */
+  public long getEnd() {
+    return end;
+  }
+
+  public long getCheckpoint() {
+    return checkpoint;
+  }
+
+  public int getSegmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * Appends a record.
+   *
+   * @return position after the record
+   */
+  public long append(byte[] data) throws IOException {
+    if (data.length > segmentSize - HEADER) {
+      throw new IllegalArgumentException("record of " + data.length + " bytes does not fit into a segment of "
+          + segmentSize + " bytes");
+    }
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, data.length);
+    appendLock.lock();
+    try {
+      if (offset + HEADER + data.length > segmentSize) {
+        roll();
+      }
+      ByteBuffer b = segments.get(segment).duplicate();
+      b.position(offset + HEADER);
+      b.put(data);
+      b.putInt(offset + 4, (int) crc.getValue());
+      // the length is written last, readers stop at a zero length
+      b.putInt(offset, data.length);
+      offset += HEADER + data.length;
+      long e = position(segment, offset);
+      end = e;
+      return e;
+    } finally {
+      appendLock.unlock();
+    }
+  }
+
+  /**
+   * Reads the record at a position before {@link #getEnd()}.
+   *
+   * @return the record's data, or null at the end of a segment, in which case
+   *         reading continues at {@link #nextSegment(long)}
+   */
+  public byte[] read(long position) {
+    MappedByteBuffer b = segments.get(segmentOf(position));
+    int off = offsetOf(position);
+    if (b == null || off + HEADER > segmentSize) {
+      return null;
+    }
+    int len = b.getInt(off);
+    if (len <= 0 || off + HEADER + len > segmentSize) {
+      return null;
+    }
+    byte[] data = new byte[len];
+    ByteBuffer d = b.duplicate();
+    d.position(off + HEADER);
+    d.get(data);
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, len);
+    return ((int) crc.getValue() == b.getInt(off + 4)) ? data : null;
+  }
+
+  /**
+   * @return position after a record of the given length read at the position
+   */
+  public static long next(long position, byte[] data) {
+    return position + HEADER + data.length;
+  }
+
+  /**
+   * @return start of the first segment after the position's
+   */
+  public long nextSegment(long position) {
+    Long s = segments.higherKey(segmentOf(position));
+    return position((s == null) ? segmentOf(position) + 1 : s, 0);
+  }
+
+  /**
+   * Moves the checkpoint forward and deletes segments before the checkpoint's.
+   */
+  public void checkpoint(long position) throws IOException {
+    if (position <= checkpoint) {
+      return;
+    }
+    long previous = checkpoint;
+    checkpoint = position;
+    checkpointBuffer.putLong(0, position);
+    if (segmentOf(position) > segmentOf(previous)) {
+      // the checkpoint must be on disk before segments it refers past are gone
+      checkpointBuffer.force();
+      for (Long s : segments.keySet()) {
+        if (s >= segmentOf(position)) {
+          break;
+        }
+        segments.remove(s);
+        Files.deleteIfExists(pathOf(s));
+      }
+    }
+  }
+
+  /**
+   * Forces appended records in the current segment to disk. Segments are
+   * forced when they are rolled over.
+   */
+  public void force() {
+    MappedByteBuffer b;
+    appendLock.lock();
+    try {
+      b = segments.get(segment);
+    } finally {
+      appendLock.unlock();
+    }
+    b.force();
+  }
+
+  /**
+   * Forces the log to disk and releases the directory's lock.
+   */
+  public void close() throws IOException {
+    try {
+      force();
+      checkpointBuffer.force();
+    } finally {
+      // closing the channel releases the lock
+      lockChannel.close();
+    }
+  }
+
+  //
+  // Implementation
+  //
+
+  private long firstSegment() {
+    return segments.firstKey();
+  }
+
+  // must be called with appendLock held
+  private void roll() throws IOException {
+    segments.get(segment).force();
+    long next = segment + 1;
+    segments.put(next, map(pathOf(next)));
+    segment = next;
+    offset = 0;
+  }
+
+  // returns the offset after the last valid record of a segment
+  private int scan(long segment) {
+    long p = position(segment, 0);
+    byte[] data;
+    while ((data = read(p)) != null) {
+      p = next(p, data);
+    }
+    return offsetOf(p);
+  }
+
+  private Path pathOf(long segment) {
+    return dir.resolve(String.format("%020d", segment) + SUFFIX);
+  }
+
+  private static FileChannel lock(Path p) throws IOException {
+    FileChannel fc = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    FileLock l;
+    try {
+      l = fc.tryLock();
+    } catch (OverlappingFileLockException e) {
+      // held by another log in this JVM
+      l = null;
+    } catch (IOException | RuntimeException e) {
+      fc.close();
+      throw e;
+    }
+    if (l == null) {
+      fc.close();
+      throw new IOException("directory " + p.getParent() + " is in use by another outbox");
+    }
+    return fc;
+  }
+
+  private MappedByteBuffer map(Path p) throws IOException {
+    try (FileChannel fc = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      // new files are zero-filled
+      return fc.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    }
+  }
+
+  private static MappedByteBuffer mapCheckpoint(Path p) throws IOException {
+    try (FileChannel fc = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      return fc.map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES);
+    }
+  }
+}
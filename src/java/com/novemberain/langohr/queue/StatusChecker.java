@@ -0,0 +1,179 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.queue;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import com.novemberain.langohr.channel.ChannelPool;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks message and consumer counts of many queues with passive
+ * queue.declare, in parallel on up to :parallelism (default: the pool's
+ * maximum size) channels borrowed from a {@link ChannelPool}.
+ * <p/>
+ * A channel supports one synchronous method at a time, so each borrowed
+ * channel checks a contiguous slice of the queues one after another.
+ * Passively declaring a queue that does not exist closes the channel with
+ * a 404 error: the queue is reported as missing, the pool evicts the closed
+ * channel and checking continues on a fresh one.
+ * <p/>
+ * Slices other than the first are checked on :executor.
+ */
+public class StatusChecker {
+  private static final Keyword PARALLELISM_KEYWORD = Keyword.intern(null, "parallelism");
+  private static final Keyword EXECUTOR_KEYWORD = Keyword.intern(null, "executor");
+  // fewer queues than this per slice are not worth another channel
+  private static final int MIN_SLICE = 16;
+  private static final int NOT_FOUND = 404;
+
+  private static final AtomicInteger COUNTER = new AtomicInteger();
+  private static Executor defaultExecutor;
+
+  private final ChannelPool pool;
+  private final int parallelism;
+  private final Executor executor;
+
+  public StatusChecker(ChannelPool pool, IPersistentMap options) {
+    this.pool = pool;
+    this.parallelism = ((Number) options.valAt(PARALLELISM_KEYWORD, pool.getMaxSize())).intValue();
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism must be positive, given: " + parallelism);
+    }
+    Executor es = (Executor) options.valAt(EXECUTOR_KEYWORD);
+    this.executor = (es != null) ? es : getDefaultExecutor();
+  }
+
+  private static synchronized Executor getDefaultExecutor() {
+    if (defaultExecutor == null) {
+      defaultExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "langohr-queue-status-" + COUNTER.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    return defaultExecutor;
+  }
+
+  public ChannelPool getPool() {
+    return pool;
+  }
+
+  public Statuses check(List<String> queues) throws IOException, InterruptedException, TimeoutException {
+    return check(queues.toArray(new String[0]));
+  }
+
+  /**
+   * Checks the given queues. Errors other than missing queues, e.g. access
+   * refused or connection failures, fail the whole check.
+   */
+  public Statuses check(final String[] queues) throws IOException, InterruptedException, TimeoutException {
+    final int[] messages = new int[queues.length];
+    final int[] consumers = new int[queues.length];
+    int n = Math.max(1, Math.min(parallelism, queues.length / MIN_SLICE));
+    int size = (queues.length + n - 1) / Math.max(1, n);
+
+    List<CompletableFuture<Void>> fs = new ArrayList<CompletableFuture<Void>>(n - 1);
+    for (int from = size; from < queues.length; from += size) {
+      final int start = from;
+      final int end = Math.min(queues.length, from + size);
+      fs.add(CompletableFuture.runAsync(() -> {
+        try {
+          checkSlice(queues, messages, consumers, start, end);
+        } catch (Exception e) {
+          throw new CompletionException(e);
+        }
+      }, executor));
+    }
+    try {
+      checkSlice(queues, messages, consumers, 0, Math.min(size, queues.length));
+      for (CompletableFuture<Void> f : fs) {
+        f.join();
+      }
+    } catch (CompletionException e) {
+      throw rethrow(e.getCause());
+    } finally {
+      for (CompletableFuture<Void> f : fs) {
+        f.cancel(false);
+      }
+    }
+    return new Statuses(queues, messages, consumers, System.currentTimeMillis());
+  }
+
+  //
+  // Implementation
+  //
+
+  private void checkSlice(String[] queues, int[] messages, int[] consumers, int from, int to)
+      throws IOException, InterruptedException, TimeoutException {
+    int i = from;
+    while (i < to) {
+      Channel ch = pool.borrow();
+      try {
+        for (; i < to; i++) {
+          AMQP.Queue.DeclareOk ok;
+          try {
+            ok = ch.queueDeclarePassive(queues[i]);
+          } catch (IOException e) {
+            if (!isNotFound(e)) {
+              throw e;
+            }
+            messages[i] = Statuses.MISSING;
+            consumers[i] = Statuses.MISSING;
+            i++;
+            // the channel is closed, the pool evicts it on release
+            break;
+          }
+          messages[i] = ok.getMessageCount();
+          consumers[i] = ok.getConsumerCount();
+        }
+      } finally {
+        pool.release(ch);
+      }
+    }
+  }
+
+  private static boolean isNotFound(IOException e) {
+    if (!(e.getCause() instanceof ShutdownSignalException)) {
+      return false;
+    }
+    ShutdownSignalException sse = (ShutdownSignalException) e.getCause();
+    return !sse.isHardError()
+        && sse.getReason() instanceof AMQP.Channel.Close
+        && ((AMQP.Channel.Close) sse.getReason()).getReplyCode() == NOT_FOUND;
+  }
+
+  private static IOException rethrow(Throwable t) throws IOException, InterruptedException, TimeoutException {
+    if (t instanceof IOException) {
+      throw (IOException) t;
+    } else if (t instanceof InterruptedException) {
+      throw (InterruptedException) t;
+    } else if (t instanceof TimeoutException) {
+      throw (TimeoutException) t;
+    } else if (t instanceof RuntimeException) {
+      throw (RuntimeException) t;
+    } else if (t instanceof Error) {
+      throw (Error) t;
+    }
+    return new IOException(t);
+  }
+}
@@ -0,0 +1,123 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.queue;
+
+import clojure.lang.IFn;
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks the statuses of a fixed set of queues every :interval milliseconds
+ * (default: 1000) with a {@link StatusChecker} and passes them to a callback.
+ * The latest {@link Statuses} are also available from {@link #getLatest()}.
+ * <p/>
+ * Failed checks are passed to :on-error, when provided, and polling
+ * continues with the next interval.
+ */
+public class StatusPoller implements AutoCloseable {
+  private static final Keyword INTERVAL_KEYWORD = Keyword.intern(null, "interval");
+  private static final Keyword ON_ERROR_KEYWORD = Keyword.intern(null, "on-error");
+  private static final Keyword SCHEDULER_KEYWORD = Keyword.intern(null, "scheduler");
+  private static final long DEFAULT_INTERVAL = 1000;
+
+  private static ScheduledExecutorService defaultScheduler;
+
+  private final StatusChecker checker;
+  private final String[] queues;
+  private final IFn callback;
+  private final IFn onError;
+  private final long interval;
+  private final ScheduledExecutorService scheduler;
+
+  private volatile Statuses latest;
+  private ScheduledFuture<?> task;
+
+  public StatusPoller(StatusChecker checker, String[] queues, IFn callback, IPersistentMap options) {
+    this.checker = checker;
+    this.queues = queues.clone();
+    this.callback = callback;
+    this.onError = (IFn) options.valAt(ON_ERROR_KEYWORD);
+    this.interval = ((Number) options.valAt(INTERVAL_KEYWORD, DEFAULT_INTERVAL)).longValue();
+    if (interval <= 0) {
+      throw new IllegalArgumentException("interval must be positive, given: " + interval);
+    }
+    ScheduledExecutorService ses = (ScheduledExecutorService) options.valAt(SCHEDULER_KEYWORD);
+    this.scheduler = (ses != null) ? ses : getDefaultScheduler();
+  }
+
+  private static synchronized ScheduledExecutorService getDefaultScheduler() {
+    if (defaultScheduler == null) {
+      defaultScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "langohr-queue-status-poller");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    return defaultScheduler;
+  }
+
+  /**
+   * @return statuses of the last successful check, or null before the first one
+   */
+  public Statuses getLatest() {
+    return latest;
+  }
+
+  /**
+   * Starts polling, the first check happens immediately. Does nothing when
+   * already started.
+   */
+  public synchronized StatusPoller start() {
+    if (task == null) {
+      task = scheduler.scheduleWithFixedDelay(this::poll, 0, interval, TimeUnit.MILLISECONDS);
+    }
+    return this;
+  }
+
+  /**
+   * Stops polling. A check in progress completes.
+   */
+  public synchronized void close() {
+    if (task != null) {
+      task.cancel(false);
+      task = null;
+    }
+  }
+
+  //
+  // Implementation
+  //
+
+  private void poll() {
+    // exceptions would cancel the scheduled task
+    try {
+      Statuses s = checker.check(queues);
+      latest = s;
+      if (callback != null) {
+        callback.invoke(s);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Throwable t) {
+      if (onError != null) {
+        try {
+          onError.invoke(t);
+        } catch (Throwable ignored) {
+          // keep polling
+        }
+      }
+    }
+  }
+}
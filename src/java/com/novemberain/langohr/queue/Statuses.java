@@ -0,0 +1,76 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.queue;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.ITransientMap;
+import clojure.lang.LazilyPersistentVector;
+import clojure.lang.PersistentHashMap;
+
+/**
+ * Message and consumer counts of a number of queues, in arrays parallel
+ * to the array of queue names. Counts of queues that do not exist are -1.
+ */
+public class Statuses {
+  public static final int MISSING = -1;
+
+  private final String[] queues;
+  private final int[] messageCounts;
+  private final int[] consumerCounts;
+  private final long checkedAt;
+
+  public Statuses(String[] queues, int[] messageCounts, int[] consumerCounts, long checkedAt) {
+    this.queues = queues;
+    this.messageCounts = messageCounts;
+    this.consumerCounts = consumerCounts;
+    this.checkedAt = checkedAt;
+  }
+
+  public String[] getQueues() {
+    return queues;
+  }
+
+  public int[] getMessageCounts() {
+    return messageCounts;
+  }
+
+  public int[] getConsumerCounts() {
+    return consumerCounts;
+  }
+
+  /**
+   * @return when the check completed, in milliseconds since the epoch
+   */
+  public long getCheckedAt() {
+    return checkedAt;
+  }
+
+  public int size() {
+    return queues.length;
+  }
+
+  public boolean exists(int i) {
+    return messageCounts[i] != MISSING;
+  }
+
+  /**
+   * @return a map of queue names to [message-count consumer-count] pairs,
+   *         queues that do not exist are mapped to nil
+   */
+  public IPersistentMap toMap() {
+    ITransientMap m = PersistentHashMap.EMPTY.asTransient();
+    for (int i = 0; i < queues.length; i++) {
+      m = m.assoc(queues[i], exists(i)
+          ? LazilyPersistentVector.createOwning(messageCounts[i], consumerCounts[i])
+          : null);
+    }
+    return m.persistent();
+  }
+}
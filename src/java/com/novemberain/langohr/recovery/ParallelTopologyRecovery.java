@@ -0,0 +1,368 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.recovery;
+
+import clojure.lang.IFn;
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
+import com.rabbitmq.client.TopologyRecoveryException;
+import com.rabbitmq.client.impl.recovery.AutorecoveringConnection;
+import com.rabbitmq.client.impl.recovery.RecordedBinding;
+import com.rabbitmq.client.impl.recovery.RecordedConsumer;
+import com.rabbitmq.client.impl.recovery.RecordedEntity;
+import com.rabbitmq.client.impl.recovery.RecordedExchange;
+import com.rabbitmq.client.impl.recovery.RecordedExchangeBinding;
+import com.rabbitmq.client.impl.recovery.RecordedQueue;
+import com.rabbitmq.client.impl.recovery.TopologyRecoveryFilter;
+import com.rabbitmq.utility.Utility;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recovers exchanges, queues and bindings of a connection in parallel,
+ * before the Java client recovers consumers.
+ * <p/>
+ * The client recovers topology one synchronous declaration at a time per
+ * channel the entities were declared on. Instead, recorded entities are
+ * split across up to :topology-recovery-channels channels that recover
+ * them concurrently. Queues with client-provided names and bindings are
+ * declared with nowait, a synchronous round trip every
+ * :topology-recovery-batch-size declarations detects failures, after which
+ * the batch is declared again one by one so that the failing entity can
+ * be reported to the connection's exception handler. Exchanges and
+ * server-named queues, which get a new name the client has to propagate,
+ * are recovered by the client, just on several threads at once.
+ * <p/>
+ * Entities recovered here are then filtered out of the client's own
+ * topology recovery. Consumers are recovered by the client as usual.
+ * <p/>
+ * Progress listeners are called with a map of :phase (:exchanges, :queues,
+ * :bindings, or :done with the sums of all phases), :recovered, :failed and
+ * :total for the phase and :elapsed milliseconds since topology recovery started.
+ * They may be called concurrently.
+ */
+public class ParallelTopologyRecovery implements RecoveryListener, TopologyRecoveryFilter {
+  private static final Keyword CHANNELS_KEYWORD = Keyword.intern(null, "topology-recovery-channels");
+  private static final Keyword BATCH_SIZE_KEYWORD = Keyword.intern(null, "topology-recovery-batch-size");
+  private static final int DEFAULT_BATCH_SIZE = 256;
+
+  private static final Keyword PHASE_KEYWORD = Keyword.intern(null, "phase");
+  private static final Keyword RECOVERED_KEYWORD = Keyword.intern(null, "recovered");
+  private static final Keyword FAILED_KEYWORD = Keyword.intern(null, "failed");
+  private static final Keyword TOTAL_KEYWORD = Keyword.intern(null, "total");
+  private static final Keyword ELAPSED_KEYWORD = Keyword.intern(null, "elapsed");
+  private static final Keyword EXCHANGES_KEYWORD = Keyword.intern(null, "exchanges");
+  private static final Keyword QUEUES_KEYWORD = Keyword.intern(null, "queues");
+  private static final Keyword BINDINGS_KEYWORD = Keyword.intern(null, "bindings");
+  private static final Keyword DONE_KEYWORD = Keyword.intern(null, "done");
+
+  private static final AtomicInteger COUNTER = new AtomicInteger();
+
+  private interface Recoverer<E> {
+    // recovers a batch on the given (pipelining) channel, returns the number of failures
+    int recover(AutorecoveringConnection conn, ChannelHolder ch, List<E> batch) throws IOException;
+  }
+
+  private static final class ChannelHolder {
+    private final AutorecoveringConnection conn;
+    private Channel channel;
+
+    private ChannelHolder(AutorecoveringConnection conn) {
+      this.conn = conn;
+    }
+
+    private Channel get() throws IOException {
+      if (channel == null || !channel.isOpen()) {
+        channel = conn.getDelegate().createChannel();
+        if (channel == null) {
+          throw new IOException("could not open a topology recovery channel: channel_max reached");
+        }
+      }
+      return channel;
+    }
+
+    private void close() {
+      if (channel != null && channel.isOpen()) {
+        try {
+          channel.close();
+        } catch (IOException | TimeoutException | RuntimeException ignored) {
+          // closing is best effort
+        }
+      }
+    }
+  }
+
+  private final TopologyRecoveryFilter filter;
+  private final int parallelism;
+  private final int batchSize;
+  private final List<IFn> progressListeners = new CopyOnWriteArrayList<IFn>();
+
+  // true once exchanges, queues and bindings were recovered here,
+  // until the next recovery starts
+  private volatile boolean recovered;
+  private long startedAt;
+
+  /**
+   * @param filter the application's topology recovery filter, or null
+   */
+  public ParallelTopologyRecovery(TopologyRecoveryFilter filter, IPersistentMap options) {
+    this.filter = filter;
+    this.parallelism = ((Number) options.valAt(CHANNELS_KEYWORD, 1)).intValue();
+    this.batchSize = ((Number) options.valAt(BATCH_SIZE_KEYWORD, DEFAULT_BATCH_SIZE)).intValue();
+    if (parallelism <= 0 || batchSize <= 0) {
+      throw new IllegalArgumentException("topology recovery channels and batch size must be positive");
+    }
+  }
+
+  public static boolean isEnabled(IPersistentMap options) {
+    return options.valAt(CHANNELS_KEYWORD) != null;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  public void addProgressListener(IFn f) {
+    progressListeners.add(f);
+  }
+
+  public boolean removeProgressListener(IFn f) {
+    return progressListeners.remove(f);
+  }
+
+  //
+  // RecoveryListener
+  //
+
+  public void handleRecoveryStarted(Recoverable recoverable) {
+    recovered = false;
+  }
+
+  public void handleTopologyRecoveryStarted(Recoverable recoverable) {
+    AutorecoveringConnection conn = (AutorecoveringConnection) recoverable;
+    startedAt = System.nanoTime();
+    ExecutorService es = Executors.newFixedThreadPool(parallelism, r -> {
+      Thread t = new Thread(r, "langohr-topology-recovery-" + COUNTER.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    try {
+      int[] totals = new int[3];
+      recoverExchanges(conn, es, totals);
+      recoverQueues(conn, es, totals);
+      recoverBindings(conn, es, totals);
+      progress(DONE_KEYWORD, totals[0], totals[1], totals[2]);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      es.shutdownNow();
+      recovered = true;
+    }
+  }
+
+  public void handleRecovery(Recoverable recoverable) {
+    // nothing to do
+  }
+
+  //
+  // TopologyRecoveryFilter
+  //
+
+  public boolean filterExchange(RecordedExchange x) {
+    return !recovered && (filter == null || filter.filterExchange(x));
+  }
+
+  public boolean filterQueue(RecordedQueue q) {
+    return !recovered && (filter == null || filter.filterQueue(q));
+  }
+
+  public boolean filterBinding(RecordedBinding b) {
+    return !recovered && (filter == null || filter.filterBinding(b));
+  }
+
+  public boolean filterConsumer(RecordedConsumer c) {
+    return filter == null || filter.filterConsumer(c);
+  }
+
+  //
+  // Implementation
+  //
+
+  private void recoverExchanges(AutorecoveringConnection conn, ExecutorService es, int[] totals) throws InterruptedException {
+    List<RecordedExchange> xs = new ArrayList<RecordedExchange>(Utility.copy(conn.getRecordedExchanges()).values());
+    // the client applies this filter and reports failures to the exception handler
+    run(EXCHANGES_KEYWORD, conn, es, totals, xs, (c, ch, batch) -> {
+      for (RecordedExchange x : batch) {
+        c.recoverExchange(x, true);
+      }
+      return 0;
+    });
+  }
+
+  private void recoverQueues(AutorecoveringConnection conn, ExecutorService es, int[] totals) throws InterruptedException {
+    List<Map.Entry<String, RecordedQueue>> qs =
+        new ArrayList<Map.Entry<String, RecordedQueue>>(Utility.copy(conn.getRecordedQueues()).entrySet());
+    run(QUEUES_KEYWORD, conn, es, totals, qs, (c, ch, batch) -> {
+      List<RecordedQueue> named = new ArrayList<RecordedQueue>(batch.size());
+      for (Map.Entry<String, RecordedQueue> e : batch) {
+        RecordedQueue q = e.getValue();
+        if (q.isServerNamed()) {
+          // needs the new name from queue.declare-ok, propagated to bindings and consumers by the client
+          c.recoverQueue(e.getKey(), q, true);
+        } else if (filter == null || filter.filterQueue(q)) {
+          named.add(q);
+        }
+      }
+      return pipeline(c, ch, named, (channel, q) ->
+          channel.queueDeclareNoWait(q.getName(), q.isDurable(), q.isExclusive(), q.isAutoDelete(), q.getArguments()),
+        (channel, q) ->
+          channel.queueDeclare(q.getName(), q.isDurable(), q.isExclusive(), q.isAutoDelete(), q.getArguments()));
+    });
+  }
+
+  private void recoverBindings(AutorecoveringConnection conn, ExecutorService es, int[] totals) throws InterruptedException {
+    // destinations of bindings to server-named queues were updated when the queues were recovered
+    List<RecordedBinding> bs = Utility.copy(conn.getRecordedBindings());
+    run(BINDINGS_KEYWORD, conn, es, totals, bs, (c, ch, batch) -> {
+      List<RecordedBinding> selected = new ArrayList<RecordedBinding>(batch.size());
+      for (RecordedBinding b : batch) {
+        if (filter == null || filter.filterBinding(b)) {
+          selected.add(b);
+        }
+      }
+      return pipeline(c, ch, selected, (channel, b) -> {
+        if (b instanceof RecordedExchangeBinding) {
+          channel.exchangeBindNoWait(b.getDestination(), b.getSource(), b.getRoutingKey(), b.getArguments());
+        } else {
+          channel.queueBindNoWait(b.getDestination(), b.getSource(), b.getRoutingKey(), b.getArguments());
+        }
+      }, (channel, b) -> {
+        if (b instanceof RecordedExchangeBinding) {
+          channel.exchangeBind(b.getDestination(), b.getSource(), b.getRoutingKey(), b.getArguments());
+        } else {
+          channel.queueBind(b.getDestination(), b.getSource(), b.getRoutingKey(), b.getArguments());
+        }
+      });
+    });
+  }
+
+  private interface Declaration<E> {
+    void declare(Channel ch, E entity) throws IOException;
+  }
+
+  // declares a batch with nowait and checks the outcome with a single round trip,
+  // declares it again one at a time if that fails
+  private static <E extends RecordedEntity> int pipeline(AutorecoveringConnection conn, ChannelHolder holder, List<E> batch,
+                                                         Declaration<E> nowait, Declaration<E> sync) throws IOException {
+    if (batch.isEmpty()) {
+      return 0;
+    }
+    try {
+      Channel ch = holder.get();
+      for (E e : batch) {
+        nowait.declare(ch, e);
+      }
+      // a synchronous no-op, completes once all of the above were processed
+      ch.basicQos(0);
+      return 0;
+    } catch (IOException | RuntimeException failed) {
+      int failures = 0;
+      for (E e : batch) {
+        Channel ch = holder.get();
+        try {
+          sync.declare(ch, e);
+        } catch (IOException | RuntimeException ex) {
+          failures++;
+          conn.getExceptionHandler().handleTopologyRecoveryException(conn, ch,
+              new TopologyRecoveryException("Caught an exception while recovering " + e + ": " + ex.getMessage(), ex, e));
+        }
+      }
+      return failures;
+    }
+  }
+
+  // totals accumulates recovered, failed and total counts of all phases
+  private <E> void run(final Keyword phase, final AutorecoveringConnection conn, ExecutorService es, int[] totals,
+                       List<E> entities, final Recoverer<E> recoverer) throws InterruptedException {
+    final int total = entities.size();
+    if (total == 0) {
+      return;
+    }
+    int partitions = Math.min(parallelism, (total + batchSize - 1) / batchSize);
+    final AtomicInteger done = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(partitions);
+    for (int p = 0; p < partitions; p++) {
+      final List<E> partition = new ArrayList<E>(total / partitions + 1);
+      for (int i = p; i < total; i += partitions) {
+        partition.add(entities.get(i));
+      }
+      tasks.add(() -> {
+        ChannelHolder ch = new ChannelHolder(conn);
+        try {
+          for (int from = 0; from < partition.size(); from += batchSize) {
+            List<E> batch = partition.subList(from, Math.min(from + batchSize, partition.size()));
+            int failures = recoverer.recover(conn, ch, batch);
+            progress(phase, done.addAndGet(batch.size() - failures), failed.addAndGet(failures), total);
+          }
+        } finally {
+          ch.close();
+        }
+        return null;
+      });
+    }
+    for (Future<Void> f : es.invokeAll(tasks)) {
+      try {
+        f.get();
+      } catch (ExecutionException e) {
+        conn.getExceptionHandler().handleTopologyRecoveryException(conn, null,
+            new TopologyRecoveryException("Caught an exception while recovering " + phase.getName(), e.getCause()));
+      }
+    }
+    totals[0] += done.get();
+    totals[1] += failed.get();
+    totals[2] += total;
+  }
+
+  private void progress(Keyword phase, int recovered, int failed, int total) {
+    if (progressListeners.isEmpty()) {
+      return;
+    }
+    IPersistentMap m = PersistentArrayMap.EMPTY
+        .assoc(PHASE_KEYWORD, phase)
+        .assoc(RECOVERED_KEYWORD, recovered)
+        .assoc(FAILED_KEYWORD, failed)
+        .assoc(TOTAL_KEYWORD, total)
+        .assoc(ELAPSED_KEYWORD, (System.nanoTime() - startedAt) / 1000000);
+    for (IFn f : progressListeners) {
+      try {
+        f.invoke(m);
+      } catch (RuntimeException ignored) {
+        // listeners must not break recovery
+      }
+    }
+  }
+}
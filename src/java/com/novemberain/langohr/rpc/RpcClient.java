@@ -0,0 +1,224 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.rpc;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.LazilyPersistentVector;
+import com.novemberain.langohr.DeliveryMetadata;
+import com.novemberain.langohr.Util;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ReturnListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Request/reply client that receives replies with direct reply-to
+ * (amq.rabbitmq.reply-to): a single consumer on the client's channel
+ * receives replies to all requests, no reply queue is declared.
+ * <p/>
+ * Requests get a correlation id from a counter. Pending requests are kept in
+ * a lock-free ring of :max-in-flight (default: 65536, rounded up to a power
+ * of two) slots indexed by that counter, so that correlating a reply is an
+ * array lookup. Callers block while :max-in-flight requests are pending, for
+ * up to :timeout milliseconds.
+ * <p/>
+ * Every request returns a {@link CompletableFuture} of a [metadata body] pair.
+ * It fails with a {@link TimeoutException} after :timeout milliseconds (default:
+ * 30000), with an {@link IOException} when the request could not be routed
+ * (requests are published as mandatory unless :mandatory is false) and with a
+ * {@link ShutdownSignalException} when the channel is closed. Cancelling it
+ * discards the reply, should one arrive.
+ * <p/>
+ * The channel must not be used by other consumers of amq.rabbitmq.reply-to.
+ */
+public class RpcClient implements AutoCloseable {
+  private static final Keyword TIMEOUT_KEYWORD = Keyword.intern(null, "timeout");
+  private static final Keyword MAX_IN_FLIGHT_KEYWORD = Keyword.intern(null, "max-in-flight");
+  private static final Keyword MANDATORY_KEYWORD = Keyword.intern(null, "mandatory");
+  public static final String DIRECT_REPLY_TO = "amq.rabbitmq.reply-to";
+  private static final long DEFAULT_TIMEOUT = 30000;
+  private static final int DEFAULT_MAX_IN_FLIGHT = 65536;
+
+  private static final class Request {
+    private final long id;
+    private final CompletableFuture<Object> result = new CompletableFuture<Object>();
+
+    private Request(long id) {
+      this.id = id;
+    }
+  }
+
+  private final Channel channel;
+  private final long timeout;
+  private final boolean mandatory;
+  private final String consumerTag;
+
+  private final AtomicReferenceArray<Request> pending;
+  private final int mask;
+  private final int maxInFlight;
+  private final Semaphore permits;
+  private final AtomicLong counter = new AtomicLong();
+
+  private final ReturnListener returnListener;
+  private final ShutdownListener shutdownListener;
+  private volatile boolean closed;
+
+  public RpcClient(Channel channel, IPersistentMap options) throws IOException {
+    this.channel = channel;
+    this.timeout = ((Number) options.valAt(TIMEOUT_KEYWORD, DEFAULT_TIMEOUT)).longValue();
+    this.maxInFlight = ((Number) options.valAt(MAX_IN_FLIGHT_KEYWORD, DEFAULT_MAX_IN_FLIGHT)).intValue();
+    if (timeout <= 0 || maxInFlight <= 0) {
+      throw new IllegalArgumentException("timeout and max in-flight requests must be positive");
+    }
+    this.mandatory = Util.isTruthy(options.valAt(MANDATORY_KEYWORD, true));
+
+    int n = Integer.highestOneBit(maxInFlight);
+    if (n < maxInFlight) {
+      n = n << 1;
+    }
+    this.pending = new AtomicReferenceArray<Request>(n);
+    this.mask = n - 1;
+    this.permits = new Semaphore(maxInFlight);
+
+    this.returnListener = (replyCode, replyText, exchange, routingKey, props, body) -> {
+      Request r = lookup(props.getCorrelationId());
+      if (r != null) {
+        r.result.completeExceptionally(new IOException("request to exchange '" + exchange + "' with routing key '"
+            + routingKey + "' was returned: " + replyCode + " " + replyText));
+      }
+    };
+    this.shutdownListener = this::failAll;
+    channel.addReturnListener(returnListener);
+    channel.addShutdownListener(shutdownListener);
+    // direct reply-to requires automatic acknowledgements
+    this.consumerTag = channel.basicConsume(DIRECT_REPLY_TO, true, new DefaultConsumer(channel) {
+      @Override
+      public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+        Request r = lookup(properties.getCorrelationId());
+        if (r != null) {
+          r.result.complete(LazilyPersistentVector.createOwning(new DeliveryMetadata(envelope, properties), body));
+        }
+      }
+    });
+  }
+
+  public Channel getChannel() {
+    return channel;
+  }
+
+  /**
+   * @return number of requests awaiting a reply
+   */
+  public int getPending() {
+    return maxInFlight - permits.availablePermits();
+  }
+
+  /**
+   * Publishes a request with reply-to and correlation id set.
+   *
+   * @param props request properties, the reply-to and correlation id are replaced
+   */
+  public CompletableFuture<Object> call(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body)
+      throws IOException, InterruptedException {
+    if (closed) {
+      throw new IllegalStateException("rpc client is closed");
+    }
+    if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+      CompletableFuture<Object> f = new CompletableFuture<Object>();
+      f.completeExceptionally(new TimeoutException("timed out waiting for one of the pending requests to complete"));
+      return f;
+    }
+    final Request r = register();
+    r.result.whenComplete((reply, t) -> release(r));
+    r.result.orTimeout(timeout, TimeUnit.MILLISECONDS);
+
+    AMQP.BasicProperties.Builder b = (props == null) ? new AMQP.BasicProperties.Builder() : props.builder();
+    try {
+      channel.basicPublish(exchange, routingKey, mandatory,
+          b.replyTo(DIRECT_REPLY_TO).correlationId(Long.toString(r.id, 36)).build(), body);
+    } catch (IOException | RuntimeException e) {
+      r.result.completeExceptionally(e);
+    }
+    return r.result;
+  }
+
+  /**
+   * Cancels the reply consumer and fails pending requests.
+   */
+  public void close() throws IOException {
+    closed = true;
+    channel.removeReturnListener(returnListener);
+    channel.removeShutdownListener(shutdownListener);
+    try {
+      if (channel.isOpen()) {
+        channel.basicCancel(consumerTag);
+      }
+    } finally {
+      failAll(new IllegalStateException("rpc client is closed"));
+    }
+  }
+
+  //
+  // Implementation
+  //
+
+  // a permit was acquired, so fewer than pending.length() slots are taken
+  // and probing ends at a free one
+  private Request register() {
+    for (; ; ) {
+      long id = counter.getAndIncrement();
+      Request r = new Request(id);
+      if (pending.compareAndSet((int) (id & mask), null, r)) {
+        return r;
+      }
+    }
+  }
+
+  private Request lookup(String correlationId) {
+    if (correlationId == null) {
+      return null;
+    }
+    long id;
+    try {
+      id = Long.parseLong(correlationId, 36);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    Request r = pending.get((int) (id & mask));
+    return (r != null && r.id == id) ? r : null;
+  }
+
+  private void release(Request r) {
+    if (pending.compareAndSet((int) (r.id & mask), r, null)) {
+      permits.release();
+    }
+  }
+
+  private void failAll(Throwable t) {
+    for (int i = 0; i < pending.length(); i++) {
+      Request r = pending.get(i);
+      if (r != null) {
+        r.result.completeExceptionally(t);
+      }
+    }
+  }
+}
@@ -0,0 +1,97 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.stream;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps offsets in memory-mapped files in a directory, one file per
+ * consumer name, so that storing an offset is a memory write. The operating
+ * system writes offsets to disk eventually, they survive the process crashing.
+ * With sync set to true, every store also forces the file to disk.
+ */
+public class FileOffsetStore implements OffsetStore, AutoCloseable {
+  private static final String SUFFIX = ".offset";
+  private static final int SIZE = Long.BYTES;
+
+  private final Path dir;
+  private final boolean sync;
+  private final Map<String, MappedByteBuffer> files = new ConcurrentHashMap<String, MappedByteBuffer>();
+
+  public FileOffsetStore(Path dir, boolean sync) throws IOException {
+    this.dir = Files.createDirectories(dir);
+    this.sync = sync;
+  }
+
+  public Path getDirectory() {
+    return dir;
+  }
+
+  public long load(String name) {
+    Path p = pathOf(name);
+    if (!files.containsKey(name) && !Files.exists(p)) {
+      return NONE;
+    }
+    return buffer(name).getLong(0);
+  }
+
+  public void store(String name, long offset) {
+    MappedByteBuffer b = buffer(name);
+    b.putLong(0, offset);
+    if (sync) {
+      b.force();
+    }
+  }
+
+  /**
+   * Forces all offsets to disk.
+   */
+  public void close() {
+    for (MappedByteBuffer b : files.values()) {
+      b.force();
+    }
+  }
+
+  //
+  // Implementation
+  //
+
+  private Path pathOf(String name) {
+    return dir.resolve(URLEncoder.encode(name, StandardCharsets.UTF_8) + SUFFIX);
+  }
+
+  private MappedByteBuffer buffer(String name) {
+    return files.computeIfAbsent(name, n -> {
+      Path p = pathOf(n);
+      try (FileChannel fc = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE)) {
+        boolean created = fc.size() < SIZE;
+        // the mapping stays valid after the channel is closed
+        MappedByteBuffer b = fc.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+        if (created) {
+          b.putLong(0, NONE);
+        }
+        return b;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+  }
+}
@@ -0,0 +1,30 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.stream;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps offsets in memory, e.g. to resume consumers after
+ * connection recovery without persisting offsets.
+ */
+public class MemoryOffsetStore implements OffsetStore {
+  private final Map<String, Long> offsets = new ConcurrentHashMap<String, Long>();
+
+  public long load(String name) {
+    Long o = offsets.get(name);
+    return (o == null) ? NONE : o;
+  }
+
+  public void store(String name, long offset) {
+    offsets.put(name, offset);
+  }
+}
@@ -0,0 +1,25 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.stream;
+
+/**
+ * Where {@link OffsetTracker}s keep the offsets of the last messages their
+ * stream consumers processed.
+ */
+public interface OffsetStore {
+  long NONE = -1;
+
+  /**
+   * @return the stored offset for the consumer name, or {@link #NONE}
+   */
+  long load(String name);
+
+  void store(String name, long offset);
+}
@@ -0,0 +1,179 @@
+// Copyright (c) 2011-2020 Michael S. Klishin
+//
+// The use and distribution terms for this software are covered by the
+// Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+// which can be found in the file epl-v10.html at the root of this distribution.
+// By using this software in any fashion, you are agreeing to be bound by
+// the terms of this license.
+// You must not remove this notice, or any other, from this software.
+
+package com.novemberain.langohr.stream;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the offset of the last message a stream consumer processed and
+ * checkpoints it to an {@link OffsetStore} under the consumer's name, every
+ * :checkpoint-every (default: 1) processed messages.
+ * <p/>
+ * The consumer arguments returned by {@link #consumerArguments(Map, Object)}
+ * compute x-stream-offset when they are sent: the offset after the last
+ * processed one, or the initial offset specification when nothing was
+ * processed yet. Connection recovery re-registers consumers with the
+ * arguments they were registered with, so recovered consumers resume after
+ * the last processed message instead of starting over.
+ * <p/>
+ * When messages are processed concurrently, e.g. on a worker pool, they
+ * complete out of order. Offsets handed to workers are then registered
+ * with {@link #started(long)}, in delivery order, and the tracked offset is
+ * a low-water mark: the highest processed offset, but no further than the
+ * one before the first started message that is not processed yet. Resuming
+ * after it may process some messages again, but never skips one.
+ */
+public class OffsetTracker implements AutoCloseable {
+  private static final Keyword CHECKPOINT_EVERY_KEYWORD = Keyword.intern(null, "checkpoint-every");
+  public static final String STREAM_OFFSET = "x-stream-offset";
+
+  private final OffsetStore store;
+  private final String name;
+  private final int checkpointEvery;
+
+  // the low-water mark
+  private final AtomicLong last;
+  // the highest processed offset
+  private final AtomicLong highest;
+  // offsets that were started but not processed yet
+  private final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<Long>();
+  private final AtomicLong processed = new AtomicLong();
+  // guarded by this
+  private long stored;
+
+  public OffsetTracker(OffsetStore store, String name, IPersistentMap options) {
+    this.store = store;
+    this.name = name;
+    this.checkpointEvery = ((Number) options.valAt(CHECKPOINT_EVERY_KEYWORD, 1)).intValue();
+    if (checkpointEvery <= 0) {
+      throw new IllegalArgumentException("checkpoint interval must be positive, given: " + checkpointEvery);
+    }
+    this.stored = store.load(name);
+    this.last = new AtomicLong(stored);
+    this.highest = new AtomicLong(stored);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public OffsetStore getStore() {
+    return store;
+  }
+
+  /**
+   * @return offset of the last processed message, or {@link OffsetStore#NONE}
+   */
+  public long getLastOffset() {
+    return last.get();
+  }
+
+  /**
+   * @return true if a message at the offset or after it was processed,
+   *         e.g. when a consumer is recovered with an outdated offset
+   */
+  public boolean isProcessed(long offset) {
+    return offset <= last.get();
+  }
+
+  /**
+   * Registers a message that is about to be processed concurrently with
+   * others. Must be called in offset order.
+   */
+  public void started(long offset) {
+    inFlight.add(offset);
+  }
+
+  /**
+   * Records a processed message.
+   */
+  public void processed(long offset) {
+    long h = highest.accumulateAndGet(offset, Math::max);
+    inFlight.remove(offset);
+    // read after the highest offset: anything before it that is still
+    // in flight was started before it, so it is in the set by now
+    Long first = inFlight.ceiling(Long.MIN_VALUE);
+    long mark = (first == null) ? h : Math.min(h, first - 1);
+    last.accumulateAndGet(mark, Math::max);
+    if (processed.incrementAndGet() % checkpointEvery == 0) {
+      checkpoint();
+    }
+  }
+
+  /**
+   * Stores the last processed offset unless it was stored already.
+   */
+  public synchronized void checkpoint() {
+    long o = last.get();
+    if (o > stored) {
+      store.store(name, o);
+      stored = o;
+    }
+  }
+
+  public void close() {
+    checkpoint();
+  }
+
+  /**
+   * @param spec x-stream-offset to start from when no message was processed
+   * @return the x-stream-offset to consume from
+   */
+  public Object resumeFrom(Object spec) {
+    long o = last.get();
+    return (o == OffsetStore.NONE) ? spec : (Object) (o + 1);
+  }
+
+  /**
+   * @return consumer arguments with x-stream-offset computed by {@link #resumeFrom(Object)}
+   */
+  public Map<String, Object> consumerArguments(Map<String, Object> arguments, Object spec) {
+    return new ConsumerArguments(arguments, spec);
+  }
+
+  //
+  // Implementation
+  //
+
+  private final class ConsumerArguments extends AbstractMap<String, Object> {
+    private final Map<String, Object> arguments;
+    private final Object spec;
+
+    private ConsumerArguments(Map<String, Object> arguments, Object spec) {
+      this.arguments = (arguments == null) ? new HashMap<String, Object>() : new HashMap<String, Object>(arguments);
+      this.spec = spec;
+    }
+
+    @Override
+    public Object get(Object key) {
+      return STREAM_OFFSET.equals(key) ? resumeFrom(spec) : arguments.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return STREAM_OFFSET.equals(key) || arguments.containsKey(key);
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+      Map<String, Object> m = new HashMap<String, Object>(arguments);
+      m.put(STREAM_OFFSET, resumeFrom(spec));
+      return m.entrySet();
+    }
+  }
+}
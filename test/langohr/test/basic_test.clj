@@ -58,6 +58,24 @@
                                          :headers {"see you soon" "à bientôt"}}))) "publisher"))
       (is (.await latch 3 TimeUnit/SECONDS)))))
 
+(deftest test-publishing-with-a-properties-template
+  (with-open [^Connection conn (lhc/connect)
+              channel          (lhc/create-channel conn)]
+    (let [queue    (lhq/declare-server-named channel)
+          template (lhb/properties-template {:content-type "application/json"
+                                             :persistent   true
+                                             :app-id       "langohr.tests"})]
+      (lhb/publish-with-template channel "" queue "{}" template {:message-id "m-1"})
+      (lhb/publish-with-template channel "" queue "{}" template)
+      (Thread/sleep 200)
+      (let [[m1 _] (lhb/get channel queue)
+            [m2 _] (lhb/get channel queue)]
+        (is (= "application/json" (:content-type m1) (:content-type m2)))
+        (is (= "langohr.tests" (:app-id m1) (:app-id m2)))
+        (is (:persistent? m1))
+        (is (= "m-1" (:message-id m1)))
+        (is (nil? (:message-id m2)))))))
+
 ;;
 ;; make sure that `langohr.consumers/subscribe` takes both versions for handler functions:
 ;; for example `:handle-consume-ok` as well as `:handle-consume-ok-fn`.
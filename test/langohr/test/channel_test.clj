@@ -10,6 +10,8 @@
 (ns langohr.test.channel-test
   (:require [langohr.core    :as lc]
             [langohr.channel :as lch]
+            [langohr.basic   :as lb]
+            [langohr.queue   :as lq]
             [clojure.test :refer [deftest is]])
   (:import com.rabbitmq.client.Connection))
 
@@ -47,3 +49,36 @@
       (is (lc/open? ch))
       (lch/close ch 200 "Bye-bye")
       (is (lc/closed? ch)))))
+
+(deftest test-pooled-channels-are-reused
+  (with-open [^Connection conn (lc/connect)]
+    (let [p  (lch/pool conn {:max-size 2})
+          ch (lch/with-pooled-channel [ch p] ch)]
+      (is (identical? ch (lch/with-pooled-channel [ch p] ch)))
+      (is (= 1 (.getSize p)))
+      (lc/close p)
+      (is (lc/closed? ch)))))
+
+(deftest test-channel-pool-borrow-timeout
+  (with-open [^Connection conn (lc/connect)]
+    (let [p  (lch/pool conn {:max-size 1 :borrow-timeout 50})
+          ch (lch/borrow p)]
+      (is (thrown? java.util.concurrent.TimeoutException (lch/borrow p)))
+      (lch/release p ch)
+      (lch/with-pooled-channel [ch p]
+        (is (lc/open? ch))))))
+
+(deftest test-channel-pool-evicts-channels-closed-by-soft-errors
+  (with-open [^Connection conn (lc/connect)]
+    (let [p  (lch/pool conn {:max-size 2 :confirms true})
+          ch (lch/with-pooled-channel [ch p]
+               (try
+                 (lq/declare-passive ch (str "langohr.channel-pool." (java.util.UUID/randomUUID)))
+                 (catch java.io.IOException _))
+               ch)]
+      (is (lc/closed? ch))
+      (is (zero? (.getSize p)))
+      (lch/with-pooled-channel [ch' p]
+        (is (not (identical? ch ch')))
+        (lb/publish ch' "" "langohr.channel-pool" "")
+        (is (.waitForConfirms ch' 1000))))))
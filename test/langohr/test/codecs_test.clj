@@ -0,0 +1,68 @@
+;; Copyright (c) 2011-2025 Michael S. Klishin, Alex Petrov, and the ClojureWerkz Team
+;;
+;; The use and distribution terms for this software are covered by the
+;; Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;; which can be found in the file epl-v10.html at the root of this distribution.
+;; By using this software in any fashion, you are agreeing to be bound by
+;; the terms of this license.
+;; You must not remove this notice, or any other, from this software.
+
+(ns langohr.test.codecs-test
+  (:require [langohr.core      :as lhc]
+            [langohr.queue     :as lhq]
+            [langohr.basic     :as lhb]
+            [langohr.consumers :as lhcons]
+            [langohr.codecs    :as codecs]
+            [clojure.java.io   :as io]
+            [clojure.test      :refer :all])
+  (:import com.rabbitmq.client.Connection
+           [java.util.concurrent CountDownLatch TimeUnit]))
+
+(deftest test-json-round-trip
+  (let [v {:a 1 :b ["x" "y"]}]
+    (is (= v (codecs/decode {:content-type "application/json"}
+                            (codecs/encode v "application/json"))))
+    (is (= v (codecs/decode {:content-type "application/json; charset=utf-8" :content-encoding "gzip"}
+                            (codecs/encode v "application/json" "gzip"))))))
+
+(deftest test-edn-round-trip
+  (let [v {:a #{1 2} :b [:x "y"]}]
+    (is (= v (codecs/decode {:content-type "application/edn"}
+                            (codecs/encode v "application/edn"))))
+    (is (= v (codecs/decode {:content-type "application/edn" :content-encoding "deflate"}
+                            (codecs/encode v "application/edn" "deflate"))))))
+
+(deftest test-decoding-a-large-json-payload
+  (let [body (.getBytes ^String (slurp (io/resource "payloads/200k_json_payload.json")) "UTF-8")]
+    (is (some? (codecs/decode {:content-type "application/json"} body)))))
+
+(deftest test-unknown-content-types-are-returned-as-bytes
+  (let [body (.getBytes "abc" "UTF-8")]
+    (is (identical? body (codecs/decode {:content-type "application/octet-stream"} body)))
+    (is (= "abc" (String. ^bytes (codecs/decode {:content-encoding "gzip"}
+                                                (codecs/encode body nil "gzip"))
+                          "UTF-8")))))
+
+(deftest test-custom-content-type
+  (codecs/register-content-type! "application/x-langohr-test"
+                                 {:encode (fn [v ^java.io.OutputStream out]
+                                            (.write out (.getBytes (str (* 2 v)) "UTF-8")))
+                                  :decode (fn [^java.io.InputStream in]
+                                            (Long/parseLong (slurp in)))})
+  (is (= 42 (codecs/decode {:content-type "application/x-langohr-test"}
+                           (codecs/encode 21 "application/x-langohr-test")))))
+
+(deftest test-publishing-and-consuming-with-codecs
+  (with-open [^Connection conn (lhc/connect)
+              ch               (lhc/create-channel conn)]
+    (let [q     (lhq/declare-server-named ch)
+          v     {:id 1 :tags ["a" "b"]}
+          latch (CountDownLatch. 1)
+          got   (atom nil)]
+      (lhcons/subscribe ch q (fn [_ _ body]
+                               (reset! got body)
+                               (.countDown latch))
+                        {:auto-ack true :decode true})
+      (lhb/publish ch "" q v {:encode true :content-type "application/json" :content-encoding "gzip"})
+      (is (.await latch 700 TimeUnit/MILLISECONDS))
+      (is (= v @got)))))
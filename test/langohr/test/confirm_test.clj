@@ -56,3 +56,13 @@
       (lhb/publish ch x q body {:content-type "application-json"})
       (cfm/wait-for-confirms ch 200)
       (is true))))
+
+(deftest test-publish-async
+  (with-open [conn (lhc/connect)
+              ch   (lhc/create-channel conn)]
+    (let [q   (lhq/declare-server-named ch {:exclusive true})
+          t   (cfm/tracker ch {:max-in-flight 16})
+          fs  (doall (for [i (range 100)]
+                       (cfm/publish-async t "" q (str i))))]
+      (is (every? true? (map #(.get ^java.util.concurrent.CompletableFuture % 1 TimeUnit/SECONDS) fs)))
+      (is (zero? (cfm/in-flight t))))))
@@ -17,6 +17,7 @@
             [langohr.shutdown  :as lsh]
             [clojure.test      :refer :all])
   (:import [com.rabbitmq.client Connection Consumer]
+           com.novemberain.langohr.DeliveryMetadata
            [java.util.concurrent TimeUnit CountDownLatch]))
 
 
@@ -106,6 +107,203 @@
         (lhb/publish channel exchange queue payload))
       (is (.await latch 700 TimeUnit/MILLISECONDS)))))
 
+(deftest t-delivery-handler-with-lazy-metadata
+  (with-open [^Connection conn (lhc/connect)
+              ch               (lch/open conn)]
+    (let [q     (lhq/declare-server-named ch)
+          latch (CountDownLatch. 1)
+          m     (atom nil)]
+      (lhcons/subscribe ch q (fn [_ metadata _]
+                               (reset! m metadata)
+                               (.countDown latch))
+                        {:auto-ack true})
+      (lhb/publish ch "" q "payload" {:content-type "text/plain" :persistent true :headers {"k" "v"}})
+      (is (.await latch 700 TimeUnit/MILLISECONDS))
+      (let [metadata @m]
+        (is (instance? DeliveryMetadata metadata))
+        (is (= 1 (:delivery-tag metadata)))
+        (is (= q (:routing-key metadata)))
+        (is (= "text/plain" (:content-type metadata)))
+        (is (:persistent? metadata))
+        (is (= "v" (str (get-in metadata [:headers "k"]))))
+        (is (nil? (:unknown-key metadata)))
+        (is (= 19 (count metadata)))
+        (is (= 42 (:extra (assoc metadata :extra 42))))))))
+
+(deftest t-delivery-handler-with-eager-metadata
+  (with-open [^Connection conn (lhc/connect)
+              ch               (lch/open conn)]
+    (let [q     (lhq/declare-server-named ch)
+          latch (CountDownLatch. 1)
+          m     (atom nil)]
+      (lhcons/subscribe ch q (fn [_ metadata _]
+                               (reset! m metadata)
+                               (.countDown latch))
+                        {:auto-ack true :eager-metadata? true})
+      (lhb/publish ch "" q "payload" {:content-type "text/plain"})
+      (is (.await latch 700 TimeUnit/MILLISECONDS))
+      (let [metadata @m]
+        (is (not (instance? DeliveryMetadata metadata)))
+        (is (map? metadata))
+        (is (= "text/plain" (:content-type metadata)))))))
+
+(deftest t-batch-delivery-handler
+  (with-open [^Connection conn (lhc/connect)
+              ch               (lch/open conn)]
+    (let [q       (lhq/declare-server-named ch)
+          n       25
+          latch   (CountDownLatch. n)
+          batches (atom [])]
+      (lhcons/subscribe ch q (fn [_ batch]
+                               (swap! batches conj (count batch))
+                               (dotimes [_ (count batch)]
+                                 (.countDown latch)))
+                        {:batch-size 10 :batch-timeout 100})
+      (dotimes [i n]
+        (lhb/publish ch "" q (str i)))
+      (is (.await latch 2 TimeUnit/SECONDS))
+      (is (= n (reduce + @batches)))
+      (is (every? #(<= % 10) @batches)))))
+
+(deftest t-batch-delivery-handler-is-capped-at-prefetch
+  (with-open [^Connection conn (lhc/connect)
+              ch               (lch/open conn)]
+    (let [q       (lhq/declare-server-named ch)
+          n       12
+          latch   (CountDownLatch. n)
+          batches (atom [])]
+      (lhcons/subscribe ch q (fn [_ batch]
+                               (swap! batches conj (count batch))
+                               (dotimes [_ (count batch)]
+                                 (.countDown latch)))
+                        {:batch-size 100 :batch-timeout 5000 :prefetch 4})
+      (dotimes [i n]
+        (lhb/publish ch "" q (str i)))
+      (is (.await latch 2 TimeUnit/SECONDS))
+      (is (= [4 4 4] @batches)))))
+
+(deftest t-timed-out-batches-are-not-handled-on-the-timer-thread
+  (with-open [^Connection conn (lhc/connect)
+              ch               (lch/open conn)]
+    (let [q       (lhq/declare-server-named ch)
+          latch   (CountDownLatch. 1)
+          threads (atom [])]
+      (lhcons/subscribe ch q (fn [_ batch]
+                               (swap! threads conj (.getName (Thread/currentThread)))
+                               (.countDown latch))
+                        {:batch-size 10 :batch-timeout 50})
+      (lhb/publish ch "" q "a message")
+      (is (.await latch 2 TimeUnit/SECONDS))
+      (is (not-any? #{"langohr-batch-consumer-timer"} @threads)))))
+
+(deftest t-delivery-handler-on-a-worker-pool
+  (with-open [^Connection conn (lhc/connect)
+              ch               (lch/open conn)]
+    (let [q       (lhq/declare-server-named ch)
+          n       100
+          latch   (CountDownLatch. n)
+          threads (atom #{})]
+      (lhcons/subscribe ch q (fn [ch {:keys [delivery-tag]} _]
+                               (Thread/sleep 10)
+                               (swap! threads conj (.getName (Thread/currentThread)))
+                               (lhb/ack ch delivery-tag)
+                               (.countDown latch))
+                        {:worker-threads 4})
+      (dotimes [i n]
+        (lhb/publish ch "" q (str i)))
+      (is (.await latch 2 TimeUnit/SECONDS))
+      (is (< 1 (count @threads))))))
+
+(deftest t-delivery-handler-on-key-ordered-worker-lanes
+  (with-open [^Connection conn (lhc/connect)
+              ch               (lch/open conn)]
+    (let [x     "amq.direct"
+          q     (lhq/declare-server-named ch)
+          n     200
+          latch (CountDownLatch. n)
+          seen  (atom {})]
+      (doseq [k ["a" "b" "c" "d"]]
+        (lhq/bind ch q x {:routing-key k}))
+      (lhcons/subscribe ch q (fn [_ {:keys [routing-key]} ^bytes body]
+                               (swap! seen update routing-key (fnil conj []) (Long/parseLong (String. body "UTF-8")))
+                               (.countDown latch))
+                        {:auto-ack true :worker-threads 4 :order-by :routing-key})
+      (dotimes [i n]
+        (lhb/publish ch x (nth ["a" "b" "c" "d"] (mod i 4)) (str i)))
+      (is (.await latch 2 TimeUnit/SECONDS))
+      (doseq [[_ xs] @seen]
+        (is (= xs (sort xs)))))))
+
+(deftest t-delivery-handler-on-virtual-threads
+  (when (lhc/virtual-threads-supported?)
+    (with-open [^Connection conn (lhc/connect)
+                ch               (lch/open conn)]
+      (let [q        (lhq/declare-server-named ch)
+            n        100
+            prefetch 10
+            latch    (CountDownLatch. n)
+            active   (atom 0)
+            peak     (atom 0)]
+        (lhcons/subscribe ch q (fn [ch {:keys [delivery-tag]} _]
+                                 (swap! peak max (swap! active inc))
+                                 (Thread/sleep 10)
+                                 (swap! active dec)
+                                 (lhb/ack ch delivery-tag)
+                                 (.countDown latch))
+                          {:virtual-threads true :prefetch prefetch})
+        (dotimes [i n]
+          (lhb/publish ch "" q (str i)))
+        (is (.await latch 2 TimeUnit/SECONDS))
+        (is (< 1 @peak))
+        (is (<= @peak prefetch))))))
+
+(deftest t-adaptive-prefetch
+  (with-open [^Connection conn (lhc/connect)
+              ch               (lch/open conn)]
+    (let [q     (lhq/declare-server-named ch)
+          n     200
+          latch (CountDownLatch. n)
+          tuner (lhcons/adaptive-prefetch {:min 2 :max 100 :initial 50 :interval 100})]
+      (lhcons/subscribe ch q (fn [ch {:keys [delivery-tag]} _]
+                               (Thread/sleep 10)
+                               (lhb/ack ch delivery-tag)
+                               (.countDown latch))
+                        {:adaptive-prefetch tuner})
+      (dotimes [i n]
+        (lhb/publish ch "" q (str i)))
+      (is (.await latch 5 TimeUnit/SECONDS))
+      (let [{:keys [prefetch service-time round-trip capacity adjustments]} (lhcons/prefetch-stats tuner)]
+        (is (= 1 capacity))
+        (is (<= 10.0 service-time))
+        (is (pos? round-trip))
+        ;; a slow consumer on a local connection needs only a few deliveries in flight
+        (is (< prefetch 50))
+        (is (pos? adjustments))))))
+
+(deftest t-adaptive-prefetch-with-a-quorum-queue
+  (with-open [^Connection conn (lhc/connect)
+              ch               (lch/open conn)]
+    (let [q     "langohr.test.consumers.adaptive-prefetch.qq"
+          _     (lhq/declare ch q {:durable true :auto-delete false :exclusive false
+                                   :arguments {"x-queue-type" "quorum"}})
+          n     100
+          latch (CountDownLatch. n)
+          tuner (lhcons/adaptive-prefetch {:min 2 :max 100 :initial 50 :interval 100})]
+      (lhcons/subscribe ch q (fn [ch {:keys [delivery-tag]} _]
+                               (Thread/sleep 10)
+                               (lhb/ack ch delivery-tag)
+                               (.countDown latch))
+                        {:adaptive-prefetch tuner})
+      (dotimes [i n]
+        (lhb/publish ch "" q (str i)))
+      (is (.await latch 5 TimeUnit/SECONDS))
+      (let [{:keys [consumer-tag adjustments]} (lhcons/prefetch-stats tuner)]
+        (is (pos? adjustments))
+        ;; re-subscribing leaves a single consumer behind
+        (is (= 1 (lhq/consumer-count ch q)))
+        (lhb/cancel ch consumer-tag))
+      (lhq/delete ch q))))
+
 (deftest t-shutdown-notification-handler
   (with-open [^Connection conn (lhc/connect)]
     (let [ch       (lch/open conn)
@@ -65,6 +65,13 @@
     (with-open [conn (lc/connect {:thread-factory tf})]
       (is (lc/open? conn)))))
 
+(deftest test-connection-with-virtual-threads
+  (if (lc/virtual-threads-supported?)
+    (with-open [conn (lc/connect {:virtual-threads true})]
+      (is (lc/open? conn)))
+    (is (thrown? UnsupportedOperationException
+                 (lc/connect {:virtual-threads true})))))
+
 (deftest test-connection-with-overriden-channel-max
   (with-open [conn (lc/connect {:requested-channel-max 16})]
     (is (lc/open? conn))
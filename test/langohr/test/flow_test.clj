@@ -0,0 +1,71 @@
+;; Copyright (c) 2011-2025 Michael S. Klishin, Alex Petrov, and the ClojureWerkz Team
+;;
+;; The use and distribution terms for this software are covered by the
+;; Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;; which can be found in the file epl-v10.html at the root of this distribution.
+;; By using this software in any fashion, you are agreeing to be bound by
+;; the terms of this license.
+;; You must not remove this notice, or any other, from this software.
+
+(ns langohr.test.flow-test
+  (:require [langohr.core    :as lhc]
+            [langohr.channel :as lch]
+            [langohr.basic   :as lhb]
+            [langohr.queue   :as lhq]
+            [langohr.confirm :as cfm]
+            [langohr.flow    :as fl]
+            [clojure.test    :refer :all])
+  (:import [java.util.concurrent Flow$Subscriber Flow$Subscription ArrayBlockingQueue]))
+
+(deftest test-queue-publisher-delivers-on-demand
+  (with-open [conn (lhc/connect)
+              ch   (lch/open conn)]
+    (let [q     (lhq/declare-server-named ch {:exclusive true})
+          _     (dotimes [i 10]
+                  (lhb/publish ch "" q (str i)))
+          p     (fl/publisher ch q {:prefetch 4})
+          sub   (promise)
+          got   (ArrayBlockingQueue. 10)]
+      (.subscribe p (reify Flow$Subscriber
+                      (onSubscribe [_ s] (deliver sub s))
+                      (onNext [_ [_ ^bytes body]] (.offer got (String. body "UTF-8")))
+                      (onError [_ _])
+                      (onComplete [_])))
+      (Thread/sleep 200)
+      (is (zero? (.size got)))
+      (.request ^Flow$Subscription @sub 3)
+      (Thread/sleep 200)
+      (is (= 3 (.size got)))
+      (.request ^Flow$Subscription @sub 7)
+      (Thread/sleep 200)
+      (is (= (map str (range 10)) (vec got)))
+      (.cancel ^Flow$Subscription @sub)
+      (is (zero? (lhq/message-count ch q))))))
+
+(deftest test-pipe-with-a-bounded-buffer
+  (with-open [conn (lhc/connect)
+              ch   (lch/open conn)]
+    (let [q     (lhq/declare-server-named ch {:exclusive true})
+          buf   (ArrayBlockingQueue. 2)]
+      (dotimes [i 10]
+        (lhb/publish ch "" q (str i)))
+      (fl/pipe (fl/publisher ch q {:prefetch 1})
+               (fn [v cb] (cb (.offer buf v))))
+      (Thread/sleep 200)
+      (is (= 2 (.size buf))))))
+
+(deftest test-confirming-subscriber
+  (with-open [conn (lhc/connect)
+              src  (lch/open conn)
+              dst  (lch/open conn)]
+    (let [from (lhq/declare-server-named src {:exclusive true})
+          to   (lhq/declare-server-named dst {:exclusive true})
+          t    (cfm/tracker dst {:max-in-flight 8})
+          s    (fl/subscriber t "" to {:publish-fn (fn [t [_ body]]
+                                                     (cfm/publish-async t "" to body))})]
+      (dotimes [i 100]
+        (lhb/publish src "" from (str i)))
+      (.subscribe (fl/publisher src from {:prefetch 16}) s)
+      (Thread/sleep 500)
+      (is (= 100 (lhq/message-count dst to)))
+      (is (zero? (.getOutstanding s))))))
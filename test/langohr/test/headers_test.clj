@@ -0,0 +1,82 @@
+;; Copyright (c) 2011-2025 Michael S. Klishin, Alex Petrov, and the ClojureWerkz Team
+;;
+;; The use and distribution terms for this software are covered by the
+;; Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;; which can be found in the file epl-v10.html at the root of this distribution.
+;; By using this software in any fashion, you are agreeing to be bound by
+;; the terms of this license.
+;; You must not remove this notice, or any other, from this software.
+
+(ns langohr.test.headers-test
+  (:require [langohr.core      :as lc]
+            [langohr.basic     :as lb]
+            [langohr.queue     :as lq]
+            [langohr.consumers :as lcons]
+            [langohr.headers   :as lh]
+            [clojure.test      :refer :all])
+  (:import [com.rabbitmq.client.impl LongStringHelper]
+           com.rabbitmq.client.LongString
+           com.novemberain.langohr.HeadersView
+           [java.util HashMap Date]
+           [java.util.concurrent CountDownLatch TimeUnit]))
+
+(defn- ls
+  [^String s]
+  (LongStringHelper/asLongString s))
+
+(deftest test-headers-view
+  (let [raw (doto (HashMap.)
+              (.put "tenant" (ls "acme"))
+              (.put "attempts" (ls "3"))
+              (.put "retry" (ls "TRUE"))
+              (.put "priority" (int 5))
+              (.put "sent-at" (Date. 1000))
+              (.put "nested" (doto (HashMap.) (.put "k" (ls "v"))))
+              (.put "tags" [(ls "a") (ls "b")]))
+        h   (lh/view raw)]
+    (is (= "acme" (get h "tenant")))
+    (is (identical? (get h "tenant") (get (lh/view raw) "tenant")))
+    (is (= "v" (get-in h ["nested" "k"])))
+    (is (= ["a" "b"] (get h "tags")))
+    (is (nil? (get h "missing")))
+    (is (= 3 (lh/get-long h "attempts" 0)))
+    (is (= 5 (lh/get-long h "priority" 0)))
+    (is (= -1 (lh/get-long h "missing" -1)))
+    (is (true? (lh/get-boolean h "retry" false)))
+    (is (false? (lh/get-boolean nil "retry" false)))
+    (is (= 1000 (lh/get-timestamp h "sent-at" 0)))
+    (is (= "acme" (lh/get-string h "tenant")))
+    (is (= {"tenant" "acme" "attempts" "3"}
+           (select-keys (into {} h) ["tenant" "attempts"])))))
+
+(deftest test-encoding-headers
+  (let [props (lb/build-properties {:headers {:tenant :acme
+                                              "attempts" 3
+                                              :tags [:a "b"]
+                                              :nested {:k :v}}})]
+    (is (= {"tenant" "acme" "attempts" 3 "tags" ["a" "b"] "nested" {"k" "v"}}
+           (into {} (.getHeaders props))))))
+
+(deftest test-publishing-with-keyword-headers
+  (with-open [conn (lc/connect)]
+    (let [ch    (lc/create-channel conn)
+          q     (lq/declare-server-named ch)
+          latch (CountDownLatch. 1)
+          seen  (atom nil)]
+      (lcons/subscribe ch q (fn [_ {:keys [headers]} _]
+                              (reset! seen [(get headers "tenant")
+                                            (lh/get-long headers "attempts" 0)])
+                              (.countDown latch))
+                       {:auto-ack true})
+      (lb/publish ch "" q "msg" {:headers {:tenant "acme" :attempts 2}})
+      (is (.await latch 5 TimeUnit/SECONDS))
+      (is (= ["acme" 2] @seen)))))
+
+(deftest test-eager-metadata-keeps-client-headers
+  (with-open [conn (lc/connect)]
+    (let [ch (lc/create-channel conn)
+          q  (lq/declare-server-named ch)]
+      (lb/publish ch "" q "msg" {:headers {"tenant" "acme"}})
+      (let [[{:keys [headers]} _] (lb/get ch q)]
+        (is (not (instance? HeadersView headers)))
+        (is (instance? LongString (get headers "tenant")))))))
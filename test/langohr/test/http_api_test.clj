@@ -122,6 +122,58 @@
   (let [r (hc/list-queues "/")]
     (is (coll? r))))
 
+(deftest ^{:http true} test-stream-queues
+  (with-open [conn (rmq/connect)]
+    (let [ch (lch/open conn)
+          qs (set (for [i (range 12)]
+                    (:queue (lq/declare ch (str "langohr.http.stream." i) {:exclusive true}))))]
+      (await-event-propagation)
+      (let [xs (into [] (filter #(contains? qs (:name %)))
+                     (hc/stream-queues @hc/GLOBAL-SERVER "/" {:columns [:name :messages] :page-size 5}))]
+        (is (= qs (set (map :name xs))))
+        (is (every? #(= #{:name :messages} (set (keys %))) xs)))
+      (is (= (set (map :name (hc/list-queues "/")))
+             (set (map :name (hc/stream-queues "/"))))))))
+
+(deftest ^{:http true} test-list-queues-async
+  (let [vhosts (map :name (hc/list-vhosts))
+        fs     (mapv hc/list-queues-async vhosts)]
+    (is (= (set (mapcat hc/list-queues vhosts))
+           (set (mapcat deref fs))))))
+
+(deftest ^{:http true} test-cached-get-queue
+  (let [s  "langohr.http.cached-queue"
+        srv @hc/GLOBAL-SERVER
+        c  (hc/response-cache {:ttl 60000})
+        _  (hc/declare-queue srv "/" s {:durable false :auto_delete false :arguments {}} {:cache c})
+        _  (await-event-propagation)
+        fs (doall (repeatedly 10 #(future (hc/get-queue srv "/" s {:cache c}))))]
+    (is (every? #(= s (:name (deref %))) fs))
+    (let [{:keys [misses coalesced hits size]} (hc/cache-stats c)]
+      (is (= 1 size))
+      (is (= 10 (+ hits misses)))
+      (is (= (- misses coalesced) 1)))
+    (is (= s (:name (hc/get-queue srv "/" s {:cache c}))))
+    ;; deleting the queue drops cached queue responses
+    (hc/delete-queue srv "/" s {:cache c})
+    (is (zero? (:size (hc/cache-stats c))))))
+
+(deftest ^{:http true} test-cached-error-responses
+  (let [s   "langohr.http.cached-missing-queue"
+        srv @hc/GLOBAL-SERVER
+        c   (hc/response-cache {:ttl 60000})]
+    ;; a 404 is returned but not cached
+    (is (not= s (:name (hc/get-queue srv "/" s {:cache c}))))
+    (is (zero? (:size (hc/cache-stats c))))
+    (is (= 1 (:failures (hc/cache-stats c))))
+    (hc/declare-queue srv "/" s {:durable false :auto_delete false :arguments {}})
+    (await-event-propagation)
+    (is (= s (:name (hc/get-queue srv "/" s {:cache c}))))
+    ;; a wrong password is not served the response cached for the user
+    (is (not= s (:name (hc/get-queue (assoc srv :password "wrong") "/" s {:cache c}))))
+    (is (= 1 (:size (hc/cache-stats c))))
+    (hc/delete-queue srv "/" s)))
+
 (deftest ^{:http true} test-declare-and-delete-queue
   (let [s  "langohr.http.queue"
         r1 (hc/declare-queue "/" s {:durable false :auto_delete true :arguments {}})
@@ -0,0 +1,95 @@
+;; Copyright (c) 2011-2025 Michael S. Klishin, Alex Petrov, and the ClojureWerkz Team
+;;
+;; The use and distribution terms for this software are covered by the
+;; Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;; which can be found in the file epl-v10.html at the root of this distribution.
+;; By using this software in any fashion, you are agreeing to be bound by
+;; the terms of this license.
+;; You must not remove this notice, or any other, from this software.
+
+(ns langohr.test.metrics-test
+  (:require [langohr.core      :as lc]
+            [langohr.channel   :as lch]
+            [langohr.basic     :as lb]
+            [langohr.queue     :as lq]
+            [langohr.consumers :as lcons]
+            [langohr.confirm   :as lcf]
+            [langohr.metrics   :as metrics]
+            [clojure.test      :refer :all])
+  (:import [com.novemberain.langohr.metrics Histogram]
+           [java.util.concurrent CountDownLatch TimeUnit]))
+
+(deftest test-histogram-percentiles
+  (let [h (Histogram.)]
+    (doseq [v (range 1 1001)]
+      (.record h (* 1000 v)))
+    (let [{:keys [count mean max p50 p99 p999]} (.snapshot h false)]
+      (is (= 1000 count))
+      (is (= 500500.0 mean))
+      (is (= 1000000 max))
+      (is (<= 500000 p50 (* 1.0625 500000)))
+      (is (<= 990000 p99 (* 1.0625 990000)))
+      (is (<= 999000 p999 1000000)))
+    (is (= 1000 (:count (.snapshot h true))))
+    (is (= 0 (:count (.snapshot h false))))))
+
+(deftest test-registry-snapshots
+  (let [reg (metrics/registry)
+        cm  (.consumer reg "consumer-1")
+        pm  (.publisher reg "events")]
+    (dotimes [_ 3] (.delivered cm))
+    (.handled cm 1000 false)
+    (.handled cm 2000 true)
+    (.published pm)
+    (.confirmed pm 5000 true)
+    (let [{:keys [consumers publishers]} (metrics/snapshot reg {:reset? true})]
+      (is (= 3 (get-in consumers ["consumer-1" :delivered])))
+      (is (= 1 (get-in consumers ["consumer-1" :failed])))
+      (is (= 2 (get-in consumers ["consumer-1" :handler-latency :count])))
+      (is (= 1 (get-in publishers ["events" :acked])))
+      (is (= 5000 (get-in publishers ["events" :confirm-latency :max]))))
+    (is (= 0 (get-in (metrics/snapshot reg) [:consumers "consumer-1" :delivered])))
+    (metrics/remove-consumer reg "consumer-1")
+    (is (empty? (:consumers (metrics/snapshot reg))))))
+
+(deftest test-reporter
+  (let [reg     (metrics/registry)
+        latch   (CountDownLatch. 2)
+        reports (atom [])]
+    (with-open [_ (metrics/reporter reg (fn [s]
+                                          (swap! reports conj s)
+                                          (.countDown latch))
+                                    {:interval 20})]
+      (.published (.publisher reg "events"))
+      (is (.await latch 1 TimeUnit/SECONDS)))
+    (is (= 1 (get-in (first @reports) [:publishers "events" :published])))))
+
+(deftest test-consumer-and-confirm-metrics
+  (with-open [conn (lc/connect)]
+    (let [ch    (lch/open conn)
+          reg   (metrics/registry)
+          q     (lq/declare-server-named ch)
+          latch (CountDownLatch. 10)
+          tag   (lcons/subscribe ch q (fn [_ _ _] (.countDown latch))
+                                 {:auto-ack true :metrics reg})
+          t     (lcf/tracker (lch/open conn) {:metrics reg})]
+      (dotimes [_ 10]
+        @(lcf/publish-async t "" q "msg"))
+      (is (.await latch 5 TimeUnit/SECONDS))
+      (Thread/sleep 50)
+      (let [{:keys [consumers publishers]} (metrics/snapshot reg)]
+        (is (= 10 (get-in consumers [tag :delivered])))
+        (is (= 10 (get-in consumers [tag :handler-latency :count])))
+        (is (= 10 (get-in publishers ["" :published])))
+        (is (= 10 (get-in publishers ["" :acked])))
+        (is (= 10 (get-in publishers ["" :confirm-latency :count])))))))
+
+(deftest test-removed-publishers-are-not-added-back
+  (with-open [conn (lc/connect)]
+    (let [reg (metrics/registry)
+          q   (lq/declare-server-named (lch/open conn))
+          t   (lcf/tracker (lch/open conn) {:metrics reg})]
+      @(lcf/publish-async t "" q "msg")
+      (metrics/remove-publisher reg "")
+      @(lcf/publish-async t "" q "msg")
+      (is (empty? (:publishers (metrics/snapshot reg)))))))
@@ -0,0 +1,65 @@
+;; Copyright (c) 2011-2025 Michael S. Klishin, Alex Petrov, and the ClojureWerkz Team
+;;
+;; The use and distribution terms for this software are covered by the
+;; Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;; which can be found in the file epl-v10.html at the root of this distribution.
+;; By using this software in any fashion, you are agreeing to be bound by
+;; the terms of this license.
+;; You must not remove this notice, or any other, from this software.
+
+
+(ns langohr.test.outbox-test
+  (:require [langohr.core   :as lhc]
+            [langohr.queue  :as lhq]
+            [langohr.outbox :as lo]
+            [clojure.test   :refer :all])
+  (:import [com.rabbitmq.client Connection]
+           java.io.IOException))
+
+(defn- tmp-dir
+  []
+  (str (System/getProperty "java.io.tmpdir") "/langohr-outbox-" (System/nanoTime)))
+
+(deftest test-publish-through-an-outbox
+  (with-open [^Connection conn (lhc/connect)]
+    (let [ch  (lhc/create-channel conn)
+          q   (:queue (lhq/declare ch "" {:exclusive true}))
+          ob  (lo/outbox conn (tmp-dir))
+          n   1000]
+      (dotimes [i n]
+        (lo/publish ob "" q (str i) {:content-type "text/plain"}))
+      (is (lo/await-drained ob 5000))
+      (is (lo/drained? ob))
+      (is (= n (:confirmed (lo/stats ob))))
+      (Thread/sleep 200)
+      (is (= n (lhq/message-count ch q)))
+      (lo/close ob))))
+
+(deftest test-outbox-publishes-unconfirmed-messages-after-restart
+  (with-open [^Connection conn (lhc/connect)]
+    (let [ch  (lhc/create-channel conn)
+          q   (:queue (lhq/declare ch "" {:exclusive true}))
+          dir (tmp-dir)
+          n   100]
+      ;; messages appended while the channel is closed are not published
+      (let [ob (lo/outbox conn dir {:segment-size 4096})]
+        (.close (.getChannel (.getConfirmTracker ob)))
+        (dotimes [i n]
+          (lo/publish ob "" q (str i)))
+        (is (not (lo/drained? ob)))
+        (lo/close ob))
+      (let [ob (lo/outbox conn dir {:segment-size 4096})]
+        (is (lo/await-drained ob 5000))
+        (is (= 1 (:segments (lo/stats ob))))
+        (Thread/sleep 200)
+        (is (= n (lhq/message-count ch q)))
+        (lo/close ob)))))
+
+(deftest test-outbox-directory-can-only-be-opened-once
+  (with-open [^Connection conn (lhc/connect)]
+    (let [dir (tmp-dir)
+          ob  (lo/outbox conn dir)]
+      (is (thrown? IOException (lo/outbox conn dir)))
+      (lo/close ob)
+      ;; the lock is released on close
+      (lo/close (lo/outbox conn dir)))))
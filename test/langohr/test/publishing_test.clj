@@ -14,7 +14,8 @@
             [langohr.basic     :as lhb]
             [clojure.java.io   :as io]
             [clojure.test      :refer :all])
-  (:import com.rabbitmq.client.Connection))
+  (:import com.rabbitmq.client.Connection
+           java.nio.ByteBuffer))
 
 ;;
 ;; Tries to reproduce various edge cases around basic.publish
@@ -37,3 +38,39 @@
       (let [[_ fetched] (lhb/get ch q)]
         (is fetched)
         (is (= (count body) (count fetched)))))))
+
+(deftest test-publishing-byte-buffers-and-slices
+  (with-open [^Connection conn (lhc/connect)
+              ch (lhc/create-channel conn)]
+    (let [q     (lhq/declare-server-named ch {:exclusive true})
+          body  (resource-as-bytes "payloads/200k_json_payload.json")
+          bb    (doto (ByteBuffer/allocateDirect 16)
+                  (.put (.getBytes "direct" "UTF-8"))
+                  (.flip))]
+      (lhb/publish ch "" q (ByteBuffer/wrap body))
+      (lhb/publish ch "" q bb)
+      (lhb/publish-slice ch "" q body 10 100)
+      (lhb/publish-encoded ch "" q {:a 1} (fn [v ^java.io.OutputStream out]
+                                            (with-open [w (io/writer out)]
+                                              (.write w (pr-str v)))))
+      (Thread/sleep 200)
+      (let [[_ b1] (lhb/get ch q)
+            [_ b2] (lhb/get ch q)
+            [_ b3] (lhb/get ch q)
+            [_ b4] (lhb/get ch q)]
+        (is (= (count body) (count b1)))
+        (is (= "direct" (String. ^bytes b2 "UTF-8")))
+        (is (= (seq (java.util.Arrays/copyOfRange ^bytes body 10 110)) (seq b3)))
+        (is (= "{:a 1}" (String. ^bytes b4 "UTF-8")))))))
+
+(deftest test-pipelined-publishing
+  (with-open [^Connection conn (lhc/connect)
+              ch (lhc/create-channel conn)]
+    (let [q  (lhq/declare-server-named ch {:exclusive true})
+          n  1000
+          fs (with-open [p (lhb/pipelined-publisher (lhc/create-channel conn) {:confirms true :batch-size 50})]
+               (doall (pmap (fn [i]
+                              (lhb/publish-pipelined p "" q (str i) {:content-type "text/plain"}))
+                            (range n))))]
+      (is (every? true? (map #(.get ^java.util.concurrent.CompletableFuture % 5 java.util.concurrent.TimeUnit/SECONDS) fs)))
+      (is (= n (lhq/message-count ch q))))))
@@ -12,8 +12,10 @@
   (:require [langohr.core  :as lhc]
             [langohr.queue :as lhq]
             [langohr.basic :as lhb]
+            [langohr.channel :as lch]
             [clojure.test  :refer :all])
   (:import [com.rabbitmq.client Connection Channel AMQP AMQP$Queue$DeclareOk AMQP$Queue$BindOk AMQP$Queue$UnbindOk]
+           com.novemberain.langohr.queue.StatusPoller
            java.io.IOException))
 
 ;;
@@ -181,3 +183,41 @@
       (is (= n (:message-count (lhq/status channel queue))))
       (lhq/purge channel queue)
       (is (= 0 (:message-count (lhq/status channel queue)))))))
+
+
+;;
+;; Statuses of many queues
+;;
+
+(deftest test-statuses-of-many-queues
+  (with-open [^Connection conn (lhc/connect)]
+    (let [channel (lhc/create-channel conn)
+          pool    (lch/pool conn {:max-size 4})
+          queues  (vec (for [i (range 50)]
+                         (:queue (lhq/declare channel "" {:exclusive true}))))
+          missing "langohr.tests2.queues.does-not-exist"]
+      (lhb/publish channel "" (first queues) "Hi")
+      (Thread/sleep 200)
+      (let [m (lhq/statuses pool (conj queues missing))]
+        (is (= 51 (count m)))
+        (is (= [1 0] (m (first queues))))
+        (is (= [0 0] (m (last queues))))
+        (is (contains? m missing))
+        (is (nil? (m missing))))
+      ;; the channel closed by the missing queue was replaced
+      (is (= {(second queues) [0 0]} (lhq/statuses pool [(second queues)])))
+      (lhc/close pool))))
+
+(deftest test-poll-statuses
+  (with-open [^Connection conn (lhc/connect)]
+    (let [channel (lhc/create-channel conn)
+          pool    (lch/pool conn)
+          q       (:queue (lhq/declare channel "" {:exclusive true}))
+          p       (promise)
+          poller  (lhq/poll-statuses pool [q] #(deliver p %) {:interval 100})]
+      (try
+        (is (= {q [0 0]} (deref p 5000 nil)))
+        (is (= 1 (.size (.getLatest ^StatusPoller poller))))
+        (finally
+          (lhc/close poller)
+          (lhc/close pool))))))
@@ -18,10 +18,14 @@
             [langohr.consumers :as lc]
             [langohr.confirm   :as lcnf]
             [langohr.shutdown  :as lsh]
+            [langohr.flow      :as fl]
+            [langohr.topology  :as topology]
             [clojure.test :refer [deftest is]]
             [langohr.http      :as mgmt])
-  (:import [java.util.concurrent CountDownLatch
-            TimeUnit]
+  (:import [java.util.concurrent CountDownLatch TimeoutException
+            TimeUnit Flow$Subscriber Flow$Subscription]
+           com.rabbitmq.client.AlreadyClosedException
+           com.novemberain.langohr.basic.OutboundBuffer
            java.util.UUID))
 
 ;;
@@ -62,6 +66,11 @@
   (Thread/sleep 100)
   (is (not (lq/empty? ch q))))
 
+(defn await-paused
+  [^OutboundBuffer buf]
+  (while (not (.isPaused buf))
+    (Thread/sleep 10)))
+
 (defn await-on
   ([^CountDownLatch latch]
      (is (.await latch 3 TimeUnit/SECONDS)))
@@ -545,3 +554,193 @@
 (deftest test-default-topology-recovery-value
   (with-open [conn (rmq/connect {:host "localhost"})]
     (is (= true (rmq/automatic-topology-recovery-enabled? conn)))))
+
+(deftest test-parallel-topology-recovery
+  (with-open [conn (rmq/connect {:automatically-recover true
+                                 :automatically-recover-topology true
+                                 :topology-recovery-channels 4
+                                 :topology-recovery-batch-size 16
+                                 :network-recovery-delay recovery-delay})]
+    (let [ch     (lch/open conn)
+          x      "langohr.test.recovery.parallel"
+          qs     (atom [])
+          phases (atom [])
+          done   (CountDownLatch. 1)
+          n      100]
+      (rmq/on-topology-recovery-progress conn (fn [{:keys [phase]}]
+                                                (swap! phases conj phase)
+                                                (when (= :done phase)
+                                                  (.countDown done))))
+      (lx/fanout ch x {:durable false :auto-delete true})
+      (dotimes [i n]
+        (let [q (str (UUID/randomUUID))]
+          (lq/declare ch q {:durable false :exclusive true})
+          (lq/bind ch q x)
+          (swap! qs conj q)))
+      (await-event-propagation)
+      (close-all-connections)
+      (wait-for-recovery conn)
+      (await-on done)
+      (is (= #{:exchanges :queues :bindings :done} (set @phases)))
+      (lb/publish ch x "" "a message")
+      (Thread/sleep 100)
+      (doseq [q @qs]
+        (is (= 1 (lq/message-count ch q)))
+        (lq/delete ch q)))))
+
+(deftest test-topology-recovery-progress-requires-parallel-recovery
+  (with-open [conn (rmq/connect {:automatically-recover true})]
+    (is (thrown? IllegalStateException
+                 (rmq/on-topology-recovery-progress conn (fn [_]))))))
+
+(deftest test-buffered-publishing-during-recovery
+  (with-open [conn (rmq/connect {:automatically-recover true
+                                 :automatically-recover-topology true
+                                 :network-recovery-delay recovery-delay})]
+    (let [ch  (lch/open conn)
+          q   "langohr.test.recovery.outbound-buffer"
+          n   100
+          _   (lq/declare ch q {:durable true :auto-delete false})
+          _   (lq/purge ch q)
+          buf (lb/outbound-buffer (lch/open conn))]
+      (await-event-propagation)
+      (close-all-connections)
+      (wait-for-shutdown conn)
+      (dotimes [i n]
+        (lb/publish-buffered buf "" q (str i)))
+      (wait-for-recovery conn)
+      (.close buf)
+      (Thread/sleep 200)
+      (is (<= n (lq/message-count ch q)))
+      (lq/delete ch q))))
+
+(defn- with-disconnected-buffer
+  "Calls f with a queue and an outbound buffer with the given options while
+   the connection awaits recovery, then waits for recovery"
+  [opts f]
+  (with-open [conn (rmq/connect {:automatically-recover true
+                                 :automatically-recover-topology true
+                                 :network-recovery-delay 1500})]
+    (let [ch  (lch/open conn)
+          q   (:queue (lq/declare ch "" {:exclusive true}))
+          buf (lb/outbound-buffer (lch/open conn) opts)]
+      (await-event-propagation)
+      (close-all-connections)
+      (await-paused buf)
+      (f ch q buf)
+      (wait-for-recovery conn)
+      (.close buf)
+      (Thread/sleep 200))))
+
+(deftest test-buffered-publishing-with-fail-fast-overflow
+  (with-disconnected-buffer {:capacity 5 :overflow :fail-fast}
+    (fn [ch q buf]
+      (dotimes [i 5]
+        (lb/publish-buffered buf "" q (str i)))
+      (is (thrown? IllegalStateException (lb/publish-buffered buf "" q "5")))
+      (is (= 5 (.getBuffered ^OutboundBuffer buf))))))
+
+(deftest test-buffered-publishing-with-block-timeout
+  (with-disconnected-buffer {:capacity 5 :block-timeout 100}
+    (fn [ch q buf]
+      (dotimes [i 5]
+        (lb/publish-buffered buf "" q (str i)))
+      (is (thrown? TimeoutException (lb/publish-buffered buf "" q "5")))
+      (is (= 5 (.getBuffered ^OutboundBuffer buf))))))
+
+(deftest test-buffered-publishing-with-drop-oldest-overflow
+  (let [dropped (atom [])]
+    (with-disconnected-buffer {:capacity 5 :overflow :drop-oldest
+                               :on-drop #(swap! dropped conj %)}
+      (fn [ch q buf]
+        (dotimes [i 8]
+          (lb/publish-buffered buf "" q (str i)))
+        (is (= 5 (.getBuffered ^OutboundBuffer buf)))))
+    (is (= ["0" "1" "2"] (map #(String. ^bytes (:body %) "UTF-8") @dropped)))
+    (is (every? #(= :overflow (:reason %)) @dropped))))
+
+(deftest test-buffered-publishing-on-a-channel-closed-by-the-application
+  (with-open [conn (rmq/connect {:automatically-recover true
+                                 :network-recovery-delay recovery-delay})]
+    (let [ch  (lch/open conn)
+          buf (lb/outbound-buffer ch)]
+      (lch/close ch)
+      (is (.isTerminated buf))
+      (is (thrown? AlreadyClosedException (lb/publish-buffered buf "" "langohr.test.recovery.closed" "a message")))
+      (.close buf))))
+
+(deftest test-buffered-publishing-without-recovery
+  (with-open [conn (rmq/connect {:automatically-recover false})]
+    (let [ch  (lch/open conn)
+          buf (lb/outbound-buffer ch)]
+      (await-event-propagation)
+      (close-all-connections)
+      (wait-for-shutdown conn)
+      (Thread/sleep 200)
+      (is (.isTerminated buf))
+      (is (thrown? AlreadyClosedException (lb/publish-buffered buf "" "langohr.test.recovery.closed" "a message")))
+      (.close buf))))
+
+(deftest test-queue-publisher-consumer-is-not-recovered-after-on-error
+  (with-open [conn (rmq/connect {:automatically-recover true
+                                 :automatically-recover-topology true
+                                 :network-recovery-delay recovery-delay})]
+    (let [ch     (lch/open conn)
+          q      "langohr.test.recovery.queue-publisher"
+          _      (lq/declare ch q {:durable true :auto-delete false})
+          _      (lq/purge ch q)
+          errors (CountDownLatch. 1)
+          p      (fl/publisher ch q {:prefetch 4})]
+      (.subscribe p (reify Flow$Subscriber
+                      ;; never requests, deliveries stay buffered
+                      (onSubscribe [_ s])
+                      (onNext [_ _])
+                      (onError [_ _] (.countDown errors))
+                      (onComplete [_])))
+      (dotimes [i 10]
+        (lb/publish ch "" q (str i)))
+      (await-event-propagation)
+      (close-all-connections)
+      (await-on errors)
+      (wait-for-recovery conn)
+      (Thread/sleep 500)
+      ;; a recovered consumer would hold deliveries and requeue them over and over
+      (is (zero? (lq/consumer-count ch q)))
+      (is (= 10 (lq/message-count ch q)))
+      (lq/delete ch q))))
+
+(deftest test-failed-bulk-declarations-are-not-recovered
+  (let [errors (atom [])]
+    (with-open [conn (rmq/connect {:automatically-recover true
+                                   :automatically-recover-topology true
+                                   :network-recovery-delay recovery-delay
+                                   :exception-handler (rmq/exception-handler
+                                                       {:handle-topology-recovery-exception-fn
+                                                        (fn [_ _ e] (swap! errors conj e))})})]
+      (let [ch       (lch/open conn)
+            q1       "langohr.test.recovery.bulk.q1"
+            q2       "langohr.test.recovery.bulk.q2"
+            _        (lq/delete ch q1)
+            _        (lq/delete ch q2)
+            ;; declared and recorded as durable
+            _        (lq/declare ch q1 {:durable true :auto-delete false :exclusive false})
+            topology {:queues [{:name q1 :durable false :auto-delete false}
+                               {:name q2 :durable false :auto-delete false}]}
+            results  (atom [])
+            declare! #(swap! results conj (topology/declare-all conn topology))]
+        (declare!)
+        (is (= {:declared 1 :failed 1} (:queues (first @results))))
+        (rmq/on-recovery conn (fn [_] (declare!)))
+        (await-event-propagation)
+        (close-all-connections)
+        (wait-for-recovery conn)
+        (Thread/sleep 200)
+        ;; the failed non-durable declaration of q1 did not replace its recorded
+        ;; durable one, which would fail to recover
+        (is (empty? @errors))
+        (is (= 2 (count @results)))
+        (is (= {:declared 1 :failed 1} (:queues (second @results))))
+        (lq/declare-passive ch q1)
+        (lq/declare-passive ch q2)
+        (lq/delete ch q1)
+        (lq/delete ch q2)))))
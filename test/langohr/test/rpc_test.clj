@@ -0,0 +1,63 @@
+;; Copyright (c) 2011-2025 Michael S. Klishin, Alex Petrov, and the ClojureWerkz Team
+;;
+;; The use and distribution terms for this software are covered by the
+;; Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;; which can be found in the file epl-v10.html at the root of this distribution.
+;; By using this software in any fashion, you are agreeing to be bound by
+;; the terms of this license.
+;; You must not remove this notice, or any other, from this software.
+
+(ns langohr.test.rpc-test
+  (:require [langohr.core    :as lhc]
+            [langohr.channel :as lch]
+            [langohr.queue   :as lhq]
+            [langohr.rpc     :as rpc]
+            [clojure.test    :refer :all])
+  (:import com.rabbitmq.client.Connection
+           [java.util.concurrent ExecutionException TimeoutException]
+           java.io.IOException))
+
+(defn- reply-text
+  [f]
+  (let [[_ ^bytes body] (deref f 5000 nil)]
+    (String. body "UTF-8")))
+
+(deftest test-concurrent-requests-over-direct-reply-to
+  (with-open [^Connection conn (lhc/connect)]
+    (let [sch    (lch/open conn)
+          q      (lhq/declare-server-named sch)
+          _      (rpc/serve sch q (fn [_ ^bytes body]
+                                    (str "re:" (String. body "UTF-8"))))
+          client (rpc/client (lch/open conn))
+          n      1000
+          fs     (doall (for [i (range n)]
+                          (rpc/call client "" q (str i))))]
+      (is (= (map #(str "re:" %) (range n))
+             (map reply-text fs)))
+      (is (= 0 (rpc/pending client)))
+      (rpc/close client))))
+
+(deftest test-request-timeout
+  (with-open [^Connection conn (lhc/connect)]
+    (let [ch     (lch/open conn)
+          q      (lhq/declare-server-named ch)
+          client (rpc/client (lch/open conn) {:timeout 100})
+          f      (rpc/call client "" q "unanswered")]
+      (is (thrown-with-msg? ExecutionException #"TimeoutException" @f))
+      (is (= 0 (rpc/pending client))))))
+
+(deftest test-unroutable-request
+  (with-open [^Connection conn (lhc/connect)]
+    (let [client (rpc/client (lch/open conn))
+          f      (rpc/call client "" "langohr.tests.rpc.no-such-queue" "request")]
+      (is (instance? IOException (try @f (catch ExecutionException e (.getCause e))))))))
+
+(deftest test-failing-handler-does-not-reply
+  (with-open [^Connection conn (lhc/connect)]
+    (let [sch    (lch/open conn)
+          q      (lhq/declare-server-named sch)
+          _      (rpc/serve sch q (fn [_ _]
+                                    (throw (IllegalStateException. "boom"))))
+          client (rpc/client (lch/open conn) {:timeout 200})]
+      (is (instance? TimeoutException (try @(rpc/call client "" q "request")
+                                           (catch ExecutionException e (.getCause e))))))))
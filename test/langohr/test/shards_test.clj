@@ -0,0 +1,48 @@
+;; Copyright (c) 2011-2025 Michael S. Klishin, Alex Petrov, and the ClojureWerkz Team
+;;
+;; The use and distribution terms for this software are covered by the
+;; Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;; which can be found in the file epl-v10.html at the root of this distribution.
+;; By using this software in any fashion, you are agreeing to be bound by
+;; the terms of this license.
+;; You must not remove this notice, or any other, from this software.
+
+(ns langohr.test.shards-test
+  (:require [langohr.core    :as lc]
+            [langohr.channel :as lch]
+            [langohr.basic   :as lb]
+            [langohr.queue   :as lq]
+            [langohr.shards  :as sh]
+            [clojure.test    :refer :all]))
+
+(deftest test-connect-group
+  (with-open [g (lc/connect-group {:shards 3 :connection-name "langohr.shards-test"})]
+    (is (lc/open? g))
+    (is (= 3 (sh/shard-count g)))
+    (is (every? lc/open? (map #(sh/connection-of g %) (range 3))))
+    (is (= #{0 1 2} (set (repeatedly 3 #(sh/shard-for g nil)))))
+    (is (= (sh/shard-for g "tenant-1") (sh/shard-for g "tenant-1")))))
+
+(deftest test-publish-via-a-connection-group
+  (with-open [conn (lc/connect)
+              g    (lc/connect-group {:shards 2})]
+    (let [ch (lch/open conn)
+          q  (lq/declare-server-named ch)]
+      (dotimes [i 100]
+        (sh/publish g "" q (str i)))
+      (dotimes [i 10]
+        (sh/publish g "" q (str i) {:shard-key "tenant-1" :content-type "text/plain"}))
+      (sh/with-shard-channel [ch' g "tenant-2"]
+        (lb/publish ch' "" q "x"))
+      (Thread/sleep 200)
+      (is (= 111 (lq/message-count ch q))))))
+
+(deftest test-connection-group-closing
+  (let [g  (lc/connect-group {:shards 2})
+        cs (mapv #(sh/connection-of g %) (range 2))
+        n  (atom 0)]
+    (sh/add-shutdown-listener g (fn [_] (swap! n inc)))
+    (lc/close g)
+    (Thread/sleep 100)
+    (is (every? lc/closed? cs))
+    (is (= 2 @n))))
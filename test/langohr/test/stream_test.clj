@@ -0,0 +1,95 @@
+;; Copyright (c) 2011-2025 Michael S. Klishin, Alex Petrov, and the ClojureWerkz Team
+;;
+;; The use and distribution terms for this software are covered by the
+;; Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;; which can be found in the file epl-v10.html at the root of this distribution.
+;; By using this software in any fashion, you are agreeing to be bound by
+;; the terms of this license.
+;; You must not remove this notice, or any other, from this software.
+
+
+(ns langohr.test.stream-test
+  (:require [langohr.core   :as lhc]
+            [langohr.queue  :as lhq]
+            [langohr.basic  :as lhb]
+            [langohr.stream :as ls]
+            [clojure.test   :refer :all])
+  (:import [com.rabbitmq.client Connection]
+           [java.util.concurrent CountDownLatch TimeUnit]))
+
+(deftest test-consume-a-stream-from-the-first-offset
+  (with-open [^Connection conn (lhc/connect)]
+    (let [ch     (lhc/create-channel conn)
+          q      "langohr.tests.streams.first"
+          n      100
+          latch  (CountDownLatch. n)
+          offsets (atom [])]
+      (lhq/delete ch q)
+      (ls/declare ch q {:max-age "1h"})
+      (dotimes [i n]
+        (lhb/publish ch "" q (str i)))
+      (ls/subscribe (lhc/create-channel conn) q
+                    (fn [_ metadata _]
+                      (swap! offsets conj (ls/offset metadata))
+                      (.countDown latch))
+                    {:offset :first :prefetch 10})
+      (is (.await latch 5 TimeUnit/SECONDS))
+      (is (= n (count @offsets)))
+      (is (apply < @offsets))
+      (lhq/delete ch q))))
+
+(deftest test-resume-a-stream-consumer-from-a-stored-offset
+  (with-open [^Connection conn (lhc/connect)]
+    (let [ch    (lhc/create-channel conn)
+          q     "langohr.tests.streams.resume"
+          store (ls/memory-store)
+          n     50]
+      (lhq/delete ch q)
+      (ls/declare ch q)
+      (dotimes [i n]
+        (lhb/publish ch "" q (str i)))
+      (let [t1    (ls/tracker store "consumer")
+            latch (CountDownLatch. n)
+            ch1   (lhc/create-channel conn)]
+        (ls/subscribe ch1 q (fn [_ _ _] (.countDown latch)) {:offset :first :tracker t1})
+        (is (.await latch 5 TimeUnit/SECONDS))
+        (lhc/close ch1)
+        (is (some? (ls/last-offset t1))))
+      (dotimes [i 10]
+        (lhb/publish ch "" q (str (+ n i))))
+      (let [t2     (ls/tracker store "consumer")
+            latch  (CountDownLatch. 10)
+            bodies (atom [])]
+        (ls/subscribe (lhc/create-channel conn) q
+                      (fn [_ _ ^bytes payload]
+                        (swap! bodies conj (String. payload "UTF-8"))
+                        (.countDown latch))
+                      {:offset :first :tracker t2})
+        (is (.await latch 5 TimeUnit/SECONDS))
+        (Thread/sleep 200)
+        (is (= (map str (range n (+ n 10))) @bodies)))
+      (lhq/delete ch q))))
+
+(deftest test-file-offset-store
+  (let [dir (str (System/getProperty "java.io.tmpdir") "/langohr-offsets-" (System/nanoTime))]
+    (with-open [store (ls/file-store dir)]
+      (is (= -1 (.load store "a")))
+      (.store store "a" 42))
+    (with-open [store (ls/file-store dir)]
+      (is (= 42 (.load store "a")))
+      (is (= 42 (ls/last-offset (ls/tracker store "a")))))))
+
+(deftest test-tracker-with-out-of-order-completion
+  (let [store (ls/memory-store)
+        t     (ls/tracker store "workers")]
+    (doseq [o [10 11 12 13]]
+      (.started t o))
+    ;; completed before offsets 10 and 12, resuming must start at 10
+    (.processed t 11)
+    (.processed t 13)
+    (is (= 9 (ls/last-offset t)))
+    (.processed t 10)
+    (is (= 11 (ls/last-offset t)))
+    (is (= 11 (.load store "workers")))
+    (.processed t 12)
+    (is (= 13 (ls/last-offset t)))))
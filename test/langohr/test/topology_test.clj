@@ -0,0 +1,61 @@
+;; Copyright (c) 2011-2025 Michael S. Klishin, Alex Petrov, and the ClojureWerkz Team
+;;
+;; The use and distribution terms for this software are covered by the
+;; Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;; which can be found in the file epl-v10.html at the root of this distribution.
+;; By using this software in any fashion, you are agreeing to be bound by
+;; the terms of this license.
+;; You must not remove this notice, or any other, from this software.
+
+(ns langohr.test.topology-test
+  (:require [langohr.core     :as lhc]
+            [langohr.channel  :as lch]
+            [langohr.queue    :as lhq]
+            [langohr.basic    :as lhb]
+            [langohr.topology :as topology]
+            [clojure.test     :refer :all])
+  (:import com.rabbitmq.client.Connection))
+
+(deftest test-declare-all
+  (with-open [^Connection conn (lhc/connect)]
+    (let [x  "langohr.tests.topology.fanout"
+          qs (for [i (range 500)]
+               (format "langohr.tests.topology.q.%d" i))
+          {:keys [exchanges queues bindings failures]}
+          (topology/declare-all conn {:exchanges [{:name x :type "fanout" :auto-delete true}]
+                                      :queues    (for [q qs]
+                                                   {:name q :exclusive true})
+                                      :bindings  (for [q qs]
+                                                   {:source x :destination q})}
+                                {:channels 4 :batch-size 64})
+          ch (lch/open conn)]
+      (is (= {:declared 1 :failed 0} exchanges))
+      (is (= {:declared 500 :failed 0} queues))
+      (is (= {:declared 500 :failed 0} bindings))
+      (is (empty? failures))
+      (lhb/publish ch x "" "a message")
+      (Thread/sleep 200)
+      (doseq [q qs]
+        (is (= 1 (lhq/message-count ch q)))))))
+
+(deftest test-declare-all-reports-failures-per-entity
+  (with-open [^Connection conn (lhc/connect)]
+    (let [ch  (lch/open conn)
+          q   "langohr.tests.topology.durable"
+          _   (lhq/declare ch q {:durable true :auto-delete false})
+          qs  (for [i (range 10)]
+                (format "langohr.tests.topology.nd.%d" i))
+          {:keys [queues failures]}
+          (topology/declare-all conn {:queues (cons {:name q :durable false}
+                                                    (for [q qs]
+                                                      {:name q :exclusive true}))})]
+      (is (= {:declared 10 :failed 1} queues))
+      (is (= [[:queue q]] (map (juxt :kind (comp :name :entity)) failures)))
+      (doseq [q qs]
+        (is (lhq/declare-passive ch q)))
+      (lhq/delete ch q))))
+
+(deftest test-declare-all-rejects-server-named-queues
+  (with-open [^Connection conn (lhc/connect)]
+    (is (thrown? IllegalArgumentException
+                 (topology/declare-all conn {:queues [{:name ""}]})))))